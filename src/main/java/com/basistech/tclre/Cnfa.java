@@ -16,7 +16,10 @@
 
 package com.basistech.tclre;
 
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 /**
  * Compacted (runtime) NFA.
@@ -46,6 +49,78 @@ class Cnfa implements Serializable {
         this.states = states;
     }
 
+    /**
+     * Write the binary form; see {@link HsrePattern#writeTo(DataOutput)}.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(ncolors);
+        out.writeInt(flags);
+        out.writeInt(pre);
+        out.writeInt(post);
+        Codec.writeShorts(out, bos);
+        Codec.writeShorts(out, eos);
+        Codec.writeLongs(out, arcs);
+        Codec.writeInts(out, states);
+    }
+
+    static Cnfa readFrom(ByteBuffer in) {
+        int ncolors = in.getInt();
+        int flags = in.getInt();
+        int pre = in.getInt();
+        int post = in.getInt();
+        short[] bos = Codec.readShorts(in);
+        short[] eos = Codec.readShorts(in);
+        long[] arcs = Codec.readLongs(in);
+        int[] states = Codec.readInts(in);
+        return new Cnfa(ncolors, flags, pre, post, bos, eos, arcs, states);
+    }
+
+    /**
+     * reverse - make the machine that matches the reverse of what this one matches.
+     * The arcs are turned around, and pre and post trade places. The new pre state
+     * loops to itself on every color, so that, run backwards from some point,
+     * the machine finds matches that end anywhere at or before that point.
+     * Lookahead constraints look the wrong way, so this can't be used on machines that have them.
+     */
+    Cnfa reverse() {
+        assert 0 == (flags & HASLACONS);
+        int nstates = states.length;
+        int[] nins = new int[nstates];
+        for (int s = 0; s < nstates; s++) {
+            for (int ax = states[s] + 1; carcColor(arcs[ax]) != Constants.COLORLESS; ax++) {
+                nins[carcTarget(arcs[ax])]++;
+            }
+        }
+        nins[post] += ncolors;
+
+        int narcs = 0;
+        for (int s = 0; s < nstates; s++) {
+            narcs += 1 + nins[s] + 1;
+            /* 1 as a fake for flags, nins for arcs, 1 as endmarker */
+        }
+
+        CnfaBuilder builder = new CnfaBuilder(nstates, narcs, post, pre, bos, eos, ncolors, flags);
+        int[] next = new int[nstates];
+        int arcIndex = 0;
+        for (int s = 0; s < nstates; s++) {
+            builder.setState(s, arcIndex);
+            /* the new pre state is the only no-progress state */
+            builder.setArc(arcIndex, packCarc(s == post ? (short)1 : (short)0, 0));
+            next[s] = arcIndex + 1;
+            arcIndex += 1 + nins[s];
+            builder.setArc(arcIndex++, packCarc(Constants.COLORLESS, 0));
+        }
+        for (int s = 0; s < nstates; s++) {
+            for (int ax = states[s] + 1; carcColor(arcs[ax]) != Constants.COLORLESS; ax++) {
+                builder.setArc(next[carcTarget(arcs[ax])]++, packCarc(carcColor(arcs[ax]), s));
+            }
+        }
+        for (short co = 0; co < ncolors; co++) {
+            builder.setArc(next[post]++, packCarc(co, post));
+        }
+        return builder.build();
+    }
+
     static long packCarc(short color, int targetState) {
         return ((long)color << 32) | targetState;
     }
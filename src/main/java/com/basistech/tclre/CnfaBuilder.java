@@ -16,6 +16,8 @@
 
 package com.basistech.tclre;
 
+import java.util.Arrays;
+
 /**
  * Mutable builder of immutable CNFA objects.
  */
@@ -69,32 +71,14 @@ class CnfaBuilder {
 
 
     /**
-     * carcsort - sort compacted-NFA arcs by color
-     * Really dumb algorithm, but if the list is long enough for that to matter,
-     * you're in real trouble anyway.
+     * carcsort - sort compacted-NFA arcs by color, and then by target.
+     * The color is in the high half of a packed arc, and neither it nor the target is negative,
+     * so the numeric order of the packed arcs is that order.
      */
     void carcsort(int first, int last) {
-        int p;
-        int q;
-        long tmp;
-
         if (last - first <= 1) {
             return;
         }
-
-        for (p = first; p <= last; p++) {
-            for (q = p; q <= last; q++) {
-                short pco = Cnfa.carcColor(arcs[p]);
-                short qco = Cnfa.carcColor(arcs[q]);
-                int pto = Cnfa.carcTarget(arcs[p]);
-                int qto = Cnfa.carcTarget(arcs[q]);
-                if (pco > qco || (pco == qco && pto > qto)) {
-                    assert p != q;
-                    tmp = arcs[p];
-                    arcs[p] = arcs[q];
-                    arcs[q] = tmp;
-                }
-            }
-        }
+        Arrays.sort(arcs, first, last + 1);
     }
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reading and writing the pieces of the binary form of a compiled pattern;
+ * see {@link HsrePattern#writeTo(DataOutput)}. Arrays are written as a length and then
+ * the elements, big-endian, so that reading them is a bulk copy out of the buffer.
+ */
+final class Codec {
+    static final int MAGIC = 0x54434c52; // "TCLR"
+    /* change this with any change to the format. */
+    static final int VERSION = 3;
+
+    private Codec() {
+        //
+    }
+
+    static void writeInts(DataOutput out, int[] values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    static int[] readInts(ByteBuffer in) {
+        int length = in.getInt();
+        if (length == -1) {
+            return null;
+        }
+        int[] values = new int[length];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + 4 * length);
+        return values;
+    }
+
+    static void writeLongs(DataOutput out, long[] values) throws IOException {
+        out.writeInt(values.length);
+        for (long value : values) {
+            out.writeLong(value);
+        }
+    }
+
+    static long[] readLongs(ByteBuffer in) {
+        long[] values = new long[in.getInt()];
+        in.asLongBuffer().get(values);
+        in.position(in.position() + 8 * values.length);
+        return values;
+    }
+
+    static void writeShorts(DataOutput out, short[] values) throws IOException {
+        out.writeInt(values.length);
+        for (short value : values) {
+            out.writeShort(value);
+        }
+    }
+
+    static short[] readShorts(ByteBuffer in) {
+        short[] values = new short[in.getInt()];
+        in.asShortBuffer().get(values);
+        in.position(in.position() + 2 * values.length);
+        return values;
+    }
+
+    static void writeChars(DataOutput out, char[] values) throws IOException {
+        out.writeInt(values.length);
+        for (char value : values) {
+            out.writeChar(value);
+        }
+    }
+
+    static char[] readChars(ByteBuffer in) {
+        char[] values = new char[in.getInt()];
+        in.asCharBuffer().get(values);
+        in.position(in.position() + 2 * values.length);
+        return values;
+    }
+
+    static void writeString(DataOutput out, String value) throws IOException {
+        writeChars(out, value.toCharArray());
+    }
+
+    static String readString(ByteBuffer in) {
+        return new String(readChars(in));
+    }
+}
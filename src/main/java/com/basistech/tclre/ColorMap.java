@@ -19,6 +19,7 @@ package com.basistech.tclre;
 import java.util.List;
 
 import com.google.common.collect.Lists;
+import it.unimi.dsi.fastutil.chars.CharArrayList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -169,6 +170,7 @@ class ColorMap {
         } else {
             ColorDesc newcd = new ColorDesc();
             int colorIndex = colorDescs.size();
+            compiler.limits.colors(colorIndex + 1);
             colorDescs.add(newcd);
             assert colorIndex != -1;
             return (short)colorIndex;
@@ -403,12 +405,9 @@ class ColorMap {
                 scd.sub = Constants.NOSUB;
                 while ((a = cd.arcs) != null) {
                     assert a.co == co;
-                /* uncolorchain(cm, a); */
-                    cd.arcs = a.colorchain;
+                    uncolorchain(a);
                     a.setColor(sco);
-                /* colorchain(cm, a); */
-                    a.colorchain = scd.arcs;
-                    scd.arcs = a;
+                    colorchain(a);
                 }
                 freecolor(co);
             } else {
@@ -434,7 +433,11 @@ class ColorMap {
      */
     void colorchain(Arc a) {
         ColorDesc cd = colorDescs.get(a.co);
+        if (cd.arcs != null) {
+            cd.arcs.colorchainRev = a;
+        }
         a.colorchain = cd.arcs;
+        a.colorchainRev = null;
         cd.arcs = a;
     }
 
@@ -443,20 +446,21 @@ class ColorMap {
      */
     void uncolorchain(Arc a) {
         ColorDesc cd = colorDescs.get(a.co);
-        Arc aa;
+        Arc aa = a.colorchainRev;
 
-        aa = cd.arcs;
-        if (aa == a) {      /* easy case */
+        if (aa == null) {      /* easy case */
+            assert cd.arcs == a;
             cd.arcs = a.colorchain;
         } else {
-            for (; aa != null && aa.colorchain != a; aa = aa.colorchain) {
-                //
-            }
-            assert aa != null;
+            assert aa.colorchain == a;
             aa.colorchain = a.colorchain;
         }
+        if (a.colorchain != null) {
+            a.colorchain.colorchainRev = aa;
+        }
 
         a.colorchain = null;    /* paranoia */
+        a.colorchainRev = null;
     }
 
     /**
@@ -470,6 +474,32 @@ class ColorMap {
         return cd.getNChars() == 1 && cd.sub == Constants.NOSUB;
     }
 
+    /**
+     * chars - the characters of each color, for the colors that have only a few.
+     * This looks at every character, so it is for analysis, not for routine use.
+     * @param limit the most characters of interest.
+     * @return for each color, its characters, or null if there are more than the limit or none at all.
+     */
+    char[][] chars(int limit) {
+        CharArrayList[] lists = new CharArrayList[colorDescs.size()];
+        for (int c = Constants.CHR_MIN; c <= Constants.CHR_MAX; c++) {
+            short co = getcolor((char) c);
+            if (lists[co] == null) {
+                lists[co] = new CharArrayList();
+            }
+            if (lists[co].size() <= limit) {
+                lists[co].add((char) c);
+            }
+        }
+        char[][] chars = new char[lists.length][];
+        for (int co = 0; co < lists.length; co++) {
+            if (lists[co] != null && lists[co].size() <= limit) {
+                chars[co] = lists[co].toCharArray();
+            }
+        }
+        return chars;
+    }
+
     /**
      * rainbow - add arcs of all full colors (but one) between specified states
      *
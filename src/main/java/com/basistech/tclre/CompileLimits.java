@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+/**
+ * The limits from {@link PatternOptions} on the work of one compile, and the clock for its timeout.
+ * The NFA and the color map report here as they grow; since they do that from deep
+ * inside code that doesn't declare {@link RegexException}, running over a limit throws
+ * {@link Exceeded}, which {@link Compiler#compile(String, java.util.EnumSet, PatternOptions)}
+ * turns back into the {@link PatternTooComplexException} that it carries.
+ */
+final class CompileLimits {
+    /* how many reports between looks at the clock. */
+    static final int CHECK_INTERVAL = 1024;
+
+    private final int maxStates;
+    private final int maxArcs;
+    private final int maxColors;
+    private final int maxTreeNodes;
+    private final boolean timed;
+    private final long deadline;
+    private int countdown;
+    private int treeNodes;
+
+    CompileLimits(PatternOptions options) {
+        maxStates = options.getMaxNfaStates();
+        maxArcs = options.getMaxNfaArcs();
+        maxColors = options.getMaxColors();
+        maxTreeNodes = options.getMaxTreeNodes();
+        timed = options.getCompileTimeoutNanos() > 0;
+        deadline = timed ? System.nanoTime() + options.getCompileTimeoutNanos() : 0;
+        countdown = CHECK_INTERVAL;
+    }
+
+    /**
+     * An NFA now has this many states.
+     */
+    void states(int count) {
+        if (maxStates > 0 && count > maxStates) {
+            throw exceeded(PatternTooComplexException.Limit.STATES, "NFA has more than " + maxStates + " states");
+        }
+        tick();
+    }
+
+    /**
+     * An NFA now has this many arcs.
+     */
+    void arcs(int count) {
+        if (maxArcs > 0 && count > maxArcs) {
+            throw exceeded(PatternTooComplexException.Limit.ARCS, "NFA has more than " + maxArcs + " arcs");
+        }
+        tick();
+    }
+
+    /**
+     * The color map now has this many colors.
+     */
+    void colors(int count) {
+        if (maxColors > 0 && count > maxColors) {
+            throw exceeded(PatternTooComplexException.Limit.COLORS, "pattern needs more than " + maxColors + " colors");
+        }
+    }
+
+    /**
+     * The parser made another subexpression tree node.
+     */
+    void treeNode() {
+        treeNodes++;
+        if (maxTreeNodes > 0 && treeNodes > maxTreeNodes) {
+            throw exceeded(PatternTooComplexException.Limit.TREE_NODES, "subexpression tree has more than " + maxTreeNodes + " nodes");
+        }
+    }
+
+    /**
+     * Look at the clock now, between the phases of the compile.
+     */
+    void checkTime() {
+        if (timed && System.nanoTime() - deadline > 0) {
+            throw exceeded(PatternTooComplexException.Limit.TIME, "compile ran out of time");
+        }
+    }
+
+    private void tick() {
+        if (--countdown == 0) {
+            countdown = CHECK_INTERVAL;
+            checkTime();
+        }
+    }
+
+    private static Exceeded exceeded(PatternTooComplexException.Limit limit, String message) {
+        return new Exceeded(new PatternTooComplexException(limit, "REG_ETOOBIG: " + message));
+    }
+
+    /**
+     * Carries a {@link PatternTooComplexException} out of code that can't throw it.
+     */
+    static final class Exceeded extends RuntimeException {
+        static final long serialVersionUID = 1L;
+
+        Exceeded(PatternTooComplexException cause) {
+            super(cause);
+        }
+
+        @Override
+        public PatternTooComplexException getCause() {
+            return (PatternTooComplexException) super.getCause();
+        }
+    }
+}
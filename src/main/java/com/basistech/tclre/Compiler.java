@@ -21,6 +21,8 @@ import java.util.EnumSet;
 import java.util.List;
 
 import com.google.common.collect.Lists;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
 import com.ibm.icu.text.Normalizer;
 import com.ibm.icu.text.UnicodeSet;
 
@@ -78,6 +80,8 @@ final class Compiler {
     Lex lex;
     private long info;
     private final EnumSet<PatternFlags> originalFlags;
+    private final PatternOptions options;
+    final CompileLimits limits;
     private final List<Subre> subs;   /* subRE pointer vector */
 
     /**
@@ -86,8 +90,9 @@ final class Compiler {
      *
      * @param pattern
      * @param flags
+     * @param options
      */
-    private Compiler(String pattern, EnumSet<PatternFlags> flags) {
+    private Compiler(String pattern, EnumSet<PatternFlags> flags, PatternOptions options) {
 
         if (flags.contains(PatternFlags.QUOTE)
                 && (flags.contains(PatternFlags.ADVANCED)
@@ -99,6 +104,8 @@ final class Compiler {
 
         this.pattern = pattern.toCharArray();
         this.originalFlags = flags;
+        this.options = options;
+        this.limits = new CompileLimits(options == null ? PatternOptions.DEFAULTS : options);
 
         // Map from EnumSet, which is how we want users to see this some time, to bitflags.
         // At some point we might push the enum sets all the way down.
@@ -152,11 +159,34 @@ final class Compiler {
      * @throws RegexException
      */
     static RePattern compile(String pattern, EnumSet<PatternFlags> flags) throws RegexException {
-        Compiler that = new Compiler(pattern, flags);
-        return that.compile();
+        return compile(pattern, flags, PatternOptions.DEFAULTS);
     }
 
-    private RePattern compile() throws RegexException {
+    /**
+     * The official API into this class.
+     * @param pattern the pattern
+     * @param flags the flags
+     * @param options the options
+     * @return the regexp
+     * @throws RegexException
+     */
+    static RePattern compile(String pattern, EnumSet<PatternFlags> flags, PatternOptions options) throws RegexException {
+        Compiler that = new Compiler(pattern, flags, options);
+        try {
+            return that.compile();
+        } catch (CompileLimits.Exceeded e) {
+            throw e.getCause();
+        } catch (StackOverflowError e) {
+            /* the NFA traversals are recursive, and a long chain of states can be too deep for them */
+            throw new PatternTooComplexException(PatternTooComplexException.Limit.STACK,
+                    "REG_ETOOBIG: pattern is too deep for the compiler's stack");
+        }
+    }
+
+    /**
+     * parseTree - parse the pattern into the NFA and the subexpression tree, and tidy the tree.
+     */
+    private void parseTree() throws RegexException {
         stop = pattern.length;
         nlcolor = Constants.COLORLESS;
         info = 0;
@@ -180,6 +210,7 @@ final class Compiler {
 
 
         assert tree != null;
+        limits.checkTime();
 
     /* finish setup of nfa and its subre tree */
         nfa.specialcolors();
@@ -199,9 +230,21 @@ final class Compiler {
             LOG.debug("========= TREE FIXED ==========");
             LOG.debug(tree.dumpst(true));
         }
+    }
+
+    private RePattern compile() throws RegexException {
+        parseTree();
 
-    /* build compacted NFAs for tree and lacons */
-        info |= nfatree(tree);
+    /*
+     * build compacted NFAs for tree and lacons. Matching needs the machines for the parts of the tree
+     * only to dissect matches with backreferences; otherwise, they wait until someone asks for a
+     * subexpression; see subexpressions.
+     */
+        if (0 != (info & Flags.REG_UBACKREF)) {
+            info |= nfatree(tree);
+        } else {
+            info |= nfanode(tree);
+        }
 
         // lacons start at 1.
         for (int i = 1; i < lacons.size(); i++) {
@@ -209,6 +252,7 @@ final class Compiler {
             nfanode(lacons.get(i));
         }
 
+        limits.checkTime();
         if (0 != (tree.flags & Subre.SHORTER)) {
             note(Flags.REG_USHORTEST);
         }
@@ -217,10 +261,32 @@ final class Compiler {
         if (LOG.isDebugEnabled()) {
             LOG.debug("========= SEARCH ==========");
         }
+    /* while the main NFA still has the subexpression boundaries, see if one scan can find them */
+        OnePass onepass = null;
+        if (0 == (info & Flags.REG_UBACKREF)) {
+            onepass = OnePass.build(tree, subs.size(), cm.maxcolor() + 1);
+        }
+
     /* can sacrifice main NFA now, so use it as work area */
         nfa.optimize();
         makesearch(nfa);
         Cnfa search = nfa.compact();
+        limits.checkTime();
+
+    /* and, if it can be done, the main machine run backwards, to locate the start of a match */
+        Cnfa reverse = null;
+        if (0 == (tree.cnfa.flags & Cnfa.HASLACONS)) {
+            reverse = tree.cnfa.reverse();
+        }
+
+    /* and what every match must start with, so that the search can skip ahead */
+        LiteralPrefix prefix = LiteralPrefix.extract(tree.cnfa, cm);
+
+    /* and what every match must contain, so that the search can be skipped altogether */
+        RequiredFactors factors = RequiredFactors.extract(tree.cnfa, cm);
+        if (factors != null && prefix != null && factors.minLength() <= prefix.length()) {
+            factors = null; /* the prefix does as well */
+        }
 
     /* looks okay, package it up */
         int nsub = subs.size();
@@ -232,8 +298,37 @@ final class Compiler {
         }
 
         Guts guts = new Guts(cflags, info, nsub, new RuntimeSubexpression(tree),
-                search, ntree, cm, compare, lacons);
-        return new HsrePattern(new String(pattern, 0, pattern.length), originalFlags, info, nsub, guts);
+                search, reverse, prefix, factors, onepass, ntree, cm, compare, lacons);
+        HsrePattern re = new HsrePattern(new String(pattern, 0, pattern.length), originalFlags, info, nsub, guts, options);
+
+    /* and, if asked, the DFAs, so that matchers don't have to build them */
+        int eagerStates = re.options().getEagerDfaStates();
+        if (eagerStates > 0 && 0 == (info & Flags.REG_UIMPOSSIBLE)) {
+            Reference2ObjectMap<Cnfa, DfaTable> tables = eagerTables(re, eagerStates);
+            if (!tables.isEmpty()) {
+                re = new HsrePattern(re.original, originalFlags, info, nsub, new Guts(guts, tables), options);
+            }
+        }
+        return re;
+    }
+
+    /**
+     * eagerTables - build the complete DFAs for the search machine, the main machine, and its reverse,
+     * for those that have no lookahead constraints and don't have too many states.
+     */
+    private static Reference2ObjectMap<Cnfa, DfaTable> eagerTables(HsrePattern re, int limit) throws RegexException {
+        Runtime runtime = new Runtime();
+        runtime.setup(re, "", 0, 0, 0);
+        Reference2ObjectMap<Cnfa, DfaTable> tables = new Reference2ObjectOpenHashMap<Cnfa, DfaTable>();
+        for (Cnfa machine : new Cnfa[] {re.guts.search, re.guts.tree.machine, re.guts.reverse}) {
+            if (machine != null && 0 == (machine.flags & Cnfa.HASLACONS) && !tables.containsKey(machine)) {
+                DfaTable table = runtime.getDfa(machine).complete(limit);
+                if (table != null) {
+                    tables.put(machine, table);
+                }
+            }
+        }
+        return tables;
     }
 
     static int pair(int a, int b) {
@@ -524,6 +619,28 @@ final class Compiler {
         treefree = null;        /* just on general principles */
     }
 
+    /**
+     * subexpressions - build the machines that compile left out of the subexpression tree, by parsing the pattern again.
+     * The parse comes out the same as the first time, so the new machines fit the pattern's colors, and its tree.
+     * @param re the pattern.
+     * @return its tree, with all the machines, sharing the one for the whole pattern.
+     */
+    static RuntimeSubexpression subexpressions(HsrePattern re) throws RegexException {
+        /* the limits were met the first time around. */
+        Compiler that = new Compiler(re.original, re.originalFlags, PatternOptions.DEFAULTS);
+        that.parseTree();
+        if (that.tree.left != null) {
+            that.nfatree(that.tree.left);
+        }
+        if (that.tree.right != null) {
+            that.nfatree(that.tree.right);
+        }
+        if (that.cm.maxcolor() + 1 != re.guts.tree.machine.ncolors) {
+            throw new IllegalStateException("Pattern colored differently when parsed again");
+        }
+        return re.guts.tree.withMachines(that.tree);
+    }
+
     /**
      * nfatree - turn a subRE subtree into a tree of compacted NFAs
      */
@@ -584,6 +701,14 @@ final class Compiler {
         return 0 != (f & (Subre.MIXED | Subre.CAP | Subre.BACKR));
     }
 
+    /**
+     * subre - allocate a subre, counting it against the limit on the tree
+     */
+    Subre subre(char op, int flags, State begin, State end) {
+        limits.treeNode();
+        return new Subre(op, flags, begin, end);
+    }
+
     /**
      * parse - parse an RE
      * This is actually just the top level, which parses a bunch of branches
@@ -600,14 +725,14 @@ final class Compiler {
 
         assert stopper == ')' || stopper == EOS;
 
-        branches = new Subre('|', Subre.LONGER, initState, finalState);
+        branches = subre('|', Subre.LONGER, initState, finalState);
 
         branch = branches;
         firstbranch = 1;
         do {    /* a branch */
             if (0 == firstbranch) {
             /* need a place to hang it */
-                branch.right = new Subre('|', Subre.LONGER, initState, finalState);
+                branch.right = subre('|', Subre.LONGER, initState, finalState);
                 branch = branch.right;
             }
             firstbranch = 0;
@@ -662,7 +787,7 @@ final class Compiler {
 
         lp = left;
 
-        t = new Subre('=', 0, left, right); /* op '=' is tentative */
+        t = subre('=', 0, left, right); /* op '=' is tentative */
         while (!see('|') && !see(stopper) && !see(EOS)) {
             if (seencontent) {  /* implicit concat operator */
                 lp = nfa.newstate();
@@ -858,7 +983,7 @@ final class Compiler {
                 // but we can check that nothing has used our slot.
                 assert subs.get(subno - 1) == null;
                 subs.set(subno - 1, atom);
-                t = new Subre('(', atom.flags | Subre.CAP, lp, rp);
+                t = subre('(', atom.flags | Subre.CAP, lp, rp);
                 t.subno = subno;
                 t.left = atom;
                 atom = t;
@@ -878,7 +1003,7 @@ final class Compiler {
             }
 
             assert nextvalue > 0;
-            atom = new Subre('b', Subre.BACKR, lp, rp);
+            atom = subre('b', Subre.BACKR, lp, rp);
             subno = nextvalue ;
             atom.subno = subno;
             nfa.emptyarc(lp, rp);   /* temporarily, so there's something */
@@ -971,7 +1096,7 @@ final class Compiler {
 
     /* now we'll need a subre for the contents even if they're boring */
         if (atom == null) {
-            atom = new Subre('=', 0, lp, rp);
+            atom = subre('=', 0, lp, rp);
         }
 
     /*
@@ -995,7 +1120,7 @@ final class Compiler {
         nfa.emptyarc(lp, s2);
 
     /* break remaining subRE into x{...} and what follows */
-        t = new Subre('.', Subre.combine(qprefer, atom.flags), lp, rp);
+        t = subre('.', Subre.combine(qprefer, atom.flags), lp, rp);
         t.left = atom;
 
         final Subre target = t;
@@ -1011,7 +1136,7 @@ final class Compiler {
 
     /* split top into prefix and remaining */
         assert top.op == '=' && top.left == null && top.right == null;
-        top.left = new Subre('=', top.flags, top.begin, lp);
+        top.left = subre('=', top.flags, top.begin, lp);
         top.op = '.';
         top.right = t;
 
@@ -1032,10 +1157,10 @@ final class Compiler {
             nfa.emptyarc(s2, atom.end);     /* the bypass */
             assert Subre.pref(qprefer) != 0;
             f = Subre.combine(qprefer, atom.flags);
-            t = new Subre('|', f, lp, atom.end);
+            t = subre('|', f, lp, atom.end);
             t.left = atom;
-            t.right = new Subre('|', Subre.pref(f), s2, atom.end);
-            t.right.left = new Subre('=', 0, s2, atom.end);
+            t.right = subre('|', Subre.pref(f), s2, atom.end);
+            t.right.left = subre('=', 0, s2, atom.end);
 
             atomp.set(t);
             final Subre target2 = t;
@@ -1067,8 +1192,8 @@ final class Compiler {
             assert m >= 1 && m != INFINITY && n >= 1;
             repeat(s, atom.begin, m - 1, (n == INFINITY) ? n : n - 1);
             f = Subre.combine(qprefer, atom.flags);
-            t = new Subre('.', f, s, atom.end); /* prefix and atom */
-            t.left = new Subre('=', Subre.pref(f), s, atom.begin);
+            t = subre('.', f, s, atom.end); /* prefix and atom */
+            t.left = subre('=', Subre.pref(f), s, atom.begin);
             t.right = atom;
             atomp.set(t);
         }
@@ -1079,7 +1204,7 @@ final class Compiler {
             t.right = parsebranch(stopper, type, atom.end, rp, true);
         } else {
             nfa.emptyarc(atom.end, rp);
-            t.right = new Subre('=', 0, atom.end, rp);
+            t.right = subre('=', 0, atom.end, rp);
         }
         assert see('|') || see(stopper) || see(EOS);
         t.flags |= Subre.combine(t.flags, t.right.flags);
@@ -1470,7 +1595,7 @@ final class Compiler {
             // skip 0
             lacons.add(null);
         }
-        Subre sub = new Subre((char)0, 0, begin, end);
+        Subre sub = subre((char)0, 0, begin, end);
         sub.subno = pos;
         lacons.add(sub);
         return lacons.size() - 1; // it's the index into the array, -1.
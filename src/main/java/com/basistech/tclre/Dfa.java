@@ -16,109 +16,218 @@
 
 package com.basistech.tclre;
 
+import java.util.Arrays;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
-import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
-
-import java.util.BitSet;
-
 /**
  * Runtime DFA.
  *
- * Note: for less than 65 states, all this boolean[] could be done with
- * a long.
+ * The state sets are numbered, and stored in parallel arrays: the NFA states of each set
+ * as a bit vector of longs, a hash of that, flags, and a row of transitions indexed by color.
+ * Sets are interned in an open-addressed table keyed by the bit vectors.
+ * Set number 0 is the empty set, the dead state; set number 1 is the starter.
  */
 class Dfa {
     static final Logger LOG = LoggerFactory.getLogger(Dfa.class);
 
-    final Object2ObjectMap<BitSet, StateSet> stateSets;
+    /* flags */
+    static final int POSTSTATE = 1;
+    static final int NOPROGRESS = 2;
+
+    static final int DEAD = 0;      /* the empty state set */
+    static final int STARTER = 1;   /* just the pre state */
+    static final int UNKNOWN = -1;  /* transition not computed yet */
+
+    private static final int INITIAL_SETS = 16;
+    /* enough to make progress after a flush: dead, starter, current, next, and then some. */
+    private static final int MINIMUM_SETS = 16;
+
     final int nstates;
-    final int ncolors; // length of outarc and inchain vectors (really?)
+    final int ncolors; // length of a row of transitions
+    final int wordsper; // longs in the states of a set
     final Cnfa cnfa;
     final RuntimeColorMap cm;
     final Runtime hsreMatcher;
+    /* for the search machine, the literal text at the start of every match, if any. */
+    private final LiteralPrefix prefix;
+
+    /*
+     * The state sets, and the transitions between them, depend only on the machine
+     * and the colors, so they are kept for the life of the DFA. The Runtime keeps one
+     * DFA per machine, so a matcher builds each state set once, no matter how many
+     * times it is used. The number of state sets is not proportional to the complexity
+     * of the machine; in the worst case it is exponential. So there is a limit, derived
+     * from the pattern's memory budget. When we reach it, we flush all the sets and start over.
+     */
+    final int maxsets;
+    int flushes;
+    int nsets;
+    long[] states;  // wordsper per set
+    int[] hashes;
+    int[] setFlags;
+    int[] outs;     // ncolors per set; the next set, or UNKNOWN
+    private int[] table; // set number + 1, 0 for an empty slot
+    private boolean shared; // the arrays above belong to a DfaTable, and must be copied before any change.
+    private final long[] work; // scratch for miss
+    private final long[] keep; // scratch for flush
+
+    /*
+     * For collect: whether each state set has accepting states (0 for not yet known, 1 for no, 2 for yes),
+     * as of some number of flushes; and the state sets already examined in this run.
+     */
+    private byte[] accepts;
+    private int acceptsFlushes;
+    private int[] collected;
+    private int collectRun;
+
+    /* results of the last run, in lieu of output parameters. */
+    int cold; // last point at which no progress had been made (shortest and scan only).
+    boolean hitstop; // whether the run hit the end of the data.
+    boolean sawpost; // whether the run passed the end of a match (scan only).
 
     Dfa(Runtime hsreMatcher, Cnfa cnfa) {
         this.hsreMatcher = hsreMatcher;
         this.cm = hsreMatcher.g.cm;
         this.cnfa = cnfa;
-        /*
-         * To match the C behavior, Benson convinced himself that we needed
-         * to preserve insertion order. He might have been wrong.
-         * Note that this isn't a cache;
-         * Benson believes that the maximum size here is proportional
-         * to the complexity of the machine, not to the input.
-         */
-        stateSets = new Object2ObjectOpenHashMap<BitSet, StateSet>();
+        prefix = cnfa == hsreMatcher.g.search ? hsreMatcher.g.prefix : null;
         nstates = cnfa.states.length;
         ncolors = cnfa.ncolors;
+        wordsper = (nstates + 63) >>> 6;
+        maxsets = maxsets(hsreMatcher.re.options().getDfaCacheBudget());
+        work = new long[wordsper];
+        keep = new long[wordsper];
+        DfaTable eager = hsreMatcher.g.eagerTable(cnfa);
+        if (eager != null) {
+            nsets = eager.nsets;
+            states = eager.states;
+            hashes = eager.hashes;
+            setFlags = eager.setFlags;
+            outs = eager.outs;
+            table = eager.table;
+            shared = true;
+            return;
+        }
+        states = new long[INITIAL_SETS * wordsper];
+        hashes = new int[INITIAL_SETS];
+        setFlags = new int[INITIAL_SETS];
+        outs = new int[INITIAL_SETS * ncolors];
+        table = new int[INITIAL_SETS * 2];
+
+        // the dead state is never interned; nothing leads out of it.
+        nsets = 1;
+        Arrays.fill(outs, 0, ncolors, DEAD);
+        work[cnfa.pre >>> 6] |= 1L << cnfa.pre;
+        int starter = intern(work, NOPROGRESS);
+        assert starter == STARTER;
+    }
+
+    /*
+     * How many sets fit in the budget? Each one has its states, its row of transitions,
+     * its hash and flags, and about two slots in the table.
+     */
+    private int maxsets(long budget) {
+        long perSet = 8L * wordsper + 4L * ncolors + 4 + 4 + 8;
+        long sets = Math.max(MINIMUM_SETS, budget / perSet);
+        // and the arrays have to be addressable.
+        long addressable = Integer.MAX_VALUE / Math.max(ncolors, Math.max(wordsper, 2));
+        return (int) Math.min(sets, addressable);
+    }
+
+    /**
+     * complete - build every state set that can be reached from the starter, so that
+     * no transition is left unknown. This is for machines without lookahead constraints,
+     * whose transitions depend only on the colors.
+     * @param limit the most state sets to build.
+     * @return the sets and their transitions, or null if there are more than the limit, or than fit in the budget.
+     */
+    DfaTable complete(int limit) {
+        assert 0 == (cnfa.flags & Cnfa.HASLACONS);
+        for (int ss = STARTER; ss < nsets; ss++) {
+            for (short co = 0; co < ncolors; co++) {
+                if (outs[ss * ncolors + co] == UNKNOWN) {
+                    miss(ss, co, 0);
+                    if (flushes > 0 || nsets > limit) {
+                        return null;
+                    }
+                }
+            }
+        }
+        return new DfaTable(nsets, Arrays.copyOf(states, nsets * wordsper), Arrays.copyOf(hashes, nsets),
+                Arrays.copyOf(setFlags, nsets), Arrays.copyOf(outs, nsets * ncolors), table.clone());
+    }
+
+    /*
+     * Take copies of arrays that came from a DfaTable, before changing them.
+     */
+    private void unshare() {
+        if (shared) {
+            states = states.clone();
+            hashes = hashes.clone();
+            setFlags = setFlags.clone();
+            outs = outs.clone();
+            table = table.clone();
+            shared = false;
+        }
     }
 
     /**
      * Called at the start of a match.
-     * arguably we could just construct a new DFA each time.
+     * Nothing recorded in the state sets depends on the position, so there is nothing to reset;
+     * the positions of interest are tracked by the matching loops themselves.
+     */
+    int initialize() {
+        return STARTER;
+    }
+
+    /**
+     * @return whether a state set contains a given NFA state.
      */
-    StateSet initialize(int start) {
-        // Discard state sets; reuse would be faster if we kept them,
-        // but then we'd need the real cache.
-        stateSets.clear();
-        StateSet stateSet = new StateSet(nstates, ncolors);
-        stateSet.states.set(cnfa.pre, true);
-        stateSet.flags = StateSet.STARTER
-                | StateSet.LOCKED
-                | StateSet.NOPROGRESS;
-        // Insert into hash table based on that one state.
-        stateSets.put(stateSet.states, stateSet);
-        stateSet.setLastSeen(start);
-        return stateSet;
+    boolean hasState(int ss, int state) {
+        return 0 != (states[ss * wordsper + (state >>> 6)] & (1L << state));
     }
 
     /**
-     * 'miss' -- the state set was not found in the stateSets.
+     * 'miss' -- the transition was not found in the outs.
      *
-     * @param co
-     * @param cp
-     * @return
+     * @param css the current state set.
+     * @param co the color
+     * @param cp the position after the transition, for lookahead constraints.
+     * @return the next state set, possibly {@link #DEAD}.
      */
-    StateSet miss(StateSet css, short co, int cp) {
+    int miss(int css, short co, int cp) {
         if (LOG.isDebugEnabled()) {
-            LOG.debug(String.format("miss: %s %d %d", css, co, cp));
+            LOG.debug(String.format("miss: %d %d %d", css, co, cp));
         }
 
-       // if (Thread.currentThread().isInterrupted()) {
-       //     throw new RegexInterruptedException();
-       //}
-
-        if (css.outs[co] != null) {
+        int cached = outs[css * ncolors + co];
+        if (cached != UNKNOWN) {
             if (LOG.isDebugEnabled()) {
                 LOG.debug("hit!");
             }
-            return css.outs[co];
+            return cached;
         }
 
          /* first, what set of states would we end up in? */
-        BitSet work = new BitSet(nstates);
+        Arrays.fill(work, 0L);
         boolean ispost = false;
         boolean noprogress = true;
         boolean gotstate = false;
 
-        for (int i = 0; i < nstates; i++) {
-            if (css.states.get(i)) {
-                long ca;
-                int ax;
-                short caco;
-                int catarget;
-                for (ax = cnfa.states[i] + 1,
-                        ca = cnfa.arcs[ax],
-                        caco = Cnfa.carcColor(ca),
-                        catarget = Cnfa.carcTarget(ca);
-                     caco != Constants.COLORLESS;
-                     ax++, ca = cnfa.arcs[ax], caco = Cnfa.carcColor(ca), catarget = Cnfa.carcTarget(ca)) {
-
+        int base = css * wordsper;
+        for (int w = 0; w < wordsper; w++) {
+            for (long bits = states[base + w]; bits != 0; bits &= bits - 1) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                for (int ax = cnfa.states[i] + 1; ; ax++) {
+                    long ca = cnfa.arcs[ax];
+                    short caco = Cnfa.carcColor(ca);
+                    if (caco == Constants.COLORLESS) {
+                        break;
+                    }
                     if (caco == co) {
-                        work.set(catarget, true);
+                        int catarget = Cnfa.carcTarget(ca);
+                        work[catarget >>> 6] |= 1L << catarget;
                         gotstate = true;
                         if (catarget == cnfa.post) {
                             ispost = true;
@@ -127,9 +236,6 @@ class Dfa {
                         if (0 == Cnfa.carcColor(cnfa.arcs[cnfa.states[catarget]])) {
                             noprogress = false;
                         }
-//                        if (LOG.isDebugEnabled()) {
-//                            LOG.debug(String.format("%d -> %d", i, catarget));
-//                        }
                     }
                 }
             }
@@ -138,26 +244,27 @@ class Dfa {
         boolean sawlacons = false;
         while (dolacons) { /* transitive closure */
             dolacons = false;
-            for (int i = 0; i < nstates; i++) {
-                if (work.get(i)) {
-                    long ca;
-                    int ax;
-                    short caco;
-                    int catarget;
-                    for (ax = cnfa.states[i] + 1, ca = cnfa.arcs[ax], caco = Cnfa.carcColor(ca), catarget = Cnfa.carcTarget(ca);
-                            caco != Constants.COLORLESS;
-                            ax++, ca = cnfa.arcs[ax], caco = Cnfa.carcColor(ca), catarget = Cnfa.carcTarget(ca)) {
+            for (int w = 0; w < wordsper; w++) {
+                for (long bits = work[w]; bits != 0; bits &= bits - 1) {
+                    int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    for (int ax = cnfa.states[i] + 1; ; ax++) {
+                        long ca = cnfa.arcs[ax];
+                        short caco = Cnfa.carcColor(ca);
+                        if (caco == Constants.COLORLESS) {
+                            break;
+                        }
                         if (caco <= ncolors) {
                             continue; /* NOTE CONTINUE */
                         }
                         sawlacons = true;
-                        if (work.get(catarget)) {
+                        int catarget = Cnfa.carcTarget(ca);
+                        if (0 != (work[catarget >>> 6] & (1L << catarget))) {
                             continue; /* NOTE CONTINUE */
                         }
                         if (!lacon(cp, caco)) {
                             continue; /* NOTE CONTINUE */
                         }
-                        work.set(catarget, true);
+                        work[catarget >>> 6] |= 1L << catarget;
                         dolacons = true;
                         if (catarget == cnfa.post) {
                             ispost = true;
@@ -165,38 +272,136 @@ class Dfa {
                         if (0 == Cnfa.carcColor(cnfa.arcs[cnfa.states[catarget]])) {
                             noprogress = false;
                         }
-
-//                        if (LOG.isDebugEnabled()) {
-//                            LOG.debug("%d :> %d", i, catarget);
-//                        }
                     }
                 }
             }
         }
 
+        int ss;
         if (!gotstate) {
-            return null;
+            ss = DEAD;
+        } else {
+            int flags = (ispost ? POSTSTATE : 0) | (noprogress ? NOPROGRESS : 0);
+            ss = intern(work, flags);
+            if (ss == UNKNOWN) {
+                /* out of room */
+                css = flush(css);
+                ss = intern(work, flags);
+            }
+        }
+        if (!sawlacons) {
+            unshare();
+            outs[css * ncolors + co] = ss;
         }
 
-        StateSet stateSet = stateSets.get(work);
-        if (stateSet == null) {
-            stateSet = new StateSet(nstates, ncolors);
-            stateSet.ins = new Arcp(null, Constants.WHITE);
-            stateSet.states = work;
-            stateSet.flags = ispost ? StateSet.POSTSTATE : 0;
-            if (noprogress) {
-                stateSet.flags |= StateSet.NOPROGRESS;
+        return ss;
+    }
+
+    /**
+     * flush - discard all the state sets, except that we retain the current one.
+     * @param css the current state set.
+     * @return the new number of the current state set.
+     */
+    private int flush(int css) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("flush: %d sets", nsets));
+        }
+        flushes++;
+        hsreMatcher.re.noteDfaCacheFlush();
+        unshare();
+
+        System.arraycopy(states, css * wordsper, keep, 0, wordsper);
+        int cssFlags = setFlags[css];
+        nsets = STARTER + 1;
+        Arrays.fill(outs, STARTER * ncolors, (STARTER + 1) * ncolors, UNKNOWN);
+        rehash(table.length);
+        if (css == STARTER) {
+            return STARTER;
+        }
+        return intern(keep, cssFlags);
+    }
+
+    /**
+     * intern - find or add a state set.
+     * @param words the states.
+     * @param flags the flags for the set, if it is new.
+     * @return the set number, or {@link #UNKNOWN} if it is new and there's no room.
+     */
+    private int intern(long[] words, int flags) {
+        int hash = 1;
+        for (int w = 0; w < wordsper; w++) {
+            long word = words[w];
+            hash = 31 * hash + (int)(word ^ (word >>> 32));
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        for (int entry = table[slot]; entry != 0; entry = table[slot]) {
+            int ss = entry - 1;
+            if (hashes[ss] == hash && sameStates(ss, words)) {
+                return ss;
             }
-            /* lastseen to be dealt with by caller */
-            stateSets.put(work, stateSet);
+            slot = (slot + 1) & mask;
         }
-        if (!sawlacons) {
-            css.outs[co] = stateSet;
-            css.inchain[co] = stateSet.ins;
-            stateSet.ins = new Arcp(css, co);
+
+        /* a new one */
+        int ss = nsets;
+        if (ss == maxsets) {
+            return UNKNOWN;
+        }
+        unshare();
+        if (ss == hashes.length) {
+            grow();
         }
+        nsets++;
+        System.arraycopy(words, 0, states, ss * wordsper, wordsper);
+        hashes[ss] = hash;
+        setFlags[ss] = flags;
+        Arrays.fill(outs, ss * ncolors, (ss + 1) * ncolors, UNKNOWN);
+        if (nsets * 2 > table.length) {
+            rehash(table.length * 2);
+        } else {
+            table[slot] = ss + 1;
+        }
+        return ss;
+    }
+
+    private boolean sameStates(int ss, long[] words) {
+        int base = ss * wordsper;
+        for (int w = 0; w < wordsper; w++) {
+            if (states[base + w] != words[w]) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        return stateSet;
+    private void grow() {
+        int capacity = (int) Math.min(hashes.length * 2L, maxsets);
+        states = Arrays.copyOf(states, capacity * wordsper);
+        hashes = Arrays.copyOf(hashes, capacity);
+        setFlags = Arrays.copyOf(setFlags, capacity);
+        outs = Arrays.copyOf(outs, capacity * ncolors);
+    }
+
+    private void rehash(int size) {
+        if (size == table.length) {
+            Arrays.fill(table, 0);
+        } else {
+            table = new int[size];
+        }
+        int mask = size - 1;
+        // the dead state is not in the table.
+        for (int ss = STARTER; ss < nsets; ss++) {
+            int slot = hashes[ss] & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = ss + 1;
+        }
     }
 
     boolean lacon(int cp, short co) {
@@ -208,21 +413,25 @@ class Dfa {
         // indexing would be related... The 'arc' should have a 'color' which is an index
         //
         RuntimeSubexpression subex = hsreMatcher.g.lookaheadConstraintMachine(n);
-        Dfa d = new Dfa(hsreMatcher, subex.machine);
-        end = d.longest(cp, hsreMatcher.data.length(), null);
+        Dfa d = hsreMatcher.getDfa(subex.machine);
+        end = d.longest(cp, hsreMatcher.dataEnd);
+        if (d.hitstop && cp < hsreMatcher.laconEdge) {
+            hsreMatcher.laconEdge = cp;
+        }
         return (subex.number != 0) ? (end != -1) : (end == -1);
     }
 
     /**
      * longest - longest-preferred matching engine
      *
+     * Sets {@link #hitstop}.
      * @return endpoint or -1
      */
-    int longest(int start, int stop, boolean[] hitstopp) {
+    int longest(int start, int stop) {
         int cp;
-        int realstop = (stop == hsreMatcher.dataLength) ? stop : stop + 1;
+        int realstop = (stop == hsreMatcher.dataEnd) ? stop : stop + 1;
         short co;
-        StateSet css;
+        int css;
         int post;
 
         if (LOG.isDebugEnabled()) {
@@ -230,83 +439,478 @@ class Dfa {
         }
 
     /* initialize */
-        css = initialize(start);
+        css = initialize();
         cp = start;
-        if (hitstopp != null) {
-            hitstopp[0] = false;
-        }
+        hitstop = false;
 
 
     /* startup */
-        if (cp == 0) {
+        if (cp == hsreMatcher.dataStart) {
             co = cnfa.bos[0 != (hsreMatcher.eflags & Flags.REG_NOTBOL) ? 0 : 1];
             if (LOG.isDebugEnabled()) {
                 LOG.debug(String.format("color %d", co));
             }
         } else {
-            co = cm.getcolor(hsreMatcher.data.charAt(cp - 1));
+            co = cm.getcolor(hsreMatcher.charAt(cp - 1));
             if (LOG.isDebugEnabled()) {
-                LOG.debug(String.format("char %c, color %d\n", hsreMatcher.data.charAt(cp - 1), co));
+                LOG.debug(String.format("char %c, color %d\n", hsreMatcher.charAt(cp - 1), co));
             }
         }
         css = miss(css, co, cp);
-        if (css == null) {
+        if (css == DEAD) {
             return -1;
         }
-        css.setLastSeen(cp);
+        post = -1;
+        if (0 != (setFlags[css] & POSTSTATE)) {
+            post = cp;
+        }
 
-        StateSet ss;
+        int ss;
     /* main loop */
         while (cp < realstop) {
-            co = cm.getcolor(hsreMatcher.data.charAt(cp));
-            ss = css.outs[co];
-            if (ss == null) {
+            co = cm.getcolor(hsreMatcher.charAt(cp));
+            ss = outs[css * ncolors + co];
+            if (ss == UNKNOWN) {
                 ss = miss(css, co, cp + 1);
-                if (ss == null) {
-                    break;  /* NOTE BREAK OUT */
-                }
+            }
+            if (ss == DEAD) {
+                break;  /* NOTE BREAK OUT */
             }
             cp++;
-            ss.setLastSeen(cp);
+            if (0 != (setFlags[ss] & POSTSTATE)) {
+                post = cp;
+            }
             css = ss;
         }
 
     /* shutdown */
         if (LOG.isDebugEnabled()) {
-            LOG.debug(String.format("+++ shutdown +++ at %s", css));
+            LOG.debug(String.format("+++ shutdown +++ at %d", css));
         }
 
-        if (cp == hsreMatcher.dataLength && stop == hsreMatcher.dataLength) {
-            if (hitstopp != null) {
-                hitstopp[0] = true;
-            }
+        if (cp == hsreMatcher.dataEnd && stop == hsreMatcher.dataEnd) {
+            hitstop = true;
             co = cnfa.eos[0 != (hsreMatcher.eflags & Flags.REG_NOTEOL) ? 0 : 1];
             if (LOG.isDebugEnabled()) {
                 LOG.debug(String.format("color %d", co));
             }
             ss = miss(css, co, cp);
         /* special case:  match ended at eol? */
-            if (ss != null && (0 != (ss.flags & StateSet.POSTSTATE))) {
+            if (0 != (setFlags[ss] & POSTSTATE)) {
                 return cp;
-            } else if (ss != null) {
-                ss.setLastSeen(cp); /* to be tidy */
             }
         }
 
-    /* find last match, if any */
-        post = -1;
-        for (StateSet thisSS : stateSets.values()) { //.object2ObjectEntrySet()) {
-            if (0 != (thisSS.flags & StateSet.POSTSTATE) && post != thisSS.getLastSeen()
-                    && (post == -1 || post < thisSS.getLastSeen())) {
-                post = thisSS.getLastSeen();
+    /* last match, if any, is the last time we were in a post state */
+        if (post != -1) {       /* found one */
+            return post - 1;
+        }
+        return -1;
+    }
+
+
+    /**
+     * collect - run a union of patterns over all the data, and find out which of its accepting
+     * states it ever reaches; see {@link PatternUnion}. Each state set is examined once per run,
+     * so this is much like a search that never stops to report a match.
+     * @param accepting the accepting states, as a bit vector.
+     * @param memberOfState for each accepting state, which member it accepts.
+     * @param found set for each member found.
+     * @return the number of members found; this stops as soon as they all are.
+     */
+    int collect(long[] accepting, int[] memberOfState, boolean[] found) {
+        int nfound = 0;
+        if (collected == null) {
+            collected = new int[hashes.length];
+            accepts = new byte[hashes.length];
+        }
+        int run = ++collectRun;
+        int cp = hsreMatcher.dataStart;
+        int css = miss(initialize(), cnfa.bos[0 != (hsreMatcher.eflags & Flags.REG_NOTBOL) ? 0 : 1], cp);
+        for (;;) {
+            if (css == DEAD) {
+                return nfound;
+            }
+            if (flushes != acceptsFlushes) {
+                /* the sets have been renumbered */
+                acceptsFlushes = flushes;
+                Arrays.fill(accepts, (byte) 0);
+                run = ++collectRun;
+            }
+            if (css >= collected.length) {
+                collected = Arrays.copyOf(collected, hashes.length);
+                accepts = Arrays.copyOf(accepts, hashes.length);
+            }
+            if (accepts[css] != 1 && collected[css] != run) {
+                collected[css] = run;
+                int n = collectMembers(css, accepting, memberOfState, found);
+                if (accepts[css] == 0) {
+                    accepts[css] = (byte) (hasAccepting(css, accepting) ? 2 : 1);
+                }
+                nfound += n;
+                if (nfound == found.length) {
+                    return nfound;
+                }
+            }
+            if (cp == hsreMatcher.dataEnd) {
+                break;
+            }
+            short co = cm.getcolor(hsreMatcher.charAt(cp));
+            int ss = outs[css * ncolors + co];
+            if (ss == UNKNOWN) {
+                ss = miss(css, co, cp + 1);
             }
+            css = ss;
+            cp++;
         }
-        if (post != -1) {       /* found one */
+        css = miss(css, cnfa.eos[0 != (hsreMatcher.eflags & Flags.REG_NOTEOL) ? 0 : 1], cp);
+        if (css != DEAD) {
+            nfound += collectMembers(css, accepting, memberOfState, found);
+        }
+        return nfound;
+    }
+
+    private boolean hasAccepting(int ss, long[] accepting) {
+        int base = ss * wordsper;
+        for (int w = 0; w < wordsper; w++) {
+            if (0 != (states[base + w] & accepting[w])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int collectMembers(int ss, long[] accepting, int[] memberOfState, boolean[] found) {
+        int nfound = 0;
+        int base = ss * wordsper;
+        for (int w = 0; w < wordsper; w++) {
+            for (long bits = states[base + w] & accepting[w]; bits != 0; bits &= bits - 1) {
+                int member = memberOfState[(w << 6) + Long.numberOfTrailingZeros(bits)];
+                if (!found[member]) {
+                    found[member] = true;
+                    nfound++;
+                }
+            }
+        }
+        return nfound;
+    }
+
+    /**
+     * reach - how far can the matches that begin in a range go?
+     * This runs a search machine from start, like {@link #shortest}, but it doesn't stop at the first
+     * match, and it takes the pre state out of the set at limit, so that no matches begin after that.
+     *
+     * @param start where to start, usually the coldstart point from {@link #shortest}.
+     * @param limit where the last match of interest may begin.
+     * @return the end of the last match to end, or -1
+     */
+    int reach(int start, int limit) {
+        int cp = start;
+        short co;
+        int css = initialize();
+        int ss;
+
+        if (cp == hsreMatcher.dataStart) {
+            co = cnfa.bos[0 != (hsreMatcher.eflags & Flags.REG_NOTBOL) ? 0 : 1];
+        } else {
+            co = cm.getcolor(hsreMatcher.charAt(cp - 1));
+        }
+        css = miss(css, co, cp);
+        if (cp == limit) {
+            css = dropPre(css);
+        }
+        if (css == DEAD) {
+            return -1;
+        }
+        int post = -1;
+        if (0 != (setFlags[css] & POSTSTATE)) {
+            post = cp;
+        }
+
+        while (cp < hsreMatcher.dataEnd) {
+            co = cm.getcolor(hsreMatcher.charAt(cp));
+            ss = outs[css * ncolors + co];
+            if (ss == UNKNOWN) {
+                ss = miss(css, co, cp + 1);
+            }
+            if (ss == DEAD) {
+                break;  /* NOTE BREAK OUT */
+            }
+            cp++;
+            if (0 != (setFlags[ss] & POSTSTATE)) {
+                post = cp;
+            }
+            css = ss;
+            if (cp == limit) {
+                css = dropPre(css);
+                if (css == DEAD) {
+                    break;  /* NOTE BREAK OUT */
+                }
+            }
+        }
+
+        if (cp == hsreMatcher.dataEnd && css != DEAD) {
+            co = cnfa.eos[0 != (hsreMatcher.eflags & Flags.REG_NOTEOL) ? 0 : 1];
+            ss = miss(css, co, cp);
+            if (0 != (setFlags[ss] & POSTSTATE)) {
+                return cp;
+            }
+        }
+
+        if (post != -1) {
             return post - 1;
         }
         return -1;
     }
 
+    /*
+     * The same set, less the pre state.
+     */
+    private int dropPre(int css) {
+        if (!hasState(css, cnfa.pre)) {
+            return css;
+        }
+        System.arraycopy(states, css * wordsper, work, 0, wordsper);
+        work[cnfa.pre >>> 6] &= ~(1L << cnfa.pre);
+        boolean empty = true;
+        for (int w = 0; w < wordsper; w++) {
+            if (work[w] != 0) {
+                empty = false;
+                break;
+            }
+        }
+        if (empty) {
+            return DEAD;
+        }
+        int flags = setFlags[css];
+        int ss = intern(work, flags);
+        if (ss == UNKNOWN) {
+            flush(css);
+            ss = intern(work, flags);
+        }
+        return ss;
+    }
+
+    /**
+     * leftmost - longest-preferred matching engine, run backwards, for a reversed machine.
+     * See {@link Cnfa#reverse()}. Since the reversed machine accepts a match that ends anywhere
+     * before the start point, this finds the leftmost beginning of any match that ends
+     * at or before the start point.
+     *
+     * @param start where to start, at the right.
+     * @param stop how far to go, at the left.
+     * @return the leftmost start of a match, or -1
+     */
+    int leftmost(int start, int stop) {
+        int cp = start;
+        int realstop = (stop == hsreMatcher.dataStart) ? stop : stop - 1;
+        short co;
+        int css = initialize();
+        int ss;
+
+        if (cp == hsreMatcher.dataEnd) {
+            co = cnfa.eos[0 != (hsreMatcher.eflags & Flags.REG_NOTEOL) ? 0 : 1];
+        } else {
+            co = cm.getcolor(hsreMatcher.charAt(cp));
+        }
+        css = miss(css, co, cp);
+        if (css == DEAD) {
+            return -1;
+        }
+        int post = -1;
+
+        while (cp > realstop) {
+            co = cm.getcolor(hsreMatcher.charAt(cp - 1));
+            ss = outs[css * ncolors + co];
+            if (ss == UNKNOWN) {
+                ss = miss(css, co, cp - 1);
+            }
+            if (ss == DEAD) {
+                break;  /* NOTE BREAK OUT */
+            }
+            cp--;
+            if (0 != (setFlags[ss] & POSTSTATE)) {
+                post = cp;
+            }
+            css = ss;
+        }
+
+        if (cp == hsreMatcher.dataStart && stop == hsreMatcher.dataStart) {
+            co = cnfa.bos[0 != (hsreMatcher.eflags & Flags.REG_NOTBOL) ? 0 : 1];
+            ss = miss(css, co, cp);
+            if (0 != (setFlags[ss] & POSTSTATE)) {
+                return cp;
+            }
+        }
+
+        if (post != -1) {
+            return post + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * begin - the state set with which a search starts at a point, having seen
+     * the character before it, or the beginning of the data.
+     */
+    int begin(int start) {
+        short co;
+        if (start == hsreMatcher.dataStart) {
+            co = cnfa.bos[0 != (hsreMatcher.eflags & Flags.REG_NOTBOL) ? 0 : 1];
+        } else {
+            co = cm.getcolor(hsreMatcher.charAt(start - 1));
+        }
+        return miss(STARTER, co, start);
+    }
+
+    /**
+     * scan - carry a search machine forward over more data; see {@link StreamMatcher}.
+     * Unlike {@link #shortest}, this doesn't stop at the end of a match, and doesn't treat
+     * stop as the end of the data, since more may follow.
+     * Sets {@link #sawpost}, and advances {@link #cold}, though not past any point where
+     * a lookahead constraint ran into the end of the data.
+     *
+     * @param css the state set as of start.
+     * @return the state set as of stop; {@link #DEAD} if no match can begin from here on.
+     */
+    int scan(int css, int start, int stop) {
+        int cp = start;
+        sawpost = 0 != (setFlags[css] & POSTSTATE);
+        if (css == DEAD) {
+            cold = stop;
+            return DEAD;
+        }
+        int candidate = -1; /* the next place that the literal prefix occurs, if known */
+        while (cp < stop) {
+            if (prefix != null && candidate < cp && 0 != (setFlags[css] & NOPROGRESS)) {
+                /* nothing in progress, so skip to the next occurrence of the prefix, or to where one could run past stop. */
+                candidate = prefix.find(hsreMatcher, cp, stop);
+                if (candidate == -1) {
+                    candidate = Math.max(cp, stop - prefix.length() + 1);
+                }
+                if (candidate > cp) {
+                    cp = candidate;
+                    css = miss(STARTER, cm.getcolor(hsreMatcher.charAt(cp - 1)), cp);
+                    if (css == DEAD) {
+                        break;  /* NOTE BREAK OUT */
+                    }
+                    if (cp < hsreMatcher.laconEdge) {
+                        cold = cp;
+                    }
+                    continue;
+                }
+            }
+            short co = cm.getcolor(hsreMatcher.charAt(cp));
+            int ss = outs[css * ncolors + co];
+            if (ss == UNKNOWN) {
+                ss = miss(css, co, cp + 1);
+            }
+            cp++;
+            css = ss;
+            if (ss == DEAD) {
+                break;  /* NOTE BREAK OUT */
+            }
+            int flags = setFlags[ss];
+            if (0 != (flags & NOPROGRESS) && cp < hsreMatcher.laconEdge) {
+                cold = cp;
+            }
+            if (0 != (flags & POSTSTATE)) {
+                sawpost = true;
+            }
+        }
+        if (css == DEAD && hsreMatcher.laconEdge == Integer.MAX_VALUE) {
+            cold = stop; /* nothing is in progress, and nothing can begin */
+        }
+        return css;
+    }
+
+    /**
+     * survives - might a match that begins in a range continue past the end of the data?
+     * This runs the search machine from start, taking the pre state out of the set at limit,
+     * as {@link #reach} does, and reports whether anything other than the post state
+     * is left at the end.
+     *
+     * @param start where to start; a point at which nothing was in progress.
+     * @param limit where the last match of interest may begin.
+     */
+    boolean survives(int start, int limit) {
+        int cp = start;
+        int css = begin(start);
+        if (cp == limit) {
+            css = dropPre(css);
+        }
+        while (css != DEAD && cp < hsreMatcher.dataEnd) {
+            short co = cm.getcolor(hsreMatcher.charAt(cp));
+            int ss = outs[css * ncolors + co];
+            if (ss == UNKNOWN) {
+                ss = miss(css, co, cp + 1);
+            }
+            cp++;
+            css = ss;
+            if (cp == limit && css != DEAD) {
+                css = dropPre(css);
+            }
+        }
+        if (css == DEAD) {
+            return false;
+        }
+        int base = css * wordsper;
+        for (int w = 0; w < wordsper; w++) {
+            long bits = states[base + w];
+            if ((cnfa.post >>> 6) == w) {
+                bits &= ~(1L << cnfa.post);
+            }
+            if (bits != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * save - the states of a set, which, unlike its number, survive a flush, and
+     * mean the same thing to any DFA for the same machine.
+     * @param ss the set.
+     * @param words somewhere to put them, if it is the right size.
+     */
+    long[] save(int ss, long[] words) {
+        if (words == null || words.length != wordsper) {
+            words = new long[wordsper];
+        }
+        System.arraycopy(states, ss * wordsper, words, 0, wordsper);
+        return words;
+    }
+
+    /**
+     * restore - the set with the states from {@link #save}.
+     */
+    int restore(long[] words) {
+        boolean empty = true;
+        boolean ispost = false;
+        boolean noprogress = true;
+        for (int w = 0; w < wordsper; w++) {
+            for (long bits = words[w]; bits != 0; bits &= bits - 1) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                empty = false;
+                if (i == cnfa.post) {
+                    ispost = true;
+                }
+                if (0 == Cnfa.carcColor(cnfa.arcs[cnfa.states[i]])) {
+                    noprogress = false;
+                }
+            }
+        }
+        if (empty) {
+            return DEAD;
+        }
+        int flags = (ispost ? POSTSTATE : 0) | (noprogress ? NOPROGRESS : 0);
+        int ss = intern(words, flags);
+        if (ss == UNKNOWN) {
+            flush(STARTER);
+            ss = intern(words, flags);
+        }
+        return ss;
+    }
 
     /**
      * shortest - shortest-preferred matching engine
@@ -314,31 +918,30 @@ class Dfa {
      * @param start   where the match should start
      * @param min     match must end at or after here
      * @param max     match must end at or before here
-     * @param coldp   store coldstart pointer here, if non-null. This is the _beginning_ of the match region.
-     * @param hitstop record whether hit end of total input
+     * Sets {@link #cold}, the coldstart pointer; this is the _beginning_ of the match region.
+     * Sets {@link #hitstop}, whether we hit the end of the total input.
      * @return endpoint or -1
      */
-    int shortest(int start, int min, int max, int[] coldp, boolean[] hitstop) {
+    int shortest(int start, int min, int max) {
         int cp;
-        int realmin = min == hsreMatcher.dataLength ? min : min + 1;
-        int realmax = max == hsreMatcher.dataLength ? max : max + 1;
+        int realmin = min == hsreMatcher.dataEnd ? min : min + 1;
+        int realmax = max == hsreMatcher.dataEnd ? max : max + 1;
         short co;
-        StateSet ss;
-        StateSet css;
+        int ss;
+        int css;
 
         if (LOG.isDebugEnabled()) {
             LOG.debug(" --- startup ---");
         }
 
     /* initialize */
-        css = initialize(start);
+        css = initialize();
         cp = start;
-        if (hitstop != null) {
-            hitstop[0] = false;
-        }
+        hitstop = false;
+        cold = start;
 
     /* startup */
-        if (cp == 0) {
+        if (cp == hsreMatcher.dataStart) {
             /* If the NOTBOL flag is true, we take color as bos[0], else 1. So, bos[1] is when we are at the _effective_ bos, [0] when we are not. */
             co = cnfa.bos[0 != (hsreMatcher.eflags & Flags.REG_NOTBOL) ? 0 : 1];
             if (LOG.isDebugEnabled()) {
@@ -346,83 +949,82 @@ class Dfa {
             }
         } else {
             /* Not at bos at all, set color based on prior character. */
-            co = cm.getcolor(hsreMatcher.data.charAt(cp - 1));
+            co = cm.getcolor(hsreMatcher.charAt(cp - 1));
             if (LOG.isDebugEnabled()) {
-                LOG.debug(String.format("char %c, color %d\n", hsreMatcher.data.charAt(cp - 1), co));
+                LOG.debug(String.format("char %c, color %d\n", hsreMatcher.charAt(cp - 1), co));
             }
         }
 
         css = miss(css, co, cp);
-        if (css == null) {
+        if (css == DEAD) {
             return -1;
         }
 
-        css.setLastSeen(cp);
+        /* the starter state set is a no-progress state, so we begin cold. */
+        int nopr = cp;
         ss = css;
+        int candidate = -1; /* the next place that the literal prefix occurs, if known */
 
     /* main loop */
         while (cp < realmax) {
-            co = cm.getcolor(hsreMatcher.data.charAt(cp));
-            ss = css.outs[co];
-            if (ss == null) {
-                ss = miss(css, co, cp + 1);
-                if (ss == null) {
-                    break;  /* NOTE BREAK OUT */
+            if (prefix != null && candidate < cp && 0 != (setFlags[css] & NOPROGRESS)) {
+                /* nothing in progress, so no match can begin before the next occurrence of the prefix. */
+                candidate = prefix.find(hsreMatcher, cp, hsreMatcher.dataEnd);
+                if (candidate == -1) {
+                    return -1;
+                }
+                if (candidate > cp) {
+                    cp = candidate;
+                    css = miss(STARTER, cm.getcolor(hsreMatcher.charAt(cp - 1)), cp);
+                    if (css == DEAD) {
+                        return -1;
+                    }
+                    nopr = cp;
+                    ss = css;
+                    continue;
                 }
             }
+            co = cm.getcolor(hsreMatcher.charAt(cp));
+            ss = outs[css * ncolors + co];
+            if (ss == UNKNOWN) {
+                ss = miss(css, co, cp + 1);
+            }
+            if (ss == DEAD) {
+                break;  /* NOTE BREAK OUT */
+            }
 
             cp++;
-            ss.setLastSeen(cp);
+            if (0 != (setFlags[ss] & NOPROGRESS)) {
+                nopr = cp;
+            }
             css = ss;
-            if (0 != (ss.flags & StateSet.POSTSTATE) && cp >= realmin) {
+            if (0 != (setFlags[ss] & POSTSTATE) && cp >= realmin) {
                 break;      /* NOTE BREAK OUT */
             }
         }
 
-        if (ss == null) {
+        if (ss == DEAD) {
             return -1;
         }
 
-        int matchStart = lastcold();
-        if (coldp != null) {    /* report last no-progress state set, if any */
-            coldp[0] = matchStart;
-        }
+        cold = nopr;    /* report last no-progress state set, if any */
 
-        if (0 != (ss.flags & StateSet.POSTSTATE) && cp > min) {
+        if (0 != (setFlags[ss] & POSTSTATE) && cp > min) {
             assert cp >= realmin;
             cp--;
-        } else if (cp == hsreMatcher.dataLength && max == hsreMatcher.dataLength) {
+        } else if (cp == hsreMatcher.dataEnd && max == hsreMatcher.dataEnd) {
             co = cnfa.eos[0 != (hsreMatcher.eflags & Flags.REG_NOTEOL) ? 0 : 1];
             ss = miss(css, co, cp);
         /* match might have ended at eol */
-            if ((ss == null || (0 == (ss.flags & StateSet.POSTSTATE)))
-                    && hitstop != null) {
-                hitstop[0] = true;
+            if (0 == (setFlags[ss] & POSTSTATE)) {
+                hitstop = true;
             }
         }
 
-        if (ss == null || 0 == (ss.flags & StateSet.POSTSTATE)) {
+        if (0 == (setFlags[ss] & POSTSTATE)) {
             return -1;
         }
 
         return cp;
     }
-
-
-    /**
-     * lastcold - determine last point at which no progress had been made
-     *
-     * @return offset or -1
-     */
-    int lastcold() {
-        int nopr = 0;
-
-        for (StateSet ss : stateSets.values()) {
-            if (0 != (ss.flags & StateSet.NOPROGRESS) && nopr < ss.getLastSeen()) {
-                nopr = ss.getLastSeen();
-            }
-        }
-        return nopr;
-    }
 }
-
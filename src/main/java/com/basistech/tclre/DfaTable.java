@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * The complete DFA for a machine, built when the pattern is compiled; see
+ * {@link PatternOptions#getEagerDfaStates()}. The arrays are laid out as in {@link Dfa},
+ * and every transition is known, so a DFA that starts from these never misses.
+ * This is immutable; a DFA that needs to add a state set copies the arrays first.
+ */
+final class DfaTable implements Serializable {
+    static final long serialVersionUID = 1L;
+
+    final int nsets;
+    final long[] states;
+    final int[] hashes;
+    final int[] setFlags;
+    final int[] outs; // set * ncolors + color
+    final int[] table;
+
+    DfaTable(int nsets, long[] states, int[] hashes, int[] setFlags, int[] outs, int[] table) {
+        this.nsets = nsets;
+        this.states = states;
+        this.hashes = hashes;
+        this.setFlags = setFlags;
+        this.outs = outs;
+        this.table = table;
+    }
+
+    /**
+     * Write the binary form; see {@link HsrePattern#writeTo(DataOutput)}.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(nsets);
+        Codec.writeLongs(out, states);
+        Codec.writeInts(out, hashes);
+        Codec.writeInts(out, setFlags);
+        Codec.writeInts(out, outs);
+        Codec.writeInts(out, table);
+    }
+
+    static DfaTable readFrom(ByteBuffer in) {
+        int nsets = in.getInt();
+        long[] states = Codec.readLongs(in);
+        int[] hashes = Codec.readInts(in);
+        int[] setFlags = Codec.readInts(in);
+        int[] outs = Codec.readInts(in);
+        int[] table = Codec.readInts(in);
+        return new DfaTable(nsets, states, hashes, setFlags, outs, table);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import java.util.Arrays;
+
+/**
+ * Failures to dissect, remembered for the duration of one match attempt.
+ * Backreference dissection tries one midpoint after another, and the same subexpression
+ * gets tried over the same stretch of data many times over. Its outcome is determined
+ * by the subexpression, the stretch, and whatever the backreferences in it read from outside;
+ * this keeps the failures, keyed on that, in a fixed number of slots. A new failure replaces whatever
+ * was in its slot; forgetting costs time, but never changes the outcome.
+ */
+class DissectMemo {
+    private static final int SLOTS = 4096; // a power of two.
+    private static final int WIDTH = 5;
+    private final int[] keys = new int[SLOTS * WIDTH];
+    private final int[] stamps = new int[SLOTS];
+    private int generation = 1;
+
+    /**
+     * Forget everything.
+     */
+    void clear() {
+        generation++;
+        if (generation == 0) {
+            Arrays.fill(stamps, 0);
+            generation = 1;
+        }
+    }
+
+    /**
+     * @return true if this has already failed.
+     */
+    boolean failed(int id, int begin, int end, int refBegin, int refEnd) {
+        int slot = slot(id, begin, end, refBegin, refEnd);
+        if (stamps[slot] != generation) {
+            return false;
+        }
+        int x = slot * WIDTH;
+        return keys[x] == id && keys[x + 1] == begin && keys[x + 2] == end
+                && keys[x + 3] == refBegin && keys[x + 4] == refEnd;
+    }
+
+    /**
+     * Remember a failure.
+     */
+    void fail(int id, int begin, int end, int refBegin, int refEnd) {
+        int slot = slot(id, begin, end, refBegin, refEnd);
+        stamps[slot] = generation;
+        int x = slot * WIDTH;
+        keys[x] = id;
+        keys[x + 1] = begin;
+        keys[x + 2] = end;
+        keys[x + 3] = refBegin;
+        keys[x + 4] = refEnd;
+    }
+
+    private static int slot(int id, int begin, int end, int refBegin, int refEnd) {
+        int h = id;
+        h = h * 31 + begin;
+        h = h * 31 + end;
+        h = h * 31 + refBegin;
+        h = h * 31 + refEnd;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h & (SLOTS - 1);
+    }
+}
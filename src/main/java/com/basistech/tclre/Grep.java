@@ -16,41 +16,83 @@
 
 package com.basistech.tclre;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.MatchResult;
 
 import com.google.common.base.Charsets;
-import com.google.common.io.CharSource;
-import com.google.common.io.Files;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
 
 /**
  * Grep command line to exercise the regex package.
+ * Inputs are memory-mapped and split into chunks that end at newlines, and the chunks,
+ * from all the inputs, are searched in parallel; the output is in order. The pattern is
+ * newline-sensitive, and a line is reported if a match begins in it.
  */
 @SuppressWarnings("PMD")
 public final class Grep {
-    @Argument(required = true)
+    @Argument(required = true, metaVar = "PATTERN")
     String pattern;
-    @Argument(index = 1)
+    @Argument(index = 1, metaVar = "FILE")
     List<File> inputs;
+    @Option(name = "-c", usage = "print only a count of the selected lines for each file")
+    boolean count;
+    @Option(name = "-l", usage = "print only the names of the files with selected lines")
+    boolean filesWithMatches;
+    @Option(name = "-v", usage = "select the lines that do not match")
+    boolean invert;
+    @Option(name = "-o", usage = "print only the matches, one per line")
+    boolean onlyMatching;
+    @Option(name = "-n", usage = "print line numbers")
+    boolean lineNumbers;
+    @Option(name = "-i", usage = "ignore case")
+    boolean ignoreCase;
+    @Option(name = "-t", metaVar = "N", usage = "search with N threads; the default is one per processor")
+    int threads = java.lang.Runtime.getRuntime().availableProcessors();
+    @Option(name = "-chunk", metaVar = "BYTES", usage = "the size of the pieces in which files are searched")
+    int chunkSize = 4 << 20;
+    @Option(name = "-stats", usage = "print throughput statistics on standard error")
+    boolean stats;
+
     private RePattern re;
+    private Writer out;
+    private long totalBytes;
+    private long totalLines;
+    private long totalSelected;
 
     private Grep() {
         //
     }
 
-    public static void main(String[] args) throws IOException, RegexException {
+    public static void main(String[] args) throws IOException, RegexException, InterruptedException {
         Grep that = new Grep();
         CmdLineParser parser = new CmdLineParser(that);
         try {
             if (args.length == 0) {
-                System.err.println("grep PATTERN file1 ... fileN");
+                System.err.println("grep [options] PATTERN file1 ... fileN");
                 parser.printUsage(System.err);
                 return;
             }
@@ -62,31 +104,301 @@ public final class Grep {
             System.exit(1);
         }
 
-        that.go();
+        boolean found = that.go();
+        System.exit(found ? 0 : 1);
+    }
 
+    private boolean go() throws IOException, RegexException, InterruptedException {
+        EnumSet<PatternFlags> flags = EnumSet.of(PatternFlags.ADVANCED, PatternFlags.NLSTOP, PatternFlags.NLANCH);
+        if (ignoreCase) {
+            flags.add(PatternFlags.ICASE);
+        }
+        re = Compiler.compile(pattern, flags);
+        if (inputs == null) {
+            inputs = Collections.emptyList();
+        }
+        out = new BufferedWriter(new OutputStreamWriter(System.out, Charsets.UTF_8), 1 << 16);
+        long startTime = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        boolean found;
+        try {
+            found = search(executor);
+        } finally {
+            executor.shutdownNow();
+            out.flush();
+        }
+        if (stats) {
+            long elapsed = System.nanoTime() - startTime;
+            System.err.println(String.format("%d files, %d bytes, %d lines, %d selected, %.1f ms, %.1f MB/s, %d threads",
+                    Math.max(1, inputs.size()), totalBytes, totalLines, totalSelected, elapsed / 1e6,
+                    totalBytes / 1e6 / (elapsed / 1e9), threads));
+        }
+        return found;
     }
 
-    private void go() throws IOException, RegexException {
-        re = Compiler.compile(pattern, EnumSet.of(PatternFlags.EXTENDED, PatternFlags.ADVANCED));
+    /*
+     * Queue up the chunks of all the inputs, and print the results in order. There are at most a few
+     * chunks per thread outstanding, which bounds the memory for results that aren't printed yet.
+     */
+    private boolean search(ExecutorService executor) throws IOException, InterruptedException {
+        boolean found = false;
+        boolean showNames = inputs.size() > 1;
+        Deque<Future<Result>> pending = new ArrayDeque<Future<Result>>();
+        int window = 4 * Math.max(1, threads);
+        FileTally tally = null;
+        if (inputs.isEmpty()) {
+            ByteBuffer data = ByteBuffer.wrap(ByteStreams.toByteArray(System.in));
+            tally = new FileTally("(standard input)", false);
+            pending.add(executor.submit(new Chunk(tally, data, true)));
+        }
         for (File input : inputs) {
-            processFile(input);
+            tally = new FileTally(input.getPath(), showNames);
+            RandomAccessFile file = new RandomAccessFile(input, "r");
+            try {
+                FileChannel channel = file.getChannel();
+                long size = channel.size();
+                long start = 0;
+                do {
+                    long end = chunkEnd(channel, start, size);
+                    ByteBuffer data = end == start ? ByteBuffer.allocate(0) : channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                    pending.add(executor.submit(new Chunk(tally, data, end == size)));
+                    while (pending.size() >= window) {
+                        found |= print(pending.removeFirst());
+                    }
+                    start = end;
+                } while (start < size);
+            } finally {
+                // the chunks are mapped, and mappings outlive the channel.
+                file.close();
+            }
         }
+        while (!pending.isEmpty()) {
+            found |= print(pending.removeFirst());
+        }
+        return found;
+    }
 
+    /*
+     * The end of a chunk: just after the first newline after the nominal size, or the end of the file.
+     */
+    private long chunkEnd(FileChannel channel, long start, long size) throws IOException {
+        long end = start + Math.max(1, Math.min(chunkSize, Integer.MAX_VALUE - 4096));
+        if (end >= size) {
+            return size;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long limit = start + Integer.MAX_VALUE; // a mapping can't be any bigger.
+        while (end < size && end < limit) {
+            buffer.clear();
+            int n = channel.read(buffer, end);
+            if (n <= 0) {
+                break;
+            }
+            for (int x = 0; x < n; x++) {
+                if (buffer.get(x) == '\n') {
+                    return end + x + 1;
+                }
+            }
+            end += n;
+        }
+        return Math.min(end, Math.min(size, limit));
+    }
+
+    private boolean print(Future<Result> future) throws IOException, InterruptedException {
+        Result result;
+        try {
+            result = future.get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        FileTally tally = result.tally;
+        totalBytes += result.bytes;
+        totalLines += result.lines;
+        totalSelected += result.selectedLines;
+        tally.selected += result.selectedLines;
+        if (!count && !filesWithMatches) {
+            for (int x = 0; x < result.text.size(); x++) {
+                if (tally.showName) {
+                    out.write(tally.name);
+                    out.write(':');
+                }
+                if (lineNumbers) {
+                    out.write(Long.toString(tally.lines + result.lineNumbers.getInt(x)));
+                    out.write(':');
+                }
+                out.write(result.text.get(x));
+                out.write('\n');
+            }
+        }
+        tally.lines += result.lines;
+        if (result.last) {
+            if (count) {
+                if (tally.showName) {
+                    out.write(tally.name);
+                    out.write(':');
+                }
+                out.write(Long.toString(tally.selected));
+                out.write('\n');
+            } else if (filesWithMatches && tally.selected > 0) {
+                out.write(tally.name);
+                out.write('\n');
+            }
+        }
+        return result.selectedLines > 0;
     }
 
-    private void processFile(File input) throws IOException, RegexException {
-        CharSource inputCharSource = Files.asCharSource(input, Charsets.UTF_8);
-        processReader(inputCharSource.openBufferedStream());
+    /*
+     * What the printer knows about a file so far.
+     */
+    private static final class FileTally {
+        final String name;
+        final boolean showName;
+        long lines;
+        long selected;
+
+        FileTally(String name, boolean showName) {
+            this.name = name;
+            this.showName = showName;
+        }
     }
 
-    private void processReader(BufferedReader bufferedReader) throws IOException, RegexException {
-        String line;
-        while ((line = bufferedReader.readLine()) != null) {
-            processOneLine(line);
+    /*
+     * The lines selected from a chunk, with line numbers relative to the start of the chunk.
+     */
+    private static final class Result {
+        final FileTally tally;
+        final boolean last;
+        long bytes;
+        int lines;
+        int selectedLines;
+        final IntArrayList lineNumbers = new IntArrayList();
+        final List<String> text = Lists.newArrayList();
+
+        Result(FileTally tally, boolean last) {
+            this.tally = tally;
+            this.last = last;
         }
     }
 
-    private void processOneLine(String line) throws RegexException {
-        // not trying to match yet.
+    private final class Chunk implements Callable<Result> {
+        private final FileTally tally;
+        private final ByteBuffer data;
+        private final boolean last;
+        private ReMatcher lineMatcher; // for -o
+
+        Chunk(FileTally tally, ByteBuffer data, boolean last) {
+            this.tally = tally;
+            this.data = data;
+            this.last = last;
+        }
+
+        @Override
+        public Result call() {
+            Result result = new Result(tally, last);
+            int bytes = data.remaining();
+            result.bytes = bytes;
+            result.lines = newlines(0, bytes);
+            if (bytes > 0 && data.get(data.limit() - 1) != '\n') {
+                result.lines++;
+            }
+            Utf8Sequence chars = new Utf8Sequence(data);
+            ReMatcher matcher = re.matcher(chars);
+            int length = chars.length();
+            boolean wantText = !count && !filesWithMatches;
+
+            int line = 0; // lines before lineStart
+            int lineStart = 0;
+            if (invert) {
+                /* every line has to be looked at. */
+                while (lineStart < length) {
+                    int matchStart = matcher.find(lineStart) ? matcher.start() : length + 1;
+                    while (lineStart < length) {
+                        int lineEnd = lineEnd(chars, lineStart, length);
+                        boolean matched = lineEnd >= matchStart;
+                        line++;
+                        if (!matched) {
+                            select(result, chars, line, lineStart, lineEnd, wantText);
+                        }
+                        lineStart = lineEnd + 1;
+                        if (matched) {
+                            break;
+                        }
+                    }
+                }
+                return result;
+            }
+
+            /* just the lines with matches; the newlines in between are counted as bytes. */
+            int lineStartByte = 0;
+            while (lineStart < length && matcher.find(lineStart)) {
+                int matchStart = matcher.start();
+                if (matchStart == length && chars.charAt(length - 1) == '\n') {
+                    break; // after the last line.
+                }
+                int start = matchStart;
+                while (start > lineStart && chars.charAt(start - 1) != '\n') {
+                    start--;
+                }
+                int lineEnd = lineEnd(chars, matchStart, length);
+                if (lineNumbers) {
+                    line += newlines(lineStartByte, chars.byteOffset(start)) + 1;
+                    lineStartByte = chars.byteOffset(lineEnd) + 1;
+                }
+                select(result, chars, line, start, lineEnd, wantText);
+                lineStart = lineEnd + 1;
+            }
+            return result;
+        }
+
+        /*
+         * The number of newlines in a range of bytes.
+         */
+        private int newlines(int from, int to) {
+            int base = data.position();
+            int n = 0;
+            for (int x = from; x < to; x++) {
+                if (data.get(base + x) == '\n') {
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        private void select(Result result, Utf8Sequence chars, int line, int lineStart, int lineEnd, boolean wantText) {
+            result.selectedLines++;
+            if (!wantText) {
+                return;
+            }
+            if (onlyMatching) {
+                if (invert) {
+                    return;
+                }
+                if (lineMatcher == null) {
+                    lineMatcher = re.matcher(chars);
+                }
+                lineMatcher.region(lineStart, lineEnd);
+                for (MatchResult match : lineMatcher.findAll()) {
+                    if (match.end() > match.start()) {
+                        result.lineNumbers.add(line);
+                        result.text.add(match.group());
+                    }
+                }
+            } else {
+                result.lineNumbers.add(line);
+                result.text.add(chars.subSequence(lineStart, lineEnd).toString());
+            }
+        }
+
+        /*
+         * The offset of the newline at the end of a line, or the end of the data.
+         */
+        private int lineEnd(CharSequence chars, int lineStart, int length) {
+            for (int x = lineStart; x < length; x++) {
+                if (chars.charAt(x) == '\n') {
+                    return x;
+                }
+            }
+            return length;
+        }
     }
 }
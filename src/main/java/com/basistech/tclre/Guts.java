@@ -17,11 +17,16 @@
 package com.basistech.tclre;
 
 
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.List;
 import com.google.common.collect.Lists;
-import it.unimi.dsi.fastutil.objects.Object2IntArrayMap;
-import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
 
 /**
  * The bits and pieces that make up a runnable expression. This is immutable.
@@ -34,18 +39,28 @@ class Guts implements Serializable {
     final int nsub;       /* copy of re_nsub */
     final RuntimeSubexpression tree;
     final Cnfa search;    /* for fast preliminary search */
+    final Cnfa reverse;   /* the main machine, backwards, for finding where matches start; may be null */
+    final LiteralPrefix prefix; /* what every match starts with; may be null */
+    final RequiredFactors factors; /* one of which every match contains; may be null */
+    final OnePass onepass; /* finds the subexpressions without dissection; may be null */
     final int ntree;
     final RuntimeColorMap cm;
     final SubstringComparator compare;
 
     private List<RuntimeSubexpression> lookaheadConstraintMachines;
+    /* complete DFAs, built at compile time, by machine; may be null. */
+    private Reference2ObjectMap<Cnfa, DfaTable> eagerTables;
 
-    public Guts(int cflags, long info, int nsub, RuntimeSubexpression tree, Cnfa search, int ntree, ColorMap cm, SubstringComparator compare, List<Subre> lacons) {
+    public Guts(int cflags, long info, int nsub, RuntimeSubexpression tree, Cnfa search, Cnfa reverse, LiteralPrefix prefix, RequiredFactors factors, OnePass onepass, int ntree, ColorMap cm, SubstringComparator compare, List<Subre> lacons) {
         this.cflags = cflags;
         this.info = info;
         this.nsub = nsub;
         this.tree = tree;
         this.search = search;
+        this.reverse = reverse;
+        this.prefix = prefix;
+        this.factors = factors;
+        this.onepass = onepass;
         this.ntree = ntree;
         // create the sort of color map that we can serialize and share.
         this.cm = new RuntimeColorMap(cm.tree[0]);
@@ -62,6 +77,205 @@ class Guts implements Serializable {
         }
     }
 
+    /**
+     * Guts for a machine that is only ever run as a search, with colors of its own;
+     * see {@link PatternUnion}.
+     */
+    Guts(Cnfa search, RuntimeColorMap cm) {
+        this.cflags = 0;
+        this.info = 0;
+        this.nsub = 0;
+        this.tree = new RuntimeSubexpression();
+        this.search = search;
+        this.reverse = null;
+        this.prefix = null;
+        this.factors = null;
+        this.onepass = null;
+        this.ntree = 0;
+        this.cm = cm;
+        this.compare = null;
+    }
+
+    private Guts(int cflags, long info, int nsub, RuntimeSubexpression tree, Cnfa search, Cnfa reverse, LiteralPrefix prefix, RequiredFactors factors, OnePass onepass, int ntree, RuntimeColorMap cm, List<RuntimeSubexpression> lookaheadConstraintMachines) {
+        this.cflags = cflags;
+        this.info = info;
+        this.nsub = nsub;
+        this.tree = tree;
+        this.search = search;
+        this.reverse = reverse;
+        this.prefix = prefix;
+        this.factors = factors;
+        this.onepass = onepass;
+        this.ntree = ntree;
+        this.cm = cm;
+        this.compare = new Compiler.Comparer(0 != (cflags & Flags.REG_ICASE));
+        this.lookaheadConstraintMachines = lookaheadConstraintMachines;
+    }
+
+    /**
+     * Guts like others, plus complete DFAs for some of the machines.
+     */
+    Guts(Guts other, Reference2ObjectMap<Cnfa, DfaTable> eagerTables) {
+        this(other.cflags, other.info, other.nsub, other.tree, other.search, other.reverse, other.prefix, other.factors,
+                other.onepass, other.ntree, other.cm, other.lookaheadConstraintMachines);
+        this.eagerTables = eagerTables;
+    }
+
+    /**
+     * @return the complete DFA for a machine, if it was built at compile time, or null.
+     */
+    DfaTable eagerTable(Cnfa machine) {
+        return eagerTables == null ? null : eagerTables.get(machine);
+    }
+
+    /**
+     * Write the binary form; see {@link HsrePattern#writeTo(DataOutput)}.
+     * The machines go in a table, first, since the tree and the search can share them.
+     * @param tree the tree, with all its machines; see {@link HsrePattern#dissectionTree()}.
+     */
+    void writeTo(DataOutput out, RuntimeSubexpression tree) throws IOException {
+        out.writeInt(cflags);
+        out.writeLong(info);
+        out.writeInt(nsub);
+        out.writeInt(ntree);
+        cm.writeTo(out);
+
+        List<Cnfa> machines = Lists.newArrayList();
+        Reference2IntMap<Cnfa> index = new Reference2IntOpenHashMap<Cnfa>();
+        index.defaultReturnValue(-1);
+        addMachines(tree, machines, index);
+        addMachine(search, machines, index);
+        addMachine(reverse, machines, index);
+        if (lookaheadConstraintMachines != null) {
+            for (RuntimeSubexpression lacon : lookaheadConstraintMachines) {
+                addMachines(lacon, machines, index);
+            }
+        }
+        out.writeInt(machines.size());
+        for (Cnfa machine : machines) {
+            machine.writeTo(out);
+        }
+
+        tree.writeTo(out, index);
+        out.writeInt(index.getInt(search));
+        out.writeInt(index.getInt(reverse));
+        out.writeBoolean(prefix != null);
+        if (prefix != null) {
+            prefix.writeTo(out);
+        }
+        out.writeBoolean(factors != null);
+        if (factors != null) {
+            factors.writeTo(out);
+        }
+        out.writeBoolean(onepass != null);
+        if (onepass != null) {
+            onepass.writeTo(out);
+        }
+        if (lookaheadConstraintMachines == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(lookaheadConstraintMachines.size());
+            for (RuntimeSubexpression lacon : lookaheadConstraintMachines) {
+                lacon.writeTo(out, index);
+            }
+        }
+        if (eagerTables == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(eagerTables.size());
+            for (Reference2ObjectMap.Entry<Cnfa, DfaTable> entry : eagerTables.reference2ObjectEntrySet()) {
+                out.writeInt(index.getInt(entry.getKey()));
+                entry.getValue().writeTo(out);
+            }
+        }
+    }
+
+    private static void addMachines(RuntimeSubexpression t, List<Cnfa> machines, Reference2IntMap<Cnfa> index) {
+        if (t != null) {
+            addMachine(t.machine, machines, index);
+            addMachines(t.left, machines, index);
+            addMachines(t.right, machines, index);
+        }
+    }
+
+    private static void addMachine(Cnfa machine, List<Cnfa> machines, Reference2IntMap<Cnfa> index) {
+        if (machine != null && !index.containsKey(machine)) {
+            index.put(machine, machines.size());
+            machines.add(machine);
+        }
+    }
+
+    static Guts readFrom(ByteBuffer in) {
+        int cflags = in.getInt();
+        long info = in.getLong();
+        int nsub = in.getInt();
+        int ntree = in.getInt();
+        RuntimeColorMap cm = RuntimeColorMap.readFrom(in);
+        Cnfa[] machines = new Cnfa[in.getInt()];
+        for (int x = 0; x < machines.length; x++) {
+            machines[x] = Cnfa.readFrom(in);
+        }
+        RuntimeSubexpression tree = RuntimeSubexpression.readFrom(in, machines);
+        int search = in.getInt();
+        int reverse = in.getInt();
+        LiteralPrefix prefix = in.get() != 0 ? LiteralPrefix.readFrom(in) : null;
+        RequiredFactors factors = in.get() != 0 ? RequiredFactors.readFrom(in) : null;
+        OnePass onepass = in.get() != 0 ? OnePass.readFrom(in) : null;
+        List<RuntimeSubexpression> lacons = null;
+        int nlacons = in.getInt();
+        if (nlacons != -1) {
+            lacons = Lists.newArrayListWithCapacity(nlacons);
+            for (int x = 0; x < nlacons; x++) {
+                lacons.add(RuntimeSubexpression.readFrom(in, machines));
+            }
+        }
+        Guts guts = new Guts(cflags, info, nsub, tree, search == -1 ? null : machines[search], reverse == -1 ? null : machines[reverse],
+                prefix, factors, onepass, ntree, cm, lacons);
+        int ntables = in.getInt();
+        if (ntables > 0) {
+            guts.eagerTables = new Reference2ObjectOpenHashMap<Cnfa, DfaTable>();
+            for (int x = 0; x < ntables; x++) {
+                Cnfa machine = machines[in.getInt()];
+                guts.eagerTables.put(machine, DfaTable.readFrom(in));
+            }
+        }
+        return guts;
+    }
+
+    /**
+     * @return a rough estimate, in bytes, of the memory this occupies; mostly the color map and the machines.
+     * This leaves out the machines for the subexpressions, if they haven't been built.
+     */
+    long footprint() {
+        return footprint(tree);
+    }
+
+    /**
+     * @param dissection the tree, with all its machines; see {@link HsrePattern#dissectionTree()}.
+     * @return a rough estimate, in bytes, of the memory this occupies once the subexpression machines are built.
+     */
+    long footprint(RuntimeSubexpression dissection) {
+        long bytes = 2L * (Character.MAX_VALUE + 1);
+        bytes += footprint(search) + footprint(reverse) + treeFootprint(dissection);
+        if (lookaheadConstraintMachines != null) {
+            for (RuntimeSubexpression lacon : lookaheadConstraintMachines) {
+                bytes += treeFootprint(lacon);
+            }
+        }
+        return bytes;
+    }
+
+    private static long treeFootprint(RuntimeSubexpression t) {
+        if (t == null) {
+            return 0;
+        }
+        return footprint(t.machine) + treeFootprint(t.left) + treeFootprint(t.right);
+    }
+
+    private static long footprint(Cnfa cnfa) {
+        return cnfa == null ? 0 : 8L * cnfa.arcs.length + 4L * cnfa.states.length;
+    }
+
     RuntimeSubexpression lookaheadConstraintMachine(int index) {
         return lookaheadConstraintMachines.get(index);
     }
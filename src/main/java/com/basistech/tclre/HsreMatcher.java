@@ -16,9 +16,15 @@
 
 package com.basistech.tclre;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.regex.MatchResult;
+
 import com.google.common.base.Objects;
+import com.google.common.collect.AbstractIterator;
 
 /*
  * Matcher. This is an incomplete analog of {@link java.util.regex.Matcher}.
@@ -28,12 +34,12 @@ final class HsreMatcher implements ReMatcher {
     private CharSequence data;
     private final EnumSet<ExecFlags> flags;
     private final HsrePattern pattern;
-    private Runtime runtime;
+    private final Runtime runtime;
     private int regionStart;
     private int regionEnd;
     private int nextFindOffset;
-    // correction from Runtime.matches to us.
-    private int matchOffset;
+    private int appendPosition;
+    private Replacement replacement; /* the last template, parsed. */
 
     HsreMatcher(HsrePattern pattern, CharSequence data, EnumSet<ExecFlags> flags) throws RegexException {
         this.pattern = pattern;
@@ -41,8 +47,10 @@ final class HsreMatcher implements ReMatcher {
         this.flags = flags;
         regionStart = 0;
         regionEnd = data.length();
-
-        String originalPattern = pattern.pattern();
+        // one runtime for the life of the matcher, so that its DFA state caches last as well.
+        runtime = new Runtime();
+        // many callers only want to know where the match is; find the subexpressions when asked.
+        runtime.deferCaptures = true;
     }
 
     /**
@@ -69,20 +77,160 @@ final class HsreMatcher implements ReMatcher {
         }
 
         // if lookingAt add the LOOKING_AT flag.
-        EnumSet<ExecFlags> execFlags = flags;
+        int eflags = execFlags();
         if (lookingAt) {
-            execFlags = EnumSet.copyOf(flags);
-            execFlags.add(ExecFlags.LOOKING_AT);
+            eflags |= Flags.REG_LOOKING_AT;
         }
 
-        // TODO: this is a pessimization; we should be able to make one at construction and reuse it.
-        runtime = new Runtime();
         try {
-            boolean found = runtime.exec(pat, data.subSequence(startOffset, regionEnd), execFlags);
+            boolean found = runtime.exec(pat, data, startOffset, regionEnd, eflags);
+            if (found) {
+                nextFindOffset = end();
+            }
+            return found;
+        } catch (RegexException e) {
+            throw new RegexRuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean hasMatch() throws RegexRuntimeException {
+        try {
+            return runtime.test(pattern, data, regionStart, regionEnd, execFlags());
+        } catch (RegexException e) {
+            throw new RegexRuntimeException(e);
+        }
+    }
+
+    @Override
+    public int forEachMatch(MatchConsumer consumer) {
+        resetState();
+        int count = 0;
+        int from = regionStart;
+        while (from <= regionEnd && findFrom(from)) {
+            count++;
+            from = nextMatchFrom();
+            if (!consumer.accept(this)) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public Iterable<MatchResult> findAll() {
+        return new Iterable<MatchResult>() {
+            @Override
+            public Iterator<MatchResult> iterator() {
+                resetState();
+                return new AbstractIterator<MatchResult>() {
+                    private int from = regionStart;
+
+                    @Override
+                    protected MatchResult computeNext() {
+                        if (from > regionEnd || !findFrom(from)) {
+                            return endOfData();
+                        }
+                        from = nextMatchFrom();
+                        return HsreMatcher.this;
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public String replaceAll(String template) {
+        return replace(replacement(template), null, true);
+    }
+
+    @Override
+    public String replaceAll(MatchReplacer replacer) {
+        return replace(null, replacer, true);
+    }
+
+    @Override
+    public String replaceFirst(String template) {
+        return replace(replacement(template), null, false);
+    }
+
+    /*
+     * Copy the data, replacing matches with a template or from a replacer.
+     */
+    private String replace(Replacement template, MatchReplacer replacer, boolean all) {
+        resetState();
+        StringBuilder out = new StringBuilder(data.length() + 16);
+        int copied = 0;
+        int from = regionStart;
+        try {
+            while (from <= regionEnd && findFrom(from)) {
+                out.append(data, copied, runtime.match[0]);
+                if (template != null) {
+                    template.appendTo(out, this, data);
+                } else {
+                    out.append(replacer.replacement(this));
+                }
+                copied = runtime.match[1];
+                from = nextMatchFrom();
+                if (!all) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e); // a StringBuilder doesn't throw.
+        }
+        out.append(data, copied, data.length());
+        resetState();
+        return out.toString();
+    }
+
+    @Override
+    public ReMatcher appendReplacement(StringBuilder out, String template) {
+        try {
+            return appendReplacement((Appendable) out, template);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public ReMatcher appendReplacement(Appendable out, String template) throws IOException {
+        Replacement parsed = replacement(template);
+        int start = start(); // checks that there is a match.
+        out.append(data, appendPosition, start);
+        parsed.appendTo(out, this, data);
+        appendPosition = end();
+        return this;
+    }
+
+    @Override
+    public StringBuilder appendTail(StringBuilder out) {
+        return out.append(data, appendPosition, data.length());
+    }
+
+    @Override
+    public Appendable appendTail(Appendable out) throws IOException {
+        return out.append(data, appendPosition, data.length());
+    }
+
+    /*
+     * The parsed form of a template; the last one is kept, for runs of appendReplacement.
+     */
+    private Replacement replacement(String template) {
+        if (replacement == null || !replacement.template.equals(template)) {
+            replacement = new Replacement(template, pattern.nsub);
+        }
+        return replacement;
+    }
+
+    /*
+     * Search the region for a match that begins at or after an offset. The runtime
+     * keeps its DFA states from one call to the next, so this allocates nothing.
+     */
+    private boolean findFrom(int from) {
+        try {
+            boolean found = runtime.exec(pattern, data, regionStart, regionEnd, from, execFlags());
             if (found) {
-                // note how much to add to the runtime.match offsets.
-                matchOffset = startOffset;
-                // and now end does the necessary correction on the offset value from 'runtime'.
                 nextFindOffset = end();
             }
             return found;
@@ -91,6 +239,32 @@ final class HsreMatcher implements ReMatcher {
         }
     }
 
+    /*
+     * Where the match after the current one may begin; not in the same place as an empty match.
+     */
+    private int nextMatchFrom() {
+        int end = runtime.match[1];
+        return end == runtime.match[0] ? end + 1 : end;
+    }
+
+    /*
+     * The flags as bits for the runtime. The flags are checked on each call,
+     * since the caller can modify the set returned by flags().
+     */
+    private int execFlags() {
+        int eflags = 0;
+        if (flags.contains(ExecFlags.NOTBOL)) {
+            eflags |= Flags.REG_NOTBOL;
+        }
+        if (flags.contains(ExecFlags.NOTEOL)) {
+            eflags |= Flags.REG_NOTEOL;
+        }
+        if (flags.contains(ExecFlags.LOOKING_AT)) {
+            eflags |= Flags.REG_LOOKING_AT;
+        }
+        return eflags;
+    }
+
     /**
      * Look for a match; begin the search at the start.
      * @return true for a match.
@@ -106,10 +280,11 @@ final class HsreMatcher implements ReMatcher {
     */
     private void resetState() {
         // if there are any matches sitting in the runtime, eliminate.
-        if (runtime != null && runtime.match != null) {
-            runtime.match.clear();
+        if (runtime.match != null) {
+            Arrays.fill(runtime.match, -1);
         }
         nextFindOffset = regionStart;
+        appendPosition = 0;
     }
 
     @Override
@@ -149,6 +324,17 @@ final class HsreMatcher implements ReMatcher {
         return flags;
     }
 
+    @Override
+    public ReMatcher budget(MatchBudget budget) {
+        runtime.budget = budget;
+        return this;
+    }
+
+    @Override
+    public MatchBudget budget() {
+        return runtime.budget;
+    }
+
 
     @Override
     public boolean matches() throws RegexRuntimeException {
@@ -172,39 +358,71 @@ final class HsreMatcher implements ReMatcher {
         return findInternal(pattern, regionStart, true);
     }
 
+    /*
+     * The offsets for a group, checking that there is a match at all.
+     */
+    private int[] matchOffsets(int group) {
+        if (runtime.match == null || runtime.match[0] == -1) {
+            throw new IllegalStateException("No match available");
+        }
+        if (group < 0 || group > pattern.nsub) {
+            throw new IndexOutOfBoundsException("No group " + group);
+        }
+        if (group > 0) {
+            runtime.captures(data);
+        }
+        return runtime.match;
+    }
+
     @Override
     public int start() {
-        return runtime.match.get(0).start + matchOffset;
+        return start(0);
     }
 
+    /**
+     * {@inheritDoc}
+     * @return the start, or -1 if the group did not participate in the match.
+     */
     @Override
     public int start(int group) {
-        return runtime.match.get(group).start + matchOffset;
+        return matchOffsets(group)[2 * group];
     }
 
     @Override
     public int end() {
-        return runtime.match.get(0).end + matchOffset;
+        return end(0);
     }
 
+    /**
+     * {@inheritDoc}
+     * @return the end, or -1 if the group did not participate in the match.
+     */
     @Override
     public int end(int group) {
-        return runtime.match.get(group).end + matchOffset;
+        return matchOffsets(group)[2 * group + 1];
     }
 
     @Override
     public String group() {
-        return data.subSequence(start(), end()).toString();
+        return group(0);
     }
 
+    /**
+     * {@inheritDoc}
+     * @return the text, or null if the group did not participate in the match.
+     */
     @Override
     public String group(int group) {
-        return data.subSequence(start(group), end(group)).toString();
+        int start = start(group);
+        if (start == -1) {
+            return null;
+        }
+        return data.subSequence(start, end(group)).toString();
     }
 
     @Override
     public int groupCount() {
-        return runtime.match.size() - 1; // omit the 'group' for the whole match.
+        return pattern.nsub;
     }
 
     @Override
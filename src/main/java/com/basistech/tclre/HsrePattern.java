@@ -16,11 +16,26 @@
 
 package com.basistech.tclre;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.MatchResult;
 
 import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
 
 /**
  * A compiled regular expression. The method {@link #compile(String, PatternFlags...)} serves
@@ -35,13 +50,40 @@ public class HsrePattern implements RePattern, Serializable {
     final Guts guts;
     final String original;
     final EnumSet<PatternFlags> originalFlags;
+    private final PatternOptions options;
+    private transient AtomicLong dfaCacheFlushes;
+    /* A runtime for test(), kept to reuse its DFA states; a concurrent caller that finds it gone makes its own. */
+    private transient AtomicReference<Runtime> spareRuntime;
+    /* The tree with the machines for its parts, once something needs them; see dissectionTree(). */
+    private volatile RuntimeSubexpression dissectionTree;
 
-    HsrePattern(String original, EnumSet<PatternFlags> originalFlags, long info, int nsub, Guts guts) {
+    HsrePattern(String original, EnumSet<PatternFlags> originalFlags, long info, int nsub, Guts guts, PatternOptions options) {
         this.original = original;
         this.originalFlags = originalFlags;
         this.info = info;
         this.nsub = nsub;
         this.guts = guts;
+        this.options = options;
+        this.dfaCacheFlushes = new AtomicLong();
+        this.spareRuntime = new AtomicReference<Runtime>();
+        if (guts.tree.hasMachines()) {
+            this.dissectionTree = guts.tree;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        dissectionTree(); /* so that the reader doesn't have to parse the pattern again */
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        dfaCacheFlushes = new AtomicLong();
+        spareRuntime = new AtomicReference<Runtime>();
+        if (dissectionTree == null && guts.tree.hasMachines()) {
+            /* written before the machines were built lazily, with all of them in the tree. */
+            dissectionTree = guts.tree;
+        }
     }
 
     /**
@@ -55,6 +97,31 @@ public class HsrePattern implements RePattern, Serializable {
         return Compiler.compile(pattern, flags);
     }
 
+    /**
+     * Compile a pattern.
+     * @param pattern the pattern.
+     * @param flags flags that determine the interpretation of the pattern.
+     * @param options options that control the resources used by the pattern.
+     * @return the compiled pattern.
+     * @throws RegexException
+     * @throws PatternTooComplexException if compiling runs into one of the limits in the options.
+     */
+    public static RePattern compile(String pattern, EnumSet<PatternFlags> flags, PatternOptions options) throws RegexException {
+        return Compiler.compile(pattern, flags, options);
+    }
+
+    /**
+     * Compile a pattern, or find it in a cache of compiled patterns.
+     * @param pattern the pattern.
+     * @param flags flags that determine the interpretation of the pattern.
+     * @param cache the cache.
+     * @return the compiled pattern.
+     * @throws RegexException
+     */
+    public static RePattern compile(String pattern, EnumSet<PatternFlags> flags, PatternCache cache) throws RegexException {
+        return cache.compile(pattern, flags);
+    }
+
     /**
      * Compile a pattern.
      * @param pattern the pattern.
@@ -68,6 +135,74 @@ public class HsrePattern implements RePattern, Serializable {
         return Compiler.compile(pattern, flagSet);
     }
 
+    /**
+     * Read a pattern written by {@link #writeTo(DataOutput)}. This reads from the buffer's position,
+     * and leaves the position after the pattern.
+     * @param in the buffer.
+     * @return the pattern.
+     * @throws RegexException if the buffer doesn't hold a pattern written in this version of the format.
+     */
+    public static RePattern readFrom(ByteBuffer in) throws RegexException {
+        ByteBuffer buffer = in.slice().order(ByteOrder.BIG_ENDIAN);
+        HsrePattern pattern;
+        try {
+            if (buffer.getInt() != Codec.MAGIC) {
+                throw new RegexException("Not a compiled pattern");
+            }
+            int version = buffer.getInt();
+            if (version != Codec.VERSION) {
+                throw new RegexException(String.format("Compiled pattern has version %d; this reads version %d", version, Codec.VERSION));
+            }
+            String original = Codec.readString(buffer);
+            int flagBits = buffer.getInt();
+            EnumSet<PatternFlags> flags = EnumSet.noneOf(PatternFlags.class);
+            for (PatternFlags flag : PatternFlags.values()) {
+                if (0 != (flagBits & (1 << flag.ordinal()))) {
+                    flags.add(flag);
+                }
+            }
+            PatternOptions options = null;
+            if (buffer.get() != 0) {
+                options = PatternOptions.builder().dfaCacheBudget(buffer.getLong()).dissectBudget(buffer.getLong())
+                        .eagerDfaStates(buffer.getInt()).maxNfaStates(buffer.getInt()).maxNfaArcs(buffer.getInt())
+                        .maxColors(buffer.getInt()).maxTreeNodes(buffer.getInt())
+                        .compileTimeout(buffer.getLong(), TimeUnit.NANOSECONDS).build();
+            }
+            Guts guts = Guts.readFrom(buffer);
+            pattern = new HsrePattern(original, flags, guts.info, guts.nsub, guts, options);
+        } catch (BufferUnderflowException e) {
+            throw new RegexException("Compiled pattern is truncated", e);
+        } catch (RuntimeException e) {
+            throw new RegexException("Compiled pattern is corrupt", e);
+        }
+        in.position(in.position() + buffer.position());
+        return pattern;
+    }
+
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(Codec.MAGIC);
+        out.writeInt(Codec.VERSION);
+        Codec.writeString(out, original);
+        int flagBits = 0;
+        for (PatternFlags flag : originalFlags) {
+            flagBits |= 1 << flag.ordinal();
+        }
+        out.writeInt(flagBits);
+        out.writeBoolean(options != null);
+        if (options != null) {
+            out.writeLong(options.getDfaCacheBudget());
+            out.writeLong(options.getDissectBudget());
+            out.writeInt(options.getEagerDfaStates());
+            out.writeInt(options.getMaxNfaStates());
+            out.writeInt(options.getMaxNfaArcs());
+            out.writeInt(options.getMaxColors());
+            out.writeInt(options.getMaxTreeNodes());
+            out.writeLong(options.getCompileTimeoutNanos());
+        }
+        guts.writeTo(out, dissectionTree());
+    }
+
     @Override
     public HsreMatcher matcher(CharSequence data, ExecFlags... flags) {
         EnumSet<ExecFlags> flagSet = EnumSet.noneOf(ExecFlags.class);
@@ -90,6 +225,79 @@ public class HsrePattern implements RePattern, Serializable {
         }
     }
 
+    @Override
+    public HsreMatcher matcher(char[] buf, int off, int len, ExecFlags... flags) {
+        // the runtime reads an array-backed buffer directly.
+        return matcher(CharBuffer.wrap(buf, off, len).slice(), flags);
+    }
+
+    @Override
+    public Utf8Matcher utf8Matcher(ByteBuffer utf8, ExecFlags... flags) {
+        EnumSet<ExecFlags> flagSet = EnumSet.noneOf(ExecFlags.class);
+        Collections.addAll(flagSet, flags);
+        return new Utf8Matcher(this, utf8, flagSet);
+    }
+
+    @Override
+    public StreamMatcher streamMatcher(ExecFlags... flags) {
+        EnumSet<ExecFlags> flagSet = EnumSet.noneOf(ExecFlags.class);
+        Collections.addAll(flagSet, flags);
+        return new StreamMatcher(this, flagSet);
+    }
+
+    @Override
+    public String[] split(CharSequence data, int limit) {
+        List<String> fields = Lists.newArrayList();
+        int fieldStart = 0;
+        for (MatchResult match : matcher(data).findAll()) {
+            if (limit > 0 && fields.size() == limit - 1) {
+                break;
+            }
+            if (match.end() == 0) {
+                continue; // an empty match at the start doesn't make an empty first field.
+            }
+            fields.add(data.subSequence(fieldStart, match.start()).toString());
+            fieldStart = match.end();
+        }
+        if (fields.isEmpty()) {
+            return new String[] {data.toString()};
+        }
+        fields.add(data.subSequence(fieldStart, data.length()).toString());
+        int count = fields.size();
+        if (limit == 0) {
+            while (count > 0 && fields.get(count - 1).length() == 0) {
+                count--;
+            }
+        }
+        return fields.subList(0, count).toArray(new String[count]);
+    }
+
+    @Override
+    public Iterable<CharSequence> splitLazily(final CharSequence data) {
+        return new Iterable<CharSequence>() {
+            @Override
+            public Iterator<CharSequence> iterator() {
+                return new SplitIterator(HsrePattern.this, data);
+            }
+        };
+    }
+
+    @Override
+    public boolean test(CharSequence data) {
+        Runtime runtime = spareRuntime.getAndSet(null);
+        if (runtime == null) {
+            runtime = new Runtime();
+        }
+        try {
+            return runtime.test(this, data, 0, data.length(), 0);
+        } catch (RegexException e) {
+            throw new RegexRuntimeException(e);
+        } finally {
+            runtime.forgetData(); // don't hang on to the caller's data.
+            spareRuntime.set(runtime);
+        }
+    }
+
     @Override
     public String pattern() {
         return original;
@@ -100,6 +308,47 @@ public class HsrePattern implements RePattern, Serializable {
         return originalFlags;
     }
 
+    /**
+     * The subexpression tree, with the machines that dissect a match into its subexpressions.
+     * Unless the pattern has backreferences, matching doesn't need them until someone
+     * asks for a subexpression, and so the compiler leaves them out; this builds them on first use,
+     * once for all the matchers.
+     */
+    RuntimeSubexpression dissectionTree() {
+        RuntimeSubexpression tree = dissectionTree;
+        if (tree == null) {
+            synchronized (guts) {
+                tree = dissectionTree;
+                if (tree == null) {
+                    try {
+                        tree = Compiler.subexpressions(this);
+                    } catch (RegexException e) {
+                        throw new RegexRuntimeException(e);
+                    }
+                    dissectionTree = tree;
+                }
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * @return the options for this pattern.
+     */
+    public PatternOptions options() {
+        // patterns serialized before there were options have none.
+        return options == null ? PatternOptions.DEFAULTS : options;
+    }
+
+    @Override
+    public long dfaCacheFlushes() {
+        return dfaCacheFlushes.get();
+    }
+
+    void noteDfaCacheFlush() {
+        dfaCacheFlushes.incrementAndGet();
+    }
+
     @Override
     public String toString() {
         return Objects.toStringHelper(this)
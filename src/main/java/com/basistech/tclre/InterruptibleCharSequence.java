@@ -20,6 +20,8 @@ package com.basistech.tclre;
 /**
  * Implementation of {@link java.lang.CharSequence} that checks for {@link Thread#interrupted()}
  * and throws {@link com.basistech.tclre.InterruptedRegexException}.
+ * This checks on every call, and clears the interrupt; a {@link MatchBudget} that is
+ * cancelled from another thread stops a search at much less cost.
  */
 public class InterruptibleCharSequence implements CharSequence {
     private final char[] data;
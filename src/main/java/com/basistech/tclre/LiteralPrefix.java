@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import it.unimi.dsi.fastutil.chars.CharArrayList;
+import it.unimi.dsi.fastutil.shorts.ShortArrayList;
+
+/**
+ * The literal text that every match of a pattern starts with; for each position,
+ * the few characters (more than one with case-insensitivity or a small bracket expression)
+ * that can appear there. The search machine uses this to skip over text in which no match can
+ * begin, using a Horspool search instead of examining each character.
+ */
+class LiteralPrefix implements Serializable {
+    static final long serialVersionUID = 1L;
+    /* a longer prefix makes for longer skips, but more to verify. */
+    static final int MAX_LENGTH = 16;
+    /* more characters than this in a position and it isn't much of a filter. */
+    static final int MAX_CHARS = 8;
+
+    private final char[][] chars; // the characters for each position
+    private final int[] shift; // by the low byte of the character; Horspool skip distances.
+
+    LiteralPrefix(char[][] chars) {
+        this.chars = chars;
+        int length = chars.length;
+        shift = new int[256];
+        Arrays.fill(shift, length);
+        for (int x = 0; x < length - 1; x++) {
+            for (char c : chars[x]) {
+                // several characters share a slot; keep the smallest skip, which is safe for all of them.
+                shift[c & 0xff] = Math.min(shift[c & 0xff], length - 1 - x);
+            }
+        }
+    }
+
+    /**
+     * Write the binary form; see {@link HsrePattern#writeTo(DataOutput)}.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(chars.length);
+        for (char[] position : chars) {
+            Codec.writeChars(out, position);
+        }
+    }
+
+    static LiteralPrefix readFrom(ByteBuffer in) {
+        char[][] chars = new char[in.getInt()][];
+        for (int x = 0; x < chars.length; x++) {
+            chars[x] = Codec.readChars(in);
+        }
+        return new LiteralPrefix(chars);
+    }
+
+    /**
+     * extract - work out the literal prefix of a machine.
+     * The prefix stops where the machine could reach its post state, where
+     * there is a lookahead constraint, or where there are too many characters to be useful.
+     * @param cnfa the main machine.
+     * @param cm the color map.
+     * @return the prefix, or null if there is none.
+     */
+    static LiteralPrefix extract(Cnfa cnfa, ColorMap cm) {
+        int nstates = cnfa.states.length;
+        boolean[] current = new boolean[nstates];
+        boolean[] next = new boolean[nstates];
+
+        /* the first arcs consume the character before the match, if any */
+        for (int ax = cnfa.states[cnfa.pre] + 1; Cnfa.carcColor(cnfa.arcs[ax]) != Constants.COLORLESS; ax++) {
+            if (Cnfa.carcColor(cnfa.arcs[ax]) >= cnfa.ncolors) {
+                return null;
+            }
+            current[Cnfa.carcTarget(cnfa.arcs[ax])] = true;
+        }
+
+        /* the colors at each position */
+        ShortArrayList[] colors = new ShortArrayList[MAX_LENGTH];
+        int length = 0;
+        boolean stop = false;
+        while (length < MAX_LENGTH && !stop) {
+            ShortArrayList here = new ShortArrayList();
+            Arrays.fill(next, false);
+            for (int s = 0; s < nstates && !stop; s++) {
+                if (!current[s]) {
+                    continue;
+                }
+                for (int ax = cnfa.states[s] + 1; ; ax++) {
+                    long ca = cnfa.arcs[ax];
+                    short co = Cnfa.carcColor(ca);
+                    if (co == Constants.COLORLESS) {
+                        break;
+                    }
+                    if (co >= cnfa.ncolors || Cnfa.carcTarget(ca) == cnfa.post || cm.colorDescs.get(co).pseudo()) {
+                        /* a lookahead constraint, the end of a match, or something other than a character. */
+                        stop = true;
+                        break;
+                    }
+                    if (!here.contains(co)) {
+                        here.add(co);
+                    }
+                    next[Cnfa.carcTarget(ca)] = true;
+                }
+            }
+            if (!stop) {
+                colors[length++] = here;
+                boolean[] swap = current;
+                current = next;
+                next = swap;
+            }
+        }
+
+        if (length == 0) {
+            return null;
+        }
+
+        /* and the characters of those colors */
+        char[][] byColor = cm.chars(MAX_CHARS);
+        char[][] chars = new char[length][];
+        for (int x = 0; x < length; x++) {
+            CharArrayList here = new CharArrayList();
+            for (short co : colors[x]) {
+                if (byColor[co] == null) {
+                    here = null;
+                    break;
+                }
+                here.addAll(CharArrayList.wrap(byColor[co]));
+            }
+            if (here == null || here.size() > MAX_CHARS) {
+                length = x;
+                break;
+            }
+            chars[x] = here.toCharArray();
+        }
+
+        if (length == 0) {
+            return null;
+        }
+        return new LiteralPrefix(Arrays.copyOf(chars, length));
+    }
+
+    int length() {
+        return chars.length;
+    }
+
+    /**
+     * find - find the first place at which the prefix occurs.
+     * @param runtime the runtime, which reads the data.
+     * @param from where to start looking.
+     * @param to the end of the data.
+     * @return the start of the prefix, or -1 if it does not occur.
+     */
+    int find(Runtime runtime, int from, int to) {
+        int last = chars.length - 1;
+        for (int pos = from; pos + last < to;) {
+            char c = runtime.charAt(pos + last);
+            if (contains(last, c)) {
+                int x = last - 1;
+                while (x >= 0 && contains(x, runtime.charAt(pos + x))) {
+                    x--;
+                }
+                if (x < 0) {
+                    return pos;
+                }
+            }
+            pos += shift[c & 0xff];
+        }
+        return -1;
+    }
+
+    private boolean contains(int position, char c) {
+        for (char candidate : chars[position]) {
+            if (candidate == c) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
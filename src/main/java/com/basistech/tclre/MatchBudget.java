@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Objects;
+
+/**
+ * Limits on the work a matcher may do, for callers that need to bound the time a search takes.
+ * A budget can limit the steps that each search may take, set a deadline, and be cancelled.
+ * A search that runs over the budget fails with a {@link MatchBudgetExceededException}.
+ * <br/>
+ * A step is one machine examining one character, or trying one division of a candidate match among the
+ * parts of a pattern with backreferences. A search may pass over its text more than once,
+ * first to find a match and then to find its bounds and groups. The matcher counts steps as it goes, but checks the
+ * deadline and cancellation only every {@link #CHECK_INTERVAL} steps, so these cost next to nothing;
+ * a search may run on for up to that many steps after the deadline passes.
+ * <br/>
+ * Use {@link #builder()} to make one, and {@link ReMatcher#budget(MatchBudget)} to apply it.
+ * A budget may be shared among matchers and threads; cancelling it stops all of them.
+ */
+public final class MatchBudget {
+    /**
+     * How many steps a matcher takes between checks of the deadline and cancellation.
+     */
+    public static final int CHECK_INTERVAL = 4096;
+
+    private final long maxSteps;
+    private final long deadline;
+    private final boolean hasDeadline;
+    private volatile boolean cancelled;
+
+    private MatchBudget(Builder builder) {
+        this.maxSteps = builder.maxSteps;
+        this.deadline = builder.deadline;
+        this.hasDeadline = builder.hasDeadline;
+    }
+
+    /**
+     * @return a builder, initialized for no limits.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return the most steps that any one search may take, or 0 for no limit.
+     */
+    public long getMaxSteps() {
+        return maxSteps;
+    }
+
+    /**
+     * @return whether there is a deadline.
+     */
+    public boolean hasDeadline() {
+        return hasDeadline;
+    }
+
+    /**
+     * @return the deadline, as a value of {@link System#nanoTime()}.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Stop any search using this budget, and fail any later one.
+     * This may be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return whether {@link #cancel()} has been called.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Throw if the budget is cancelled or past its deadline.
+     */
+    void check() {
+        if (cancelled) {
+            throw new MatchBudgetExceededException(MatchBudgetExceededException.Reason.CANCELLED, "Search cancelled");
+        }
+        if (hasDeadline && System.nanoTime() - deadline > 0) {
+            throw new MatchBudgetExceededException(MatchBudgetExceededException.Reason.DEADLINE, "Search passed its deadline");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("maxSteps", maxSteps)
+                .add("deadline", hasDeadline ? Long.toString(deadline) : "none")
+                .add("cancelled", cancelled)
+                .toString();
+    }
+
+    /**
+     * Builder for {@link MatchBudget}.
+     */
+    public static final class Builder {
+        private long maxSteps;
+        private long deadline;
+        private boolean hasDeadline;
+
+        private Builder() {
+            //
+        }
+
+        /**
+         * Limit the steps for each search.
+         * @param steps the limit, or 0 for no limit.
+         * @return this builder.
+         * @see MatchBudget#getMaxSteps()
+         */
+        public Builder maxSteps(long steps) {
+            if (steps < 0) {
+                throw new IllegalArgumentException("Step limit must not be negative");
+            }
+            this.maxSteps = steps;
+            return this;
+        }
+
+        /**
+         * Set a deadline for all searches.
+         * @param nanoTime the deadline, as a value of {@link System#nanoTime()}.
+         * @return this builder.
+         */
+        public Builder deadline(long nanoTime) {
+            this.deadline = nanoTime;
+            this.hasDeadline = true;
+            return this;
+        }
+
+        /**
+         * Set a deadline for all searches, some time from now.
+         * @param duration how long from now.
+         * @param unit the unit of the duration.
+         * @return this builder.
+         */
+        public Builder timeout(long duration, TimeUnit unit) {
+            return deadline(System.nanoTime() + unit.toNanos(duration));
+        }
+
+        /**
+         * @return the budget.
+         */
+        public MatchBudget build() {
+            return new MatchBudget(this);
+        }
+    }
+}
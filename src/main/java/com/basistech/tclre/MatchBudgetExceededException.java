@@ -0,0 +1,57 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+/**
+ * Thrown when a search runs over its {@link MatchBudget}, or over the
+ * {@link PatternOptions#getDissectBudget()} of its pattern.
+ */
+public class MatchBudgetExceededException extends RegexRuntimeException {
+    /**
+     * Which limit the search ran into.
+     */
+    public enum Reason {
+        /**
+         * The search took more steps than {@link MatchBudget#getMaxSteps()}, or made more
+         * tries than {@link PatternOptions#getDissectBudget()}.
+         */
+        STEPS,
+        /**
+         * The search ran past {@link MatchBudget#getDeadline()}.
+         */
+        DEADLINE,
+        /**
+         * The budget was cancelled.
+         */
+        CANCELLED
+    }
+
+    private final Reason reason;
+
+    public MatchBudgetExceededException(Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    /**
+     * @return which limit the search ran into.
+     */
+    public Reason getReason() {
+        return reason;
+    }
+}
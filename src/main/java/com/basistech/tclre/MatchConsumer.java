@@ -14,17 +14,19 @@
  *    limitations under the License.
  */
 
+
 package com.basistech.tclre;
 
+import java.util.regex.MatchResult;
+
 /**
- * Arc pointer used in DFA.
+ * Receives matches from {@link ReMatcher#forEachMatch(MatchConsumer)}.
  */
-class Arcp {
-    final StateSet ss;
-    final short co;
-
-    Arcp(StateSet ss, short co) {
-        this.ss = ss;
-        this.co = co;
-    }
+public interface MatchConsumer {
+    /**
+     * Accept one match.
+     * @param match the match. This is a view of the matcher, valid only for the duration of the call.
+     * @return true to go on to the next match, false to stop.
+     */
+    boolean accept(MatchResult match);
 }
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import java.util.regex.MatchResult;
+
+/**
+ * Supplies the replacement for each match in {@link ReMatcher#replaceAll(MatchReplacer)}.
+ */
+public interface MatchReplacer {
+    /**
+     * Produce the replacement for one match.
+     * @param match the match. This is a view of the matcher, valid only for the duration of the call.
+     * @return the text to put in place of the match.
+     */
+    CharSequence replacement(MatchResult match);
+}
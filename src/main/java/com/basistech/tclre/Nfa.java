@@ -40,6 +40,9 @@ class Nfa {
     private State states;   /* state-chain header */
     private State slast;    /* tail of the chain */
     private int nstates;        /* for numbering states */
+    private int nlive;  /* states not yet freed */
+    private int narcs;  /* arcs not yet freed */
+    private final CompileLimits limits;
 
     /**
      * New Nfa at the top level.
@@ -59,6 +62,7 @@ class Nfa {
     private Nfa(Nfa parent, ColorMap cm) {
         this.parent = parent;
         this.cm = cm;
+        this.limits = parent != null ? parent.limits : cm.compiler.limits;
         nstates = 0;
         bos[1] = Constants.COLORLESS;
         bos[0] = bos[1];
@@ -82,14 +86,23 @@ class Nfa {
 
         assert from != null && to != null;
 
-    /* check for duplicates */
-        for (a = from.outs; a != null; a = a.outchain) {
-            if (a.co == co && a.to == to && a.type == t) {
-                return;
+    /* check for duplicates, on whichever chain is shorter */
+        if (from.nouts <= to.nins) {
+            for (a = from.outs; a != null; a = a.outchain) {
+                if (a.co == co && a.to == to && a.type == t) {
+                    return;
+                }
+            }
+        } else {
+            for (a = to.ins; a != null; a = a.inchain) {
+                if (a.co == co && a.from == from && a.type == t) {
+                    return;
+                }
             }
         }
 
         a = new Arc(t, co, from, to);
+        limits.arcs(++narcs);
 
     /*
      * Put the new arc on the beginning, not the end, of the chains.
@@ -98,8 +111,14 @@ class Nfa {
      * than the most expensive one.
      */
         a.inchain = to.ins;
+        if (to.ins != null) {
+            to.ins.inchainRev = a;
+        }
         to.ins = a;
         a.outchain = from.outs;
+        if (from.outs != null) {
+            from.outs.outchainRev = a;
+        }
         from.outs = a;
 
         from.nouts++;
@@ -122,6 +141,7 @@ class Nfa {
     State newstate(int flag) {
         State newState = new State();
         newState.no = nstates++; // a unique number.
+        limits.states(++nlive);
         if (states == null) {
             states = newState;
         }
@@ -233,6 +253,7 @@ class Nfa {
         assert s != null;
         assert s.nins == 0;
         assert s.nouts == 0;
+        nlive--;
         if (s.next != null) {
             s.next.prev = s.prev;
         } else {
@@ -251,38 +272,38 @@ class Nfa {
         State from = victim.from;
         State to = victim.to;
         assert victim.type != 0;
+        narcs--;
 
         // only maintain colorchain on top-level NFA
         if (victim.colored() && parent == null) {
             cm.uncolorchain(victim);
         }
 
+        /* take it off source's out-chain */
         assert from != null;
-        assert from.outs != null;
-        Arc a = from.outs;
-        if (a == victim) { // first in chain
+        if (victim.outchainRev == null) { // first in chain
+            assert from.outs == victim;
             from.outs = victim.outchain;
         } else {
-            for (; a != null && a.outchain != victim; a = a.outchain) {
-                continue;
-            }
-            assert a != null;
-            a.outchain = victim.outchain;
+            assert victim.outchainRev.outchain == victim;
+            victim.outchainRev.outchain = victim.outchain;
+        }
+        if (victim.outchain != null) {
+            victim.outchain.outchainRev = victim.outchainRev;
         }
         from.nouts--;
 
            /* take it off target's in-chain */
         assert to != null;
-        assert to.ins != null;
-        a = to.ins;
-        if (a == victim) {      /* simple case:  first in chain */
+        if (victim.inchainRev == null) {      /* simple case:  first in chain */
+            assert to.ins == victim;
             to.ins = victim.inchain;
         } else {
-            for (; a != null && a.inchain != victim; a = a.inchain) {
-                continue;
-            }
-            assert a != null;
-            a.inchain = victim.inchain;
+            assert victim.inchainRev.inchain == victim;
+            victim.inchainRev.inchain = victim.inchain;
+        }
+        if (victim.inchain != null) {
+            victim.inchain.inchainRev = victim.inchainRev;
         }
         to.nins--;
     }
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2LongOpenHashMap;
+
+/**
+ * One-pass subexpression engine.
+ * If, at every step of a match, the next character determines which way the NFA goes, then the
+ * path through the NFA is determined by the text of the match, and so are the subexpressions.
+ * For such an expression, this records, for each NFA state reached by a character and
+ * each color, the next such state and the subexpression boundaries passed along the way. Filling in
+ * the subexpressions then takes one left-to-right scan of the match, rather than the dissection,
+ * which runs the DFAs of the subexpressions over and over to find the midpoints.
+ *
+ * This is built from the raw NFA, which still has the empty arcs that enter and leave each capturing
+ * subexpression. Those arcs, rather than the states at either end, mark the boundaries, since the way
+ * around an optional subexpression joins the way out of it at its end state.
+ * The boundaries are recorded as bits in a long; bit 2n is the start
+ * of subexpression n, and bit 2n + 1 is its end, just as in {@link Runtime#match}.
+ * That limits this to 31 subexpressions.
+ */
+class OnePass implements Serializable {
+    static final long serialVersionUID = 1L;
+    static final int MAX_SUBEXPRESSIONS = 31;
+    static final int MAX_ENTRIES = 1 << 16;
+
+    /*
+     * Conditions on the path to a transition, from '^' and '$' arcs.
+     * The low three bits are the acceptable contexts at the beginning of the data:
+     * not there at all, there, or there but with REG_NOTBOL. The next three, the same for the end.
+     */
+    private static final int ELSEWHERE = 01;
+    private static final int AT_EDGE = 02;
+    private static final int AT_EXCLUDED_EDGE = 04;
+    private static final int ANYWHERE = ELSEWHERE | AT_EDGE | AT_EXCLUDED_EDGE;
+    private static final int NO_CONDITIONS = ANYWHERE | (ANYWHERE << 3);
+
+    private final int ncolors;
+    private final int[] next; // node * ncolors + color; the next node, or -1.
+    private final long[] tags;
+    private final int[] conditions;
+    private final long[] acceptTags; // by node
+    private final int[] acceptConditions; // by node; -1 if the node can't end a match.
+
+    private OnePass(int ncolors, int[] next, long[] tags, int[] conditions, long[] acceptTags, int[] acceptConditions) {
+        this.ncolors = ncolors;
+        this.next = next;
+        this.tags = tags;
+        this.conditions = conditions;
+        this.acceptTags = acceptTags;
+        this.acceptConditions = acceptConditions;
+    }
+
+    /**
+     * Write the binary form; see {@link HsrePattern#writeTo(DataOutput)}.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(ncolors);
+        Codec.writeInts(out, next);
+        Codec.writeLongs(out, tags);
+        Codec.writeInts(out, conditions);
+        Codec.writeLongs(out, acceptTags);
+        Codec.writeInts(out, acceptConditions);
+    }
+
+    static OnePass readFrom(ByteBuffer in) {
+        int ncolors = in.getInt();
+        int[] next = Codec.readInts(in);
+        long[] tags = Codec.readLongs(in);
+        int[] conditions = Codec.readInts(in);
+        long[] acceptTags = Codec.readLongs(in);
+        int[] acceptConditions = Codec.readInts(in);
+        return new OnePass(ncolors, next, tags, conditions, acceptTags, acceptConditions);
+    }
+
+    /**
+     * run - fill in the subexpressions of a match.
+     * @param rt the runtime, which supplies the data and receives the subexpressions.
+     * @param begin the start of the match.
+     * @param end the end of the match.
+     * @return false if the walk didn't work out, in which case the subexpressions are a mess.
+     */
+    boolean run(Runtime rt, int begin, int end) {
+        int[] match = rt.match;
+        RuntimeColorMap cm = rt.g.cm;
+        int node = 0;
+        for (int cp = begin; cp < end; cp++) {
+            int ax = node * ncolors + cm.getcolor(rt.charAt(cp));
+            node = next[ax];
+            if (node == -1 || !holds(conditions[ax], rt, cp)) {
+                return false;
+            }
+            setTags(tags[ax], match, cp);
+        }
+        if (acceptConditions[node] == -1 || !holds(acceptConditions[node], rt, end)) {
+            return false;
+        }
+        setTags(acceptTags[node], match, end);
+        return true;
+    }
+
+    private static void setTags(long bits, int[] match, int cp) {
+        for (; bits != 0; bits &= bits - 1) {
+            match[Long.numberOfTrailingZeros(bits)] = cp;
+        }
+    }
+
+    private static boolean holds(int conditions, Runtime rt, int cp) {
+        if (conditions == NO_CONDITIONS) {
+            return true;
+        }
+        int start = ELSEWHERE;
+        if (cp == rt.dataStart) {
+            start = 0 != (rt.eflags & Flags.REG_NOTBOL) ? AT_EXCLUDED_EDGE : AT_EDGE;
+        }
+        int end = ELSEWHERE;
+        if (cp == rt.dataEnd) {
+            end = 0 != (rt.eflags & Flags.REG_NOTEOL) ? AT_EXCLUDED_EDGE : AT_EDGE;
+        }
+        return 0 != (conditions & start) && 0 != (conditions & (end << 3));
+    }
+
+    /**
+     * build - make the one-pass engine for an expression, if it is one-pass.
+     * @param tree the subexpression tree, with its states in the raw NFA.
+     * @param nsub the number of subexpressions.
+     * @param ncolors the number of colors.
+     * @return the engine, or null if the expression doesn't qualify.
+     */
+    static OnePass build(Subre tree, int nsub, int ncolors) {
+        if (nsub == 0 || nsub > MAX_SUBEXPRESSIONS) {
+            return null;
+        }
+        Reference2LongOpenHashMap<Arc> arcTags = new Reference2LongOpenHashMap<Arc>();
+        if (!collectTags(tree, arcTags)) {
+            return null;
+        }
+
+        Builder builder = new Builder(tree.end, ncolors, arcTags);
+        builder.node(tree.begin);
+        for (int n = 0; n < builder.nodes.size(); n++) {
+            if (!builder.closure(n)) {
+                return null;
+            }
+        }
+        return builder.build();
+    }
+
+    /*
+     * Tag the empty arcs that enter and leave each capturing subexpression; false if they can't be found.
+     */
+    private static boolean collectTags(Subre t, Reference2LongOpenHashMap<Arc> arcTags) {
+        if (t.op == '(') {
+            Arc in = t.begin.nouts == 1 && t.begin.outs.type == Compiler.EMPTY ? t.begin.outs : null;
+            Arc out = in == null ? null : exit(in.to, t.end);
+            if (out == null) {
+                return false;
+            }
+            arcTags.put(in, arcTags.getLong(in) | (1L << (2 * t.subno)));
+            arcTags.put(out, arcTags.getLong(out) | (1L << (2 * t.subno + 1)));
+        }
+        if (t.left != null && !collectTags(t.left, arcTags)) {
+            return false;
+        }
+        return t.right == null || collectTags(t.right, arcTags);
+    }
+
+    /*
+     * The one empty arc by which the contents of a subexpression, starting from a state, reach its end.
+     * Other arcs reach the end from outside, such as the way around an optional subexpression.
+     */
+    private static Arc exit(State contents, State end) {
+        Arc exit = null;
+        Set<State> seen = Sets.newIdentityHashSet();
+        List<State> stack = Lists.newArrayList();
+        seen.add(contents);
+        stack.add(contents);
+        while (!stack.isEmpty()) {
+            State s = stack.remove(stack.size() - 1);
+            for (Arc a = s.outs; a != null; a = a.outchain) {
+                if (a.to == end) {
+                    if (exit != null || a.type != Compiler.EMPTY) {
+                        return null;
+                    }
+                    exit = a;
+                } else if (seen.add(a.to)) {
+                    stack.add(a.to);
+                }
+            }
+        }
+        return exit;
+    }
+
+    private static final class Builder {
+        final State end;
+        final int ncolors;
+        final Reference2LongOpenHashMap<Arc> arcTags;
+        final Reference2IntOpenHashMap<State> nodeNumbers = new Reference2IntOpenHashMap<State>();
+        final List<State> nodes = Lists.newArrayList();
+        int[] next = new int[0];
+        long[] tags = new long[0];
+        int[] conditions = new int[0];
+        long[] acceptTags = new long[0];
+        int[] acceptConditions = new int[0];
+
+        Builder(State end, int ncolors, Reference2LongOpenHashMap<Arc> arcTags) {
+            this.end = end;
+            this.ncolors = ncolors;
+            this.arcTags = arcTags;
+            nodeNumbers.defaultReturnValue(-1);
+        }
+
+        /*
+         * The number of the node for a state, adding it if need be; -1 if there are too many.
+         */
+        int node(State s) {
+            int n = nodeNumbers.getInt(s);
+            if (n != -1) {
+                return n;
+            }
+            n = nodes.size();
+            if ((long) (n + 1) * ncolors > MAX_ENTRIES) {
+                return -1;
+            }
+            nodes.add(s);
+            nodeNumbers.put(s, n);
+            next = Arrays.copyOf(next, (n + 1) * ncolors);
+            Arrays.fill(next, n * ncolors, (n + 1) * ncolors, -1);
+            tags = Arrays.copyOf(tags, (n + 1) * ncolors);
+            conditions = Arrays.copyOf(conditions, (n + 1) * ncolors);
+            acceptTags = Arrays.copyOf(acceptTags, n + 1);
+            acceptConditions = Arrays.copyOf(acceptConditions, n + 1);
+            acceptConditions[n] = -1;
+            return n;
+        }
+
+        /*
+         * Follow the empty arcs and constraints from a node, filling in its transitions.
+         * @return false if the expression isn't one-pass, or is too big, or has things we don't handle.
+         */
+        boolean closure(int n) {
+            State from = nodes.get(n);
+            Reference2LongOpenHashMap<State> seenTags = new Reference2LongOpenHashMap<State>();
+            Reference2IntOpenHashMap<State> seenConditions = new Reference2IntOpenHashMap<State>();
+            List<State> stack = Lists.newArrayList();
+            stack.add(from);
+            seenTags.put(from, 0L);
+            seenConditions.put(from, NO_CONDITIONS);
+
+            while (!stack.isEmpty()) {
+                State s = stack.remove(stack.size() - 1);
+                long pathTags = seenTags.getLong(s);
+                int pathConditions = seenConditions.getInt(s);
+
+                if (s == end) {
+                    if (acceptConditions[n] != -1
+                            && (acceptTags[n] != pathTags || acceptConditions[n] != pathConditions)) {
+                        return false;
+                    }
+                    acceptTags[n] = pathTags;
+                    acceptConditions[n] = pathConditions;
+                    continue;
+                }
+
+                for (Arc a = s.outs; a != null; a = a.outchain) {
+                    int conditions = pathConditions;
+                    switch (a.type) {
+                    case Compiler.PLAIN:
+                        if (!transition(n, a, pathTags, pathConditions)) {
+                            return false;
+                        }
+                        continue;
+                    case Compiler.EMPTY:
+                        break;
+                    case '^':
+                        conditions &= ~ANYWHERE | (a.co == 1 ? AT_EDGE : AT_EXCLUDED_EDGE);
+                        break;
+                    case '$':
+                        conditions &= ~(ANYWHERE << 3) | ((a.co == 1 ? AT_EDGE : AT_EXCLUDED_EDGE) << 3);
+                        break;
+                    default:
+                        /* word boundaries, lookahead constraints, and the like */
+                        return false;
+                    }
+                    long targetTags = pathTags | arcTags.getLong(a);
+                    if (seenTags.containsKey(a.to)) {
+                        if (seenTags.getLong(a.to) != targetTags || seenConditions.getInt(a.to) != conditions) {
+                            return false;
+                        }
+                        continue;
+                    }
+                    seenTags.put(a.to, targetTags);
+                    seenConditions.put(a.to, conditions);
+                    stack.add(a.to);
+                }
+            }
+            return true;
+        }
+
+        private boolean transition(int n, Arc a, long pathTags, int pathConditions) {
+            if (a.co < 0 || a.co >= ncolors) {
+                return false;
+            }
+            int target = node(a.to);
+            if (target == -1) {
+                return false;
+            }
+            /* the target's own boundaries come after the character */
+            int ax = n * ncolors + a.co;
+            if (next[ax] != -1) {
+                /* the same way, the same way? */
+                return next[ax] == target && tags[ax] == pathTags && conditions[ax] == pathConditions;
+            }
+            next[ax] = target;
+            tags[ax] = pathTags;
+            conditions[ax] = pathConditions;
+            return true;
+        }
+
+        OnePass build() {
+            return new OnePass(ncolors, next, tags, conditions, acceptTags, acceptConditions);
+        }
+    }
+}
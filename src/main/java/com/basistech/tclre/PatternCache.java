@@ -0,0 +1,256 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import java.util.EnumSet;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * A cache of compiled patterns, for applications that compile the same patterns over and over.
+ * Patterns are keyed by their text, flags, and options. The cache is bounded either by the number of patterns
+ * or by an estimate of the memory they occupy, and evicts the patterns used least recently.
+ * When several threads ask for the same pattern at once, it is compiled once, and they all get the result.
+ * Patterns that fail to compile are not cached; each request throws the exception anew.
+ * <br/>
+ * A cache may be used concurrently from multiple threads.
+ * @see HsrePattern#compile(String, EnumSet, PatternCache)
+ */
+public final class PatternCache {
+    /**
+     * The default maximum number of patterns.
+     */
+    public static final long DEFAULT_MAXIMUM_SIZE = 1000;
+
+    private final LoadingCache<Key, HsrePattern> cache;
+    private final long maximumSize;
+    private final long maximumWeight;
+
+    private PatternCache(Builder builder) {
+        maximumSize = builder.maximumSize;
+        maximumWeight = builder.maximumWeight;
+        CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder().recordStats();
+        CacheLoader<Key, HsrePattern> loader = new CacheLoader<Key, HsrePattern>() {
+            @Override
+            public HsrePattern load(Key key) throws RegexException {
+                return (HsrePattern) Compiler.compile(key.pattern, key.flags, key.options);
+            }
+        };
+        if (maximumWeight > 0) {
+            cache = cacheBuilder.maximumWeight(maximumWeight)
+                    .weigher(new Weigher<Key, HsrePattern>() {
+                        @Override
+                        public int weigh(Key key, HsrePattern value) {
+                            // the weight is taken once, so it includes the machines that the first group() would build.
+                            return (int) Math.min(Integer.MAX_VALUE, value.guts.footprint(value.dissectionTree()));
+                        }
+                    })
+                    .build(loader);
+        } else {
+            cache = cacheBuilder.maximumSize(maximumSize).build(loader);
+        }
+    }
+
+    /**
+     * @return a builder, initialized to a cache of {@link #DEFAULT_MAXIMUM_SIZE} patterns.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Compile a pattern, or find it in the cache.
+     * @param pattern the pattern.
+     * @param flags flags that determine the interpretation of the pattern.
+     * @return the compiled pattern.
+     * @throws RegexException
+     */
+    public RePattern compile(String pattern, EnumSet<PatternFlags> flags) throws RegexException {
+        return compile(pattern, flags, PatternOptions.DEFAULTS);
+    }
+
+    /**
+     * Compile a pattern, or find it in the cache.
+     * @param pattern the pattern.
+     * @param flags flags that determine the interpretation of the pattern.
+     * @param options options that control the resources used by the pattern.
+     * @return the compiled pattern.
+     * @throws RegexException
+     */
+    public RePattern compile(String pattern, EnumSet<PatternFlags> flags, PatternOptions options) throws RegexException {
+        try {
+            return cache.get(new Key(pattern, flags, options));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RegexException) {
+                throw (RegexException) e.getCause();
+            }
+            throw new RegexRuntimeException(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RegexRuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the number of patterns in the cache.
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * Discard all the patterns. The statistics are not reset.
+     */
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * @return the number of requests that found the pattern in the cache.
+     */
+    public long hitCount() {
+        return cache.stats().hitCount();
+    }
+
+    /**
+     * @return the number of requests that did not find the pattern in the cache. Each of these compiled it,
+     * or waited for another thread that was compiling it.
+     */
+    public long missCount() {
+        return cache.stats().missCount();
+    }
+
+    /**
+     * @return the number of times a pattern was compiled, successfully or not.
+     */
+    public long loadCount() {
+        return cache.stats().loadCount();
+    }
+
+    /**
+     * @return the total time spent compiling patterns, in nanoseconds.
+     */
+    public long totalLoadTime() {
+        return cache.stats().totalLoadTime();
+    }
+
+    /**
+     * @return the number of patterns evicted to stay within the bounds.
+     */
+    public long evictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = cache.stats();
+        return Objects.toStringHelper(this)
+                .add("maximumSize", maximumSize)
+                .add("maximumWeight", maximumWeight)
+                .add("size", cache.size())
+                .add("stats", stats)
+                .toString();
+    }
+
+    private static final class Key {
+        final String pattern;
+        final EnumSet<PatternFlags> flags;
+        final PatternOptions options;
+
+        Key(String pattern, EnumSet<PatternFlags> flags, PatternOptions options) {
+            this.pattern = pattern;
+            this.flags = EnumSet.copyOf(flags); // the caller may change theirs.
+            this.options = options;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return pattern.equals(that.pattern) && flags.equals(that.flags) && options.equals(that.options);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(pattern, flags, options);
+        }
+    }
+
+    /**
+     * Builder for {@link PatternCache}.
+     */
+    public static final class Builder {
+        private long maximumSize = DEFAULT_MAXIMUM_SIZE;
+        private long maximumWeight;
+
+        private Builder() {
+            //
+        }
+
+        /**
+         * Bound the cache by the number of patterns.
+         * @param size the most patterns to keep.
+         * @return this builder.
+         */
+        public Builder maximumSize(long size) {
+            if (size < 0) {
+                throw new IllegalArgumentException("Maximum size must not be negative");
+            }
+            this.maximumSize = size;
+            this.maximumWeight = 0;
+            return this;
+        }
+
+        /**
+         * Bound the cache by an estimate of the memory that the compiled patterns occupy,
+         * instead of by their number. So that the estimate holds for as long as a pattern is in the cache,
+         * the cache builds the machines for its subexpressions when it compiles it, rather than at the first
+         * request for a group.
+         * @param bytes the most memory to use.
+         * @return this builder.
+         */
+        public Builder maximumWeight(long bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("Maximum weight must be positive");
+            }
+            this.maximumWeight = bytes;
+            return this;
+        }
+
+        /**
+         * @return the cache.
+         */
+        public PatternCache build() {
+            return new PatternCache(this);
+        }
+    }
+}
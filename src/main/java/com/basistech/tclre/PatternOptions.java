@@ -0,0 +1,329 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.basistech.tclre;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Objects;
+
+/**
+ * Options that control the resources used to compile a pattern and to match with it.
+ * Unlike {@link PatternFlags}, these do not change what a pattern matches.
+ * Instances are immutable; use {@link #builder()} to make one.
+ * @see HsrePattern#compile(String, java.util.EnumSet, PatternOptions)
+ */
+public final class PatternOptions implements Serializable {
+    static final long serialVersionUID = 1L;
+
+    /**
+     * The default memory budget, in bytes, for each lazily-built DFA.
+     */
+    public static final long DEFAULT_DFA_CACHE_BUDGET = 2L * 1024 * 1024;
+
+    /**
+     * The options used when none are specified.
+     */
+    public static final PatternOptions DEFAULTS = builder().build();
+
+    private final long dfaCacheBudget;
+    private final long dissectBudget;
+    private final int eagerDfaStates;
+    private final int maxNfaStates;
+    private final int maxNfaArcs;
+    private final int maxColors;
+    private final int maxTreeNodes;
+    private final long compileTimeoutNanos;
+
+    private PatternOptions(Builder builder) {
+        this.dfaCacheBudget = builder.dfaCacheBudget;
+        this.dissectBudget = builder.dissectBudget;
+        this.eagerDfaStates = builder.eagerDfaStates;
+        this.maxNfaStates = builder.maxNfaStates;
+        this.maxNfaArcs = builder.maxNfaArcs;
+        this.maxColors = builder.maxColors;
+        this.maxTreeNodes = builder.maxTreeNodes;
+        this.compileTimeoutNanos = builder.compileTimeoutNanos;
+    }
+
+    /**
+     * @return a builder, initialized with the defaults.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Each matcher builds DFA states lazily, for the search machine and for each of the machines
+     * used to locate subexpressions. This is the approximate number of bytes that
+     * the states of any one of these DFAs may occupy. When a DFA reaches the budget,
+     * it discards all of its states and starts over.
+     * @return the budget in bytes.
+     * @see RePattern#dfaCacheFlushes()
+     */
+    public long getDfaCacheBudget() {
+        return dfaCacheBudget;
+    }
+
+    /**
+     * For patterns with backreferences, finding a match means trying one way after another of
+     * dividing up each candidate among the parts of the pattern. This is the most such tries that any
+     * one search for a match may make; a search that needs more fails with a {@link MatchBudgetExceededException}.
+     * @return the budget, or 0 for no limit.
+     */
+    public long getDissectBudget() {
+        return dissectBudget;
+    }
+
+    /**
+     * Matchers usually build DFA states as they need them. For a small pattern that is used a lot,
+     * it can be better to build them all when the pattern is compiled, so that matching never stops
+     * to build one, and all the matchers share them. If this is positive, the compiler builds the complete
+     * DFA for the search machine and the main machines, as long as it has no more than this many states
+     * and fits in the {@link #getDfaCacheBudget()}; otherwise, it leaves them to be built as usual.
+     * Machines with lookahead constraints are always built as usual.
+     * @return the most states for a DFA built at compile time, or 0 to build none.
+     */
+    public int getEagerDfaStates() {
+        return eagerDfaStates;
+    }
+
+    /**
+     * The compiler builds an NFA for the whole pattern, and smaller ones for its parts. Bounded
+     * repetitions make copies, so that a short pattern like {@code ((a{255}){255}){255}} can
+     * ask for millions of states. This is the most states that any one of these NFAs may have at once;
+     * a pattern that needs more fails to compile with a {@link PatternTooComplexException}.
+     * Set this, and the other limits, when compiling patterns from untrusted sources.
+     * @return the limit, or 0 for no limit.
+     */
+    public int getMaxNfaStates() {
+        return maxNfaStates;
+    }
+
+    /**
+     * The most arcs that any one NFA may have at once; see {@link #getMaxNfaStates()}.
+     * @return the limit, or 0 for no limit.
+     */
+    public int getMaxNfaArcs() {
+        return maxNfaArcs;
+    }
+
+    /**
+     * The compiler divides the characters into colors, the sets of characters that the
+     * pattern treats alike. Each character class can add some. This is the most colors a pattern may need.
+     * @return the limit, or 0 for no limit.
+     */
+    public int getMaxColors() {
+        return maxColors;
+    }
+
+    /**
+     * The most nodes that the parser may make for the subexpression tree, which has
+     * a few for each parenthesized group, alternative and quantified atom.
+     * @return the limit, or 0 for no limit.
+     */
+    public int getMaxTreeNodes() {
+        return maxTreeNodes;
+    }
+
+    /**
+     * The longest that a compile may take, in nanoseconds. The compiler looks at the clock
+     * every so often, so it may run over by a little.
+     * @return the limit, or 0 for no limit.
+     */
+    public long getCompileTimeoutNanos() {
+        return compileTimeoutNanos;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        PatternOptions that = (PatternOptions) o;
+        return dfaCacheBudget == that.dfaCacheBudget
+                && dissectBudget == that.dissectBudget
+                && eagerDfaStates == that.eagerDfaStates
+                && maxNfaStates == that.maxNfaStates
+                && maxNfaArcs == that.maxNfaArcs
+                && maxColors == that.maxColors
+                && maxTreeNodes == that.maxTreeNodes
+                && compileTimeoutNanos == that.compileTimeoutNanos;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (dfaCacheBudget ^ (dfaCacheBudget >>> 32));
+        result = 31 * result + (int) (dissectBudget ^ (dissectBudget >>> 32));
+        result = 31 * result + eagerDfaStates;
+        result = 31 * result + maxNfaStates;
+        result = 31 * result + maxNfaArcs;
+        result = 31 * result + maxColors;
+        result = 31 * result + maxTreeNodes;
+        return 31 * result + (int) (compileTimeoutNanos ^ (compileTimeoutNanos >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("dfaCacheBudget", dfaCacheBudget)
+                .add("dissectBudget", dissectBudget)
+                .add("eagerDfaStates", eagerDfaStates)
+                .add("maxNfaStates", maxNfaStates)
+                .add("maxNfaArcs", maxNfaArcs)
+                .add("maxColors", maxColors)
+                .add("maxTreeNodes", maxTreeNodes)
+                .add("compileTimeoutNanos", compileTimeoutNanos)
+                .toString();
+    }
+
+    /**
+     * Builder for {@link PatternOptions}.
+     */
+    public static final class Builder {
+        private long dfaCacheBudget = DEFAULT_DFA_CACHE_BUDGET;
+        private long dissectBudget;
+        private int eagerDfaStates;
+        private int maxNfaStates;
+        private int maxNfaArcs;
+        private int maxColors;
+        private int maxTreeNodes;
+        private long compileTimeoutNanos;
+
+        private Builder() {
+            //
+        }
+
+        /**
+         * Set the memory budget for each DFA.
+         * @param bytes the budget. Very small budgets are rounded up to what it takes to make progress.
+         * @return this builder.
+         * @see PatternOptions#getDfaCacheBudget()
+         */
+        public Builder dfaCacheBudget(long bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("DFA cache budget must be positive");
+            }
+            this.dfaCacheBudget = bytes;
+            return this;
+        }
+
+        /**
+         * Set the budget for matching backreferences.
+         * @param steps the budget, or 0 for no limit.
+         * @return this builder.
+         * @see PatternOptions#getDissectBudget()
+         */
+        public Builder dissectBudget(long steps) {
+            if (steps < 0) {
+                throw new IllegalArgumentException("Dissection budget must not be negative");
+            }
+            this.dissectBudget = steps;
+            return this;
+        }
+
+        /**
+         * Build DFAs when the pattern is compiled.
+         * @param states the most states for such a DFA, or 0 to build none.
+         * @return this builder.
+         * @see PatternOptions#getEagerDfaStates()
+         */
+        public Builder eagerDfaStates(int states) {
+            if (states < 0) {
+                throw new IllegalArgumentException("Eager DFA state limit must not be negative");
+            }
+            this.eagerDfaStates = states;
+            return this;
+        }
+
+        /**
+         * Limit the states of each NFA.
+         * @param states the limit, or 0 for no limit.
+         * @return this builder.
+         * @see PatternOptions#getMaxNfaStates()
+         */
+        public Builder maxNfaStates(int states) {
+            this.maxNfaStates = checkLimit(states, "NFA state");
+            return this;
+        }
+
+        /**
+         * Limit the arcs of each NFA.
+         * @param arcs the limit, or 0 for no limit.
+         * @return this builder.
+         * @see PatternOptions#getMaxNfaArcs()
+         */
+        public Builder maxNfaArcs(int arcs) {
+            this.maxNfaArcs = checkLimit(arcs, "NFA arc");
+            return this;
+        }
+
+        /**
+         * Limit the colors.
+         * @param colors the limit, or 0 for no limit.
+         * @return this builder.
+         * @see PatternOptions#getMaxColors()
+         */
+        public Builder maxColors(int colors) {
+            this.maxColors = checkLimit(colors, "Color");
+            return this;
+        }
+
+        /**
+         * Limit the subexpression tree.
+         * @param nodes the limit, or 0 for no limit.
+         * @return this builder.
+         * @see PatternOptions#getMaxTreeNodes()
+         */
+        public Builder maxTreeNodes(int nodes) {
+            this.maxTreeNodes = checkLimit(nodes, "Tree node");
+            return this;
+        }
+
+        /**
+         * Limit the time to compile.
+         * @param duration the limit, or 0 for no limit.
+         * @param unit the unit of the duration.
+         * @return this builder.
+         * @see PatternOptions#getCompileTimeoutNanos()
+         */
+        public Builder compileTimeout(long duration, TimeUnit unit) {
+            if (duration < 0) {
+                throw new IllegalArgumentException("Compile timeout must not be negative");
+            }
+            this.compileTimeoutNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        private static int checkLimit(int limit, String what) {
+            if (limit < 0) {
+                throw new IllegalArgumentException(what + " limit must not be negative");
+            }
+            return limit;
+        }
+
+        /**
+         * @return the options.
+         */
+        public PatternOptions build() {
+            return new PatternOptions(this);
+        }
+    }
+}
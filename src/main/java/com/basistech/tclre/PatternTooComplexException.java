@@ -0,0 +1,69 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+/**
+ * Thrown when compiling a pattern runs into one of the limits in its {@link PatternOptions}.
+ * The message starts with REG_ETOOBIG, the code that Tcl uses for an NFA that is too big.
+ */
+public class PatternTooComplexException extends RegexException {
+    /**
+     * Which limit the compiler ran into.
+     */
+    public enum Limit {
+        /**
+         * An NFA had more than {@link PatternOptions#getMaxNfaStates()} states.
+         */
+        STATES,
+        /**
+         * An NFA had more than {@link PatternOptions#getMaxNfaArcs()} arcs.
+         */
+        ARCS,
+        /**
+         * The pattern needed more than {@link PatternOptions#getMaxColors()} colors.
+         */
+        COLORS,
+        /**
+         * The subexpression tree had more than {@link PatternOptions#getMaxTreeNodes()} nodes.
+         */
+        TREE_NODES,
+        /**
+         * The compiler ran longer than {@link PatternOptions#getCompileTimeoutNanos()}.
+         */
+        TIME,
+        /**
+         * The NFA was too long for the compiler's recursive traversals to fit on the thread's stack.
+         * Lower {@link PatternOptions#getMaxNfaStates()} to fail sooner, or compile on a thread with a bigger stack.
+         */
+        STACK
+    }
+
+    private final Limit limit;
+
+    public PatternTooComplexException(Limit limit, String message) {
+        super(message);
+        this.limit = limit;
+    }
+
+    /**
+     * @return which limit the compiler ran into.
+     */
+    public Limit getLimit() {
+        return limit;
+    }
+}
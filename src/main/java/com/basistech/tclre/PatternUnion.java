@@ -0,0 +1,282 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+/**
+ * The search machines of several patterns, combined into one, so that one pass over the data
+ * finds out which of them occur in it.
+ *
+ * Each pattern has its own colors, so the union has colors that refine all of them: two characters
+ * have the same color in the union if they have the same color in every member. The pre states
+ * of the members are merged into the pre state of the union; each member keeps its own post state,
+ * and reaching it means that the member matches. The union's own post state is unreachable.
+ *
+ * Members with lookahead constraints or backreferences don't go in unions;
+ * see {@link RePatternSet}.
+ */
+class PatternUnion implements Serializable {
+    static final long serialVersionUID = 1L;
+    /* Past these, a union is split in two; arcs on a member's color are copied for each union color within it. */
+    static final int MAX_ARCS = 1 << 22;
+    static final int MAX_STATES = 1 << 16;
+    private static final short PSEUDOCOLORS = 4; /* BOS, BOL, EOS, EOL */
+
+    final HsrePattern machine; // the union, as a pattern with nothing but a search machine.
+    final int[] members; // the pattern numbers of the members.
+    final int[] memberOfState; // for each state of the union, the member it accepts, or -1.
+    final long[] accepting; // the states that accept, as a bit vector.
+
+    private PatternUnion(HsrePattern machine, int[] members, int[] memberOfState) {
+        this.machine = machine;
+        this.members = members;
+        this.memberOfState = memberOfState;
+        accepting = new long[(memberOfState.length + 63) >>> 6];
+        for (int s = 0; s < memberOfState.length; s++) {
+            if (memberOfState[s] != -1) {
+                accepting[s >>> 6] |= 1L << s;
+            }
+        }
+    }
+
+    /**
+     * build - combine patterns, into as many unions as it takes to stay within the limits.
+     * @param patterns the patterns, none of which have lookahead constraints or backreferences.
+     * @param numbers the pattern numbers to report for them.
+     * @param options the options for running the unions.
+     * @param unions receives the unions.
+     */
+    static void build(List<HsrePattern> patterns, int[] numbers, PatternOptions options, List<PatternUnion> unions) {
+        if (patterns.isEmpty()) {
+            return;
+        }
+        PatternUnion union = tryBuild(patterns, numbers, options);
+        if (union != null) {
+            unions.add(union);
+            return;
+        }
+        int half = patterns.size() / 2;
+        int[] left = new int[half];
+        int[] right = new int[numbers.length - half];
+        System.arraycopy(numbers, 0, left, 0, half);
+        System.arraycopy(numbers, half, right, 0, right.length);
+        build(patterns.subList(0, half), left, options, unions);
+        build(patterns.subList(half, patterns.size()), right, options, unions);
+    }
+
+    /*
+     * The union, or null if it's over the limits and could be split.
+     */
+    private static PatternUnion tryBuild(List<HsrePattern> patterns, int[] numbers, PatternOptions options) {
+        boolean mustFit = patterns.size() == 1;
+
+        /* colors that refine those of every member */
+        short[] colors = new short[Character.MAX_VALUE + 1];
+        int ncolors = refineColors(patterns, colors);
+        if (ncolors == -1) {
+            if (mustFit) {
+                throw new RegexRuntimeException("Too many colors"); // one pattern's own colors always fit.
+            }
+            return null;
+        }
+        char[] representatives = new char[ncolors];
+        for (int c = Character.MAX_VALUE; c >= 0; c--) {
+            representatives[colors[c]] = (char) c;
+        }
+        short bos0 = (short) ncolors;
+        short[] bos = {bos0, (short) (bos0 + 1)};
+        short[] eos = {(short) (bos0 + 2), (short) (bos0 + 3)};
+        int unionColors = ncolors + PSEUDOCOLORS;
+
+        /* where the states of each member go; 0 is the pre state, 1 is the (unused) post state */
+        int[] bases = new int[patterns.size()];
+        short[][][] expansions = new short[patterns.size()][][];
+        int nstates = 2;
+        long narcs = 0;
+        boolean[] preLoop = new boolean[unionColors];
+        LongOpenHashSet preArcs = new LongOpenHashSet();
+        for (int m = 0; m < patterns.size(); m++) {
+            Cnfa cnfa = patterns.get(m).guts.search;
+            bases[m] = nstates;
+            nstates += cnfa.states.length;
+            short[][] expansion = expansion(patterns.get(m).guts.cm, cnfa, representatives, bos, eos);
+            expansions[m] = expansion;
+            for (int s = 0; s < cnfa.states.length; s++) {
+                if (s == cnfa.pre) {
+                    collectPreArcs(cnfa, expansion, bases[m], preLoop, preArcs);
+                    continue;
+                }
+                for (int ax = cnfa.states[s] + 1; Cnfa.carcColor(cnfa.arcs[ax]) != Constants.COLORLESS; ax++) {
+                    narcs += expansion[Cnfa.carcColor(cnfa.arcs[ax])].length;
+                }
+            }
+        }
+        int npreLoop = 0;
+        for (boolean loop : preLoop) {
+            if (loop) {
+                npreLoop++;
+            }
+        }
+        narcs += npreLoop + preArcs.size() + 2L * nstates;
+        if (!mustFit && (narcs > MAX_ARCS || nstates > MAX_STATES)) {
+            return null;
+        }
+
+        CnfaBuilder builder = new CnfaBuilder(nstates, (int) narcs, 0, 1, bos, eos, unionColors, 0);
+        int[] memberOfState = new int[nstates];
+        Arrays.fill(memberOfState, -1);
+        int arcIndex = 0;
+
+        /* the merged pre state, which makes no progress */
+        builder.setState(0, arcIndex);
+        builder.setArc(arcIndex++, Cnfa.packCarc((short) 1, 0));
+        for (short co = 0; co < unionColors; co++) {
+            if (preLoop[co]) {
+                builder.setArc(arcIndex++, Cnfa.packCarc(co, 0));
+            }
+        }
+        for (long arc : preArcs) {
+            builder.setArc(arcIndex++, arc);
+        }
+        builder.setArc(arcIndex++, Cnfa.packCarc(Constants.COLORLESS, 0));
+
+        /* the unused post state */
+        builder.setState(1, arcIndex);
+        builder.setArc(arcIndex++, Cnfa.packCarc((short) 0, 0));
+        builder.setArc(arcIndex++, Cnfa.packCarc(Constants.COLORLESS, 0));
+
+        for (int m = 0; m < patterns.size(); m++) {
+            Cnfa cnfa = patterns.get(m).guts.search;
+            short[][] expansion = expansions[m];
+            memberOfState[bases[m] + cnfa.post] = m;
+            for (int s = 0; s < cnfa.states.length; s++) {
+                builder.setState(bases[m] + s, arcIndex);
+                builder.setArc(arcIndex++, cnfa.arcs[cnfa.states[s]]); /* the progress flag */
+                if (s != cnfa.pre) {
+                    /* (the member's own pre state is left without arcs; the merged one does its work) */
+                    for (int ax = cnfa.states[s] + 1; Cnfa.carcColor(cnfa.arcs[ax]) != Constants.COLORLESS; ax++) {
+                        int to = target(cnfa, bases[m], Cnfa.carcTarget(cnfa.arcs[ax]));
+                        for (short co : expansion[Cnfa.carcColor(cnfa.arcs[ax])]) {
+                            builder.setArc(arcIndex++, Cnfa.packCarc(co, to));
+                        }
+                    }
+                }
+                builder.setArc(arcIndex++, Cnfa.packCarc(Constants.COLORLESS, 0));
+            }
+        }
+        assert arcIndex <= narcs;
+
+        Guts guts = new Guts(builder.build(), new RuntimeColorMap(colors));
+        HsrePattern machine = new HsrePattern("", EnumSet.noneOf(PatternFlags.class), 0, 0, guts, options);
+        return new PatternUnion(machine, numbers.clone(), memberOfState);
+    }
+
+    private static int target(Cnfa cnfa, int base, int to) {
+        return to == cnfa.pre ? 0 : base + to;
+    }
+
+    private static void collectPreArcs(Cnfa cnfa, short[][] expansion, int base, boolean[] preLoop, LongOpenHashSet preArcs) {
+        for (int ax = cnfa.states[cnfa.pre] + 1; Cnfa.carcColor(cnfa.arcs[ax]) != Constants.COLORLESS; ax++) {
+            int to = target(cnfa, base, Cnfa.carcTarget(cnfa.arcs[ax]));
+            for (short co : expansion[Cnfa.carcColor(cnfa.arcs[ax])]) {
+                if (to == 0) {
+                    preLoop[co] = true;
+                } else {
+                    preArcs.add(Cnfa.packCarc(co, to));
+                }
+            }
+        }
+    }
+
+    /*
+     * For each of a member's colors, the union colors it covers.
+     */
+    private static short[][] expansion(RuntimeColorMap cm, Cnfa cnfa, char[] representatives, short[] bos, short[] eos) {
+        int[] counts = new int[cnfa.ncolors];
+        for (char c : representatives) {
+            counts[cm.getcolor(c)]++;
+        }
+        short[][] expansion = new short[cnfa.ncolors][];
+        for (int co = 0; co < cnfa.ncolors; co++) {
+            expansion[co] = new short[counts[co]];
+        }
+        int[] next = new int[cnfa.ncolors];
+        for (short co = 0; co < representatives.length; co++) {
+            short memberColor = cm.getcolor(representatives[co]);
+            expansion[memberColor][next[memberColor]++] = co;
+        }
+        /* the pseudocolors have no characters; each goes to its counterpart */
+        for (int x = 0; x < 2; x++) {
+            expansion[cnfa.bos[x]] = new short[] {bos[x]};
+            expansion[cnfa.eos[x]] = new short[] {eos[x]};
+        }
+        return expansion;
+    }
+
+    /*
+     * Fill in colors that refine those of all the patterns, and return how many there are,
+     * or -1 if there are too many. Each pattern splits the existing colors by its own
+     * colors; characters that are white for the pattern keep their colors, and the others
+     * get a new color for each combination of old color and pattern color.
+     */
+    private static int refineColors(List<HsrePattern> patterns, short[] colors) {
+        int[] refined = new int[Character.MAX_VALUE + 1];
+        int next = 1;
+        Long2IntOpenHashMap splits = new Long2IntOpenHashMap();
+        splits.defaultReturnValue(-1);
+        for (HsrePattern pattern : patterns) {
+            RuntimeColorMap cm = pattern.guts.cm;
+            splits.clear();
+            for (int c = 0; c <= Character.MAX_VALUE; c++) {
+                short co = cm.getcolor((char) c);
+                if (co != Constants.WHITE) {
+                    long key = ((long) refined[c] << 16) | co;
+                    int color = splits.get(key);
+                    if (color == -1) {
+                        color = next++;
+                        splits.put(key, color);
+                    }
+                    refined[c] = color;
+                }
+            }
+        }
+
+        /* and number them densely, as they appear */
+        int[] dense = new int[next];
+        Arrays.fill(dense, -1);
+        int ncolors = 0;
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            int color = refined[c];
+            if (dense[color] == -1) {
+                if (ncolors + PSEUDOCOLORS > Short.MAX_VALUE) {
+                    return -1;
+                }
+                dense[color] = ncolors++;
+            }
+            colors[c] = (short) dense[color];
+        }
+        return ncolors;
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.basistech.tclre;
 
+import java.io.IOException;
 import java.util.EnumSet;
 import java.util.regex.MatchResult;
 
@@ -37,6 +38,10 @@ import java.util.regex.MatchResult;
  * Matchers support an iterative scanning process for multiple matches. After a successful call
  * to {@link #find()} or {@link #find(int)}, the matcher retains the offset of the end of the match.
  * A subsequent call to {@link #find()} starts at the character after the previous match.
+ * <br/>
+ * As in {@link java.util.regex.Matcher}, {@link #groupCount()} is the number of capturing
+ * subexpressions in the pattern, whether or not they took part in the match. A group that
+ * did not take part has -1 for its start and end, and null for its text.
  */
 public interface ReMatcher extends MatchResult {
     /**
@@ -60,6 +65,101 @@ public interface ReMatcher extends MatchResult {
      */
     boolean find();
 
+    /**
+     * Report whether the pattern occurs anywhere in the region, honoring the flags.
+     * This is cheaper than {@link #find(int)}, since it doesn't work out where
+     * the match is. It does not change the results from {@link java.util.regex.MatchResult}
+     * or the position for the next call to {@link #find()}.
+     * @return true if the pattern was found
+     */
+    boolean hasMatch();
+
+    /**
+     * Pass each of the matches in the region to a consumer, from left to right.
+     * Unlike a series of calls to {@link #find()}, which treat each starting point as the beginning
+     * of the data, this treats the whole region as the data. '^' matches only at its start, or
+     * after a newline with {@link PatternFlags#NLANCH}, and the word-boundary constraints {@code \m},
+     * {@code \M}, {@code \y} and {@code \Y} see the character before each match. After an empty match,
+     * the next match begins at least one character later. This resets the matcher first.
+     * If the consumer stops the iteration, the methods from {@link java.util.regex.MatchResult}
+     * then describe the match it stopped on, and {@link #find()} continues after it; otherwise, as after
+     * a failed {@link #find()}, there is no match.
+     * @param consumer the consumer, which is passed this matcher as the match.
+     * @return the number of matches passed to the consumer.
+     */
+    int forEachMatch(MatchConsumer consumer);
+
+    /**
+     * The matches in the region, as with {@link #forEachMatch(MatchConsumer)}, but
+     * for iteration. Each iterator resets the matcher, and returns this matcher, as a view
+     * of the current match, for each match; the view changes as the iteration proceeds.
+     * @return the matches.
+     */
+    Iterable<MatchResult> findAll();
+
+    /**
+     * Replace each of the matches in the region, as found by {@link #forEachMatch(MatchConsumer)}.
+     * The replacement is a template, as for {@link java.util.regex.Matcher#replaceAll(String)}:
+     * '$' and a group number stand for the text of the group, and a backslash quotes the next character.
+     * Text outside the region is copied unchanged. This resets the matcher, before and after.
+     * @param replacement the template.
+     * @return the data, with the matches replaced.
+     */
+    String replaceAll(String replacement);
+
+    /**
+     * Replace each of the matches in the region with text computed from the match.
+     * @param replacer computes the replacements.
+     * @return the data, with the matches replaced.
+     * @see #replaceAll(String)
+     */
+    String replaceAll(MatchReplacer replacer);
+
+    /**
+     * Replace the first match in the region.
+     * @param replacement the template.
+     * @return the data, with the match replaced.
+     * @see #replaceAll(String)
+     */
+    String replaceFirst(String replacement);
+
+    /**
+     * Append the text from the end of the previous appended match up to the current match,
+     * and then the replacement for the current match. The group text is copied from the data;
+     * the template is parsed once for a run of calls with the same one.
+     * Use with {@link #find()} and {@link #appendTail(StringBuilder)}, as with
+     * {@link java.util.regex.Matcher#appendReplacement}.
+     * @param out where to append.
+     * @param replacement the template.
+     * @return this matcher.
+     * @throws IllegalStateException if there is no current match.
+     */
+    ReMatcher appendReplacement(StringBuilder out, String replacement);
+
+    /**
+     * Like {@link #appendReplacement(StringBuilder, String)}, to any {@link Appendable}.
+     * @param out where to append.
+     * @param replacement the template.
+     * @return this matcher.
+     * @throws IOException from the appendable.
+     */
+    ReMatcher appendReplacement(Appendable out, String replacement) throws IOException;
+
+    /**
+     * Append the rest of the data after the last appended match.
+     * @param out where to append.
+     * @return out.
+     */
+    StringBuilder appendTail(StringBuilder out);
+
+    /**
+     * Like {@link #appendTail(StringBuilder)}, to any {@link Appendable}.
+     * @param out where to append.
+     * @return out.
+     * @throws IOException from the appendable.
+     */
+    Appendable appendTail(Appendable out) throws IOException;
+
     /**
      * Specify a region that bounds searching and matching. The region is
      * [start, end]. This resets the current search position to the start
@@ -97,6 +197,20 @@ public interface ReMatcher extends MatchResult {
      */
     EnumSet<ExecFlags> flags();
 
+    /**
+     * Limit the work of each search that this matcher makes; a search that runs over
+     * fails with a {@link MatchBudgetExceededException}. The work of finding the subexpressions
+     * of a match, which waits until one of them is asked for, counts as part of the search.
+     * @param budget the budget, or null for no limits.
+     * @return this matcher.
+     */
+    ReMatcher budget(MatchBudget budget);
+
+    /**
+     * @return the budget, or null if there is none.
+     */
+    MatchBudget budget();
+
     /**
      * Perform a match operation.
      * @return true if the pattern is satisfied by the entire region.
@@ -16,6 +16,9 @@
 
 package com.basistech.tclre;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.EnumSet;
 
 /**
@@ -39,6 +42,73 @@ public interface RePattern {
      */
     ReMatcher matcher(CharSequence data, EnumSet<ExecFlags> flags);
 
+    /**
+     * Create a matcher over part of an array. The matcher reads the array directly,
+     * which is faster than going through a {@link CharSequence}. The array is not copied;
+     * it must not change while the matcher uses it.
+     * @param buf the array.
+     * @param off the offset of the data in the array; offsets in matches are relative to this.
+     * @param len the length of the data.
+     * @param flags optional flags that change the behavior of the matcher.
+     * @return the matcher
+     */
+    ReMatcher matcher(char[] buf, int off, int len, ExecFlags... flags);
+
+    /**
+     * Create a matcher over UTF-8 text, which reports offsets in bytes.
+     * @param utf8 the data, from the buffer's position to its limit.
+     * @param flags optional flags that change the behavior of the matcher.
+     * @return the matcher
+     */
+    Utf8Matcher utf8Matcher(ByteBuffer utf8, ExecFlags... flags);
+
+    /**
+     * Create a matcher for data that arrives in pieces.
+     * @param flags optional flags that change the behavior of the matcher; LOOKING_AT is not supported.
+     * @return the matcher
+     */
+    StreamMatcher streamMatcher(ExecFlags... flags);
+
+    /**
+     * Split data around the matches of this pattern, as {@link java.util.regex.Pattern#split(CharSequence, int)} does.
+     * The matches are those found by {@link ReMatcher#forEachMatch(MatchConsumer)}. An empty match at
+     * the start of the data does not make an empty first field. If nothing matches, the result is the whole data.
+     * @param data the data.
+     * @param limit if positive, the most fields to return, the last holding the rest of the data; if zero,
+     *              as many as there are, less any empty ones at the end; if negative, as many as there are.
+     * @return the fields.
+     */
+    String[] split(CharSequence data, int limit);
+
+    /**
+     * Split data around the matches of this pattern, as {@link #split(CharSequence, int)} does with a limit of zero,
+     * but lazily. Each iterator makes one pass over the data, finding matches only as fields are asked for,
+     * and holds a constant amount of memory however many fields there are. The fields are views of the data,
+     * not copies, so the data must not change while they are in use.
+     * @param data the data.
+     * @return the fields.
+     */
+    Iterable<CharSequence> splitLazily(CharSequence data);
+
+    /**
+     * Report whether the pattern occurs anywhere in the data. This is cheaper than
+     * creating a matcher and calling {@link ReMatcher#find()}, since it doesn't work out
+     * where the match is, and it may be called concurrently from multiple threads.
+     * @param data the data.
+     * @return true if the pattern was found.
+     */
+    boolean test(CharSequence data);
+
+    /**
+     * Write the compiled pattern in a compact binary form, which {@link HsrePattern#readFrom(ByteBuffer)}
+     * reads back without compiling again. This is much smaller, and much faster to read, than
+     * Java serialization. The form has a version number; a release that changes it can't read
+     * what earlier releases wrote.
+     * @param out where to write.
+     * @throws IOException from the output.
+     */
+    void writeTo(DataOutput out) throws IOException;
+
     /**
      * @return string representation of pattern.
      */
@@ -48,4 +118,12 @@ public interface RePattern {
      * @return return flags.
      */
     EnumSet<PatternFlags> flags();
+
+    /**
+     * Matchers build DFA states as they go, within the budget set by {@link PatternOptions#getDfaCacheBudget()}.
+     * Each time a DFA exceeds the budget, it discards its states and starts over.
+     * A steadily increasing count indicates that the budget is too small for the pattern and the data.
+     * @return the number of times, so far, that any matcher for this pattern has discarded its DFA states.
+     */
+    long dfaCacheFlushes();
 }
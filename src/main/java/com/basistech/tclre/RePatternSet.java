@@ -0,0 +1,213 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * A set of patterns that are all looked for at once. Rather than running each pattern over the data,
+ * {@link #matches(CharSequence)} runs one combined automaton over it, and reports which of the
+ * patterns occur; the cost is about proportional to the length of the data, not to the length
+ * times the number of patterns. To find where one of them matches, use its own matcher,
+ * from {@link #matcher(int, CharSequence, ExecFlags...)}.
+ * <br/>
+ * Patterns with lookahead constraints or backreferences can't be combined, and are run one at a time.
+ * Patterns that can never match, such as {@code a^b}, are never reported.
+ * Very large sets may be split into several automata, to keep each of them a reasonable size.
+ * <br/>
+ * A set may be used concurrently from multiple threads.
+ */
+public final class RePatternSet implements Serializable {
+    static final long serialVersionUID = 1L;
+    private final List<HsrePattern> patterns;
+    private final List<PatternUnion> unions;
+    private final int[] separate; /* the patterns that are run one at a time */
+    /* Working state for the unions, kept to reuse their DFA states; a concurrent caller that finds it gone makes its own. */
+    private transient AtomicReference<Scratch> spare;
+
+    /*
+     * A runtime, and the flags for its members, for each union.
+     */
+    private static final class Scratch {
+        final Runtime[] runtimes;
+        final boolean[][] found;
+
+        Scratch(List<PatternUnion> unions) {
+            runtimes = new Runtime[unions.size()];
+            found = new boolean[unions.size()][];
+            for (int x = 0; x < runtimes.length; x++) {
+                runtimes[x] = new Runtime();
+                found[x] = new boolean[unions.get(x).members.length];
+            }
+        }
+    }
+
+    private RePatternSet(List<HsrePattern> patterns, PatternOptions options) {
+        this.patterns = ImmutableList.copyOf(patterns);
+        List<HsrePattern> combinable = Lists.newArrayList();
+        IntArrayList combinableNumbers = new IntArrayList();
+        IntArrayList separateNumbers = new IntArrayList();
+        for (int x = 0; x < patterns.size(); x++) {
+            HsrePattern pattern = patterns.get(x);
+            if (0 != (pattern.info & Flags.REG_UIMPOSSIBLE)) {
+                continue; /* it never matches */
+            }
+            if (0 != (pattern.info & Flags.REG_UBACKREF)
+                    || 0 != (pattern.guts.search.flags & Cnfa.HASLACONS)) {
+                separateNumbers.add(x);
+            } else {
+                combinable.add(pattern);
+                combinableNumbers.add(x);
+            }
+        }
+        List<PatternUnion> built = Lists.newArrayList();
+        PatternUnion.build(combinable, combinableNumbers.toIntArray(), options, built);
+        this.unions = ImmutableList.copyOf(built);
+        this.separate = separateNumbers.toIntArray();
+        this.spare = new AtomicReference<Scratch>();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        spare = new AtomicReference<Scratch>();
+    }
+
+    /**
+     * Compile a set of patterns.
+     * @param patterns the patterns; each one is identified by its position in the list.
+     * @param flags flags that determine the interpretation of all the patterns.
+     * @return the set.
+     * @throws RegexException if any of the patterns is invalid.
+     */
+    public static RePatternSet compile(List<String> patterns, EnumSet<PatternFlags> flags) throws RegexException {
+        return compile(patterns, flags, PatternOptions.DEFAULTS);
+    }
+
+    /**
+     * Compile a set of patterns.
+     * @param patterns the patterns; each one is identified by its position in the list.
+     * @param flags flags that determine the interpretation of all the patterns.
+     * @param options options that control the resources used by the patterns and the set.
+     * @return the set.
+     * @throws RegexException if any of the patterns is invalid.
+     */
+    public static RePatternSet compile(List<String> patterns, EnumSet<PatternFlags> flags, PatternOptions options) throws RegexException {
+        List<HsrePattern> compiled = Lists.newArrayListWithCapacity(patterns.size());
+        for (int x = 0; x < patterns.size(); x++) {
+            try {
+                compiled.add((HsrePattern) Compiler.compile(patterns.get(x), flags, options));
+            } catch (RegexException e) {
+                throw new RegexException(String.format("Pattern %d: %s", x, e.getMessage()), e);
+            }
+        }
+        return new RePatternSet(compiled, options);
+    }
+
+    /**
+     * @return the number of patterns.
+     */
+    public int size() {
+        return patterns.size();
+    }
+
+    /**
+     * @param index the position of a pattern in the list it was compiled from.
+     * @return the pattern.
+     */
+    public RePattern pattern(int index) {
+        return patterns.get(index);
+    }
+
+    /**
+     * Create a matcher for one of the patterns, to find out where it matches.
+     * @param index the position of the pattern in the list it was compiled from.
+     * @param data the data.
+     * @param flags optional flags that change the behavior of the matcher.
+     * @return the matcher.
+     */
+    public ReMatcher matcher(int index, CharSequence data, ExecFlags... flags) {
+        return patterns.get(index).matcher(data, flags);
+    }
+
+    /**
+     * Find out which of the patterns occur anywhere in the data.
+     * @param data the data.
+     * @return the positions of the patterns that occur.
+     */
+    public BitSet matches(CharSequence data) {
+        BitSet result = new BitSet(patterns.size());
+        Scratch scratch = spare.getAndSet(null);
+        if (scratch == null) {
+            scratch = new Scratch(unions);
+        }
+        try {
+            for (int x = 0; x < unions.size(); x++) {
+                PatternUnion union = unions.get(x);
+                boolean[] found = scratch.found[x];
+                Arrays.fill(found, false);
+                scratch.runtimes[x].scanUnion(union, data, 0, data.length(), 0, found);
+                for (int m = 0; m < found.length; m++) {
+                    if (found[m]) {
+                        result.set(union.members[m]);
+                    }
+                }
+            }
+        } catch (RegexException e) {
+            throw new RegexRuntimeException(e);
+        } finally {
+            for (Runtime runtime : scratch.runtimes) {
+                runtime.forgetData(); // don't hang on to the caller's data.
+            }
+            spare.set(scratch);
+        }
+        for (int n : separate) {
+            if (patterns.get(n).test(data)) {
+                result.set(n);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of combined automata; for testing.
+     */
+    int unionCount() {
+        return unions.size();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("size", patterns.size())
+                .add("unions", unions.size())
+                .add("separate", separate.length)
+                .toString();
+    }
+}
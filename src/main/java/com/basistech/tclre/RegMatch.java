@@ -1,68 +0,0 @@
-/*
- * Copyright 2014 Basis Technology Corp.
- *
- *    Licensed under the Apache License, Version 2.0 (the "License");
- *    you may not use this file except in compliance with the License.
- *    You may obtain a copy of the License at
- *
- *        http://www.apache.org/licenses/LICENSE-2.0
- *
- *    Unless required by applicable law or agreed to in writing, software
- *    distributed under the License is distributed on an "AS IS" BASIS,
- *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- *    See the License for the specific language governing permissions and
- *    limitations under the License.
- */
-
-package com.basistech.tclre;
-
-import com.google.common.base.Objects;
-
-/**
- * Created by benson on 6/5/14.
- */
-class RegMatch {
-    final int start;
-    final int end;
-
-    RegMatch(int start, int end) {
-        this.start = start;
-        this.end = end;
-    }
-
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) {
-            return true;
-        }
-        if (o == null || getClass() != o.getClass()) {
-            return false;
-        }
-
-        RegMatch regMatch = (RegMatch)o;
-
-        if (end != regMatch.end) {
-            return false;
-        }
-        if (start != regMatch.start) {
-            return false;
-        }
-
-        return true;
-    }
-
-    @Override
-    public int hashCode() {
-        int result = start;
-        result = 31 * result + end;
-        return result;
-    }
-
-    @Override
-    public String toString() {
-        return Objects.toStringHelper(this)
-                .add("start", start)
-                .add("end", end)
-                .toString();
-    }
-}
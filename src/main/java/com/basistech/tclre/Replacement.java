@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import java.io.IOException;
+import java.util.regex.MatchResult;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * A replacement template, parsed once. The syntax is that of {@link java.util.regex.Matcher#appendReplacement}:
+ * '$' and a group number stand for the text of the group, and a backslash takes the next character literally.
+ * The group number is as many digits as make a group that exists.
+ */
+final class Replacement {
+    final String template;
+    /* the literal text, with the escapes removed. */
+    private final String text;
+    /* a group number, or the complement of the end of a run of literal text. */
+    private final int[] pieces;
+
+    Replacement(String template, int groupCount) {
+        this.template = template;
+        StringBuilder literal = new StringBuilder(template.length());
+        IntArrayList parsed = new IntArrayList();
+        int x = 0;
+        while (x < template.length()) {
+            char c = template.charAt(x++);
+            if (c == '\\') {
+                if (x == template.length()) {
+                    throw new IllegalArgumentException("Replacement ends with a backslash");
+                }
+                literal.append(template.charAt(x++));
+            } else if (c == '$') {
+                if (x == template.length() || !isDigit(template.charAt(x))) {
+                    throw new IllegalArgumentException("No group number after '$' at " + (x - 1));
+                }
+                int group = template.charAt(x++) - '0';
+                if (group > groupCount) {
+                    throw new IndexOutOfBoundsException("No group " + group);
+                }
+                while (x < template.length() && isDigit(template.charAt(x))) {
+                    int longer = group * 10 + template.charAt(x) - '0';
+                    if (longer > groupCount) {
+                        break;
+                    }
+                    group = longer;
+                    x++;
+                }
+                endLiteral(parsed, literal);
+                parsed.add(group);
+            } else {
+                literal.append(c);
+            }
+        }
+        endLiteral(parsed, literal);
+        text = literal.toString();
+        pieces = parsed.toIntArray();
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static void endLiteral(IntArrayList parsed, StringBuilder literal) {
+        int start = 0;
+        for (int x = parsed.size() - 1; x >= 0; x--) {
+            if (parsed.getInt(x) < 0) {
+                start = ~parsed.getInt(x);
+                break;
+            }
+        }
+        if (literal.length() > start) {
+            parsed.add(~literal.length());
+        }
+    }
+
+    /**
+     * Append the replacement for a match. The text of the groups is copied straight from the data.
+     * @param out where to append.
+     * @param match the match.
+     * @param data the data that the match offsets refer to.
+     */
+    void appendTo(Appendable out, MatchResult match, CharSequence data) throws IOException {
+        int literalStart = 0;
+        for (int piece : pieces) {
+            if (piece < 0) {
+                out.append(text, literalStart, ~piece);
+                literalStart = ~piece;
+            } else {
+                int start = match.start(piece);
+                if (start != -1) {
+                    out.append(data, start, match.end(piece));
+                }
+            }
+        }
+    }
+}
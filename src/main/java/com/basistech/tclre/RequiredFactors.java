@@ -0,0 +1,389 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import it.unimi.dsi.fastutil.chars.CharArrayList;
+
+/**
+ * A set of literal factors, one of which every match of a pattern must contain.
+ * For example, every match of {@code \d+\.log} contains {@code .log}, and every match of
+ * {@code (foo|bar)baz} contains {@code baz}. If the data contains none of them, there's
+ * no need to run any machine at all. As in {@link LiteralPrefix}, each position of a factor
+ * may allow a few characters.
+ *
+ * The factors come from the dominators of the post state of the main machine: the states that every
+ * match passes through. Where all the paths from one of these to the next are short and acyclic, and spell out
+ * only a few characters at each step, they yield literals; consecutive literal stretches are concatenated.
+ * The search is a Horspool search for a set of patterns, keyed on the shortest factor.
+ */
+class RequiredFactors implements Serializable {
+    static final long serialVersionUID = 1L;
+    static final int MAX_LENGTH = 16;
+    static final int MAX_CHARS = 8;
+    static final int MAX_FACTORS = 8;
+    /* short factors turn up everywhere, and then the scan is just overhead. */
+    static final int MIN_LENGTH = 3;
+    /* the analysis is quadratic in the number of states. */
+    static final int MAX_STATES = 1024;
+
+    private final char[][][] factors;
+    private final int window; // the length of the shortest factor
+    private final int[] shift; // by the low byte of the character
+
+    RequiredFactors(char[][][] factors) {
+        this.factors = factors;
+        int min = Integer.MAX_VALUE;
+        for (char[][] factor : factors) {
+            min = Math.min(min, factor.length);
+        }
+        window = min;
+        shift = new int[256];
+        Arrays.fill(shift, window);
+        for (char[][] factor : factors) {
+            for (int x = 0; x < window - 1; x++) {
+                for (char c : factor[x]) {
+                    shift[c & 0xff] = Math.min(shift[c & 0xff], window - 1 - x);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the binary form; see {@link HsrePattern#writeTo(DataOutput)}.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(factors.length);
+        for (char[][] factor : factors) {
+            out.writeInt(factor.length);
+            for (char[] position : factor) {
+                Codec.writeChars(out, position);
+            }
+        }
+    }
+
+    static RequiredFactors readFrom(ByteBuffer in) {
+        char[][][] factors = new char[in.getInt()][][];
+        for (int x = 0; x < factors.length; x++) {
+            factors[x] = new char[in.getInt()][];
+            for (int y = 0; y < factors[x].length; y++) {
+                factors[x][y] = Codec.readChars(in);
+            }
+        }
+        return new RequiredFactors(factors);
+    }
+
+    /**
+     * @return the length of the shortest factor.
+     */
+    int minLength() {
+        return window;
+    }
+
+    int size() {
+        return factors.length;
+    }
+
+    /**
+     * find - find the first place where any of the factors occurs.
+     * @param runtime the runtime, which reads the data.
+     * @param from where to start looking.
+     * @param to the end of the data.
+     * @return the start of the first factor found, or -1 if none occurs.
+     */
+    int find(Runtime runtime, int from, int to) {
+        int last = window - 1;
+        for (int pos = from; pos + last < to;) {
+            char c = runtime.charAt(pos + last);
+            for (char[][] factor : factors) {
+                if (pos + factor.length <= to && matchesAt(factor, runtime, pos)) {
+                    return pos;
+                }
+            }
+            pos += shift[c & 0xff];
+        }
+        return -1;
+    }
+
+    private static boolean matchesAt(char[][] factor, Runtime runtime, int pos) {
+        for (int x = factor.length - 1; x >= 0; x--) {
+            if (!contains(factor[x], runtime.charAt(pos + x))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(char[] chars, char c) {
+        for (char candidate : chars) {
+            if (candidate == c) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * extract - work out the required factors of a machine.
+     * @param cnfa the main machine.
+     * @param cm the color map.
+     * @return the factors, or null if there are none worth having.
+     */
+    static RequiredFactors extract(Cnfa cnfa, ColorMap cm) {
+        int nstates = cnfa.states.length;
+        if (nstates > MAX_STATES) {
+            return null;
+        }
+
+        List<List<Integer>> succs = Lists.newArrayList();
+        List<List<Integer>> preds = Lists.newArrayList();
+        for (int s = 0; s < nstates; s++) {
+            succs.add(Lists.<Integer>newArrayList());
+            preds.add(Lists.<Integer>newArrayList());
+        }
+        for (int s = 0; s < nstates; s++) {
+            for (int ax = cnfa.states[s] + 1; Cnfa.carcColor(cnfa.arcs[ax]) != Constants.COLORLESS; ax++) {
+                int to = Cnfa.carcTarget(cnfa.arcs[ax]);
+                succs.get(s).add(to);
+                preds.get(to).add(s);
+            }
+        }
+
+        /* only the states on some path from pre to post matter */
+        BitSet useful = reachable(succs, cnfa.pre);
+        useful.and(reachable(preds, cnfa.post));
+        if (!useful.get(cnfa.post)) {
+            return null;
+        }
+
+        /* dominators, the simple iterative way */
+        BitSet[] dom = new BitSet[nstates];
+        for (int s = useful.nextSetBit(0); s >= 0; s = useful.nextSetBit(s + 1)) {
+            dom[s] = (BitSet) useful.clone();
+        }
+        dom[cnfa.pre].clear();
+        dom[cnfa.pre].set(cnfa.pre);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int s = useful.nextSetBit(0); s >= 0; s = useful.nextSetBit(s + 1)) {
+                if (s == cnfa.pre) {
+                    continue;
+                }
+                BitSet d = (BitSet) useful.clone();
+                for (int p : preds.get(s)) {
+                    if (useful.get(p)) {
+                        d.and(dom[p]);
+                    }
+                }
+                d.set(s);
+                if (!d.equals(dom[s])) {
+                    dom[s] = d;
+                    changed = true;
+                }
+            }
+        }
+
+        /* the dominators of post are a chain; the fewer dominators, the earlier. */
+        final BitSet[] doms = dom;
+        Integer[] chain = new Integer[dom[cnfa.post].cardinality()];
+        int n = 0;
+        for (int s = dom[cnfa.post].nextSetBit(0); s >= 0; s = dom[cnfa.post].nextSetBit(s + 1)) {
+            chain[n++] = s;
+        }
+        Arrays.sort(chain, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return doms[a].cardinality() - doms[b].cardinality();
+            }
+        });
+
+        /* literal stretches between consecutive dominators, concatenated where possible. */
+        char[][] byColor = cm.chars(MAX_CHARS);
+        List<char[][]> best = null;
+        List<char[][]> run = null;
+        for (int x = 0; x + 1 < chain.length; x++) {
+            List<char[][]> segment = null;
+            if (chain[x] != cnfa.pre && chain[x + 1] != cnfa.post) {
+                /* the arcs out of pre and into post are for the characters either side of the match. */
+                segment = paths(cnfa, useful, byColor, chain[x], chain[x + 1]);
+            }
+            if (segment == null) {
+                best = better(best, run);
+                run = null;
+                continue;
+            }
+            List<char[][]> joined = run == null ? segment : concatenate(run, segment);
+            if (joined == null) {
+                best = better(best, run);
+                run = segment;
+            } else {
+                run = joined;
+            }
+        }
+        best = better(best, run);
+
+        if (best == null || minLength(best) < MIN_LENGTH) {
+            return null;
+        }
+        return new RequiredFactors(best.toArray(new char[best.size()][][]));
+    }
+
+    /*
+     * The longer the shortest factor, the better; then, the fewer the better.
+     */
+    private static List<char[][]> better(List<char[][]> a, List<char[][]> b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        int aMin = minLength(a);
+        int bMin = minLength(b);
+        if (bMin > aMin || (bMin == aMin && b.size() < a.size())) {
+            return b;
+        }
+        return a;
+    }
+
+    private static int minLength(List<char[][]> factors) {
+        int min = Integer.MAX_VALUE;
+        for (char[][] factor : factors) {
+            min = Math.min(min, factor.length);
+        }
+        return min;
+    }
+
+    private static List<char[][]> concatenate(List<char[][]> left, List<char[][]> right) {
+        if (left.size() * right.size() > MAX_FACTORS) {
+            return null;
+        }
+        List<char[][]> result = Lists.newArrayList();
+        for (char[][] l : left) {
+            for (char[][] r : right) {
+                if (l.length + r.length > MAX_LENGTH) {
+                    return null;
+                }
+                char[][] both = Arrays.copyOf(l, l.length + r.length);
+                System.arraycopy(r, 0, both, l.length, r.length);
+                result.add(both);
+            }
+        }
+        return result;
+    }
+
+    private static BitSet reachable(List<List<Integer>> arcs, int from) {
+        BitSet seen = new BitSet(arcs.size());
+        int[] stack = new int[arcs.size()];
+        int sp = 0;
+        seen.set(from);
+        stack[sp++] = from;
+        while (sp > 0) {
+            for (int t : arcs.get(stack[--sp])) {
+                if (!seen.get(t)) {
+                    seen.set(t);
+                    stack[sp++] = t;
+                }
+            }
+        }
+        return seen;
+    }
+
+    /*
+     * All the strings spelled out by paths from one state to another, or null if
+     * there are too many, they are too long, or they are not literal.
+     */
+    private static List<char[][]> paths(Cnfa cnfa, BitSet useful, char[][] byColor, int from, int to) {
+        List<char[][]> found = Lists.newArrayList();
+        boolean[] onPath = new boolean[cnfa.states.length];
+        onPath[from] = true;
+        if (!paths(cnfa, useful, byColor, from, to, Lists.<char[]>newArrayList(), onPath, found)) {
+            return null;
+        }
+        return found;
+    }
+
+    private static boolean paths(Cnfa cnfa, BitSet useful, char[][] byColor, int s, int to,
+                                 List<char[]> sofar, boolean[] onPath, List<char[][]> found) {
+        if (s == to) {
+            if (sofar.isEmpty() || found.size() == MAX_FACTORS) {
+                return false;
+            }
+            found.add(sofar.toArray(new char[sofar.size()][]));
+            return true;
+        }
+        if (sofar.size() == MAX_LENGTH) {
+            return false;
+        }
+
+        /* group the arcs by target, so that parallel arcs make one position. */
+        int[] targets = new int[0];
+        CharArrayList[] chars = new CharArrayList[0];
+        for (int ax = cnfa.states[s] + 1; ; ax++) {
+            long ca = cnfa.arcs[ax];
+            short co = Cnfa.carcColor(ca);
+            if (co == Constants.COLORLESS) {
+                break;
+            }
+            int t = Cnfa.carcTarget(ca);
+            if (!useful.get(t)) {
+                continue;
+            }
+            if (co >= cnfa.ncolors || byColor[co] == null || onPath[t]) {
+                /* a constraint, a pseudocolor or a big color, or a loop. */
+                return false;
+            }
+            int x = 0;
+            while (x < targets.length && targets[x] != t) {
+                x++;
+            }
+            if (x == targets.length) {
+                targets = Arrays.copyOf(targets, x + 1);
+                chars = Arrays.copyOf(chars, x + 1);
+                targets[x] = t;
+                chars[x] = new CharArrayList();
+            }
+            chars[x].addAll(CharArrayList.wrap(byColor[co]));
+            if (chars[x].size() > MAX_CHARS) {
+                return false;
+            }
+        }
+
+        for (int x = 0; x < targets.length; x++) {
+            sofar.add(chars[x].toCharArray());
+            onPath[targets[x]] = true;
+            boolean ok = paths(cnfa, useful, byColor, targets[x], to, sofar, onPath, found);
+            onPath[targets[x]] = false;
+            sofar.remove(sofar.size() - 1);
+            if (!ok) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
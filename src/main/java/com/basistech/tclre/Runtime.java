@@ -16,13 +16,16 @@
 
 package com.basistech.tclre;
 
-import java.util.EnumSet;
-import java.util.List;
+import java.nio.CharBuffer;
+import java.util.Arrays;
 
-import com.google.common.collect.Lists;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
 
 /**
  * The internal implementation of matching.
+ * A Runtime is reused for many matches; once it has warmed up, a call to exec
+ * allocates nothing.
  */
 class Runtime {
     static final int UNTRIED = 0;   /* not yet tried at all */
@@ -32,16 +35,140 @@ class Runtime {
     HsrePattern re;
     Guts g;
     int eflags;
-    List<RegMatch> match;
-    RegMatch details;
+    /* start and end offsets of the match and the subexpressions, in pairs; -1 when not set. */
+    int[] match;
     CharSequence data;
-    int dataLength; // cache this, it gets examined _a lot_.
+    /* the data as an array, when it has one, and its offset there; see charAt. */
+    private char[] chars;
+    private int charsBase;
+    /* the data, when it is a String. */
+    private String string;
+    int dataStart; // the match treats this as the beginning of the data.
+    int searchStart; // matches begin here or later; the data before it is just context.
+    int dataEnd; // cache this, it gets examined _a lot_.
     int[] mem; // backtracking.
+    private DissectMemo memo; // failures of backreference dissection, for the current exec.
+    private long dissectSteps; // what's left of the budget for backreference dissection.
+    /* the caller's limits on each search; may be null. */
+    MatchBudget budget;
+    private long stepsLeft; // steps left in the budget, as of the last check.
+    private int interval; // steps from one check to the next.
+    private int countdown; // steps left before the next check.
+    /* find leaves the subexpressions to captures(), which needs the bounds and flags as they were. */
+    boolean deferCaptures;
+    private boolean capturesPending;
+    private int pendingStart;
+    private int pendingEnd;
+    private int pendingEflags;
+    /* the leftmost point at which a lookahead constraint ran into the end of the data; see StreamMatcher. */
+    int laconEdge = Integer.MAX_VALUE;
+    /* One lazily-built DFA per machine, kept across calls to exec. */
+    private final Reference2ObjectMap<Cnfa, Dfa> dfas = new Reference2ObjectOpenHashMap<Cnfa, Dfa>();
+
+    /**
+     * getDfa - obtain the DFA for a machine, keeping whatever states it has
+     * already built.
+     */
+    Dfa getDfa(Cnfa cnfa) {
+        Dfa dfa = dfas.get(cnfa);
+        if (dfa == null) {
+            dfa = new Dfa(this, cnfa);
+            dfas.put(cnfa, dfa);
+        }
+        return dfa;
+    }
 
     /**
      * exec - match regular expression
+     * @param re the pattern.
+     * @param data the data.
+     * @param start where to start looking; treated as the beginning of the data.
+     * @param end where to stop looking; treated as the end of the data.
+     * @param eflags execution flags, from {@link Flags}.
+     */
+    boolean exec(HsrePattern re, CharSequence data, int start, int end, int eflags) throws RegexException {
+        return exec(re, data, start, end, start, eflags);
+    }
+
+    /**
+     * exec - match regular expression, looking only for matches that begin at or after a point.
+     * Arguments are as for {@link #exec(HsrePattern, CharSequence, int, int, int)}, plus:
+     * @param from where to start looking. Anchors and constraints see the data
+     * between start and from, but no match begins there.
+     */
+    boolean exec(HsrePattern re, CharSequence data, int start, int end, int from, int eflags) throws RegexException {
+        setup(re, data, start, end, eflags);
+        searchStart = from;
+        Arrays.fill(match, -1);
+        capturesPending = false;
+
+    /* do it */
+        assert g.tree != null;
+
+        if (!mayMatch()) {
+            return false;
+        }
+
+        if (0 != (g.info & Flags.REG_UBACKREF)) {
+            return cfind(g.tree.machine);
+        } else {
+            return find(g.tree.machine);
+        }
+    }
+
+    /**
+     * test - report whether there is a match, without locating it.
+     * Arguments are as for {@link #exec(HsrePattern, CharSequence, int, int, int)}.
+     * Unless the expression has backreferences, this just runs the search machine,
+     * and stops at the first state set that contains the post state. There are
+     * no bounds, and so no match details, afterwards; the details of any previous
+     * match are left alone.
      */
-    boolean exec(HsrePattern re, CharSequence data, EnumSet<ExecFlags> execFlags) throws RegexException {
+    boolean test(HsrePattern re, CharSequence data, int start, int end, int eflags) throws RegexException {
+        setup(re, data, start, end, eflags);
+
+        if (!mayMatch()) {
+            return false;
+        }
+
+        if (0 != (g.info & Flags.REG_UBACKREF)) {
+            /* the search machine only approximates backreferences; do it the long way. */
+            int[] saved = match.clone();
+            Arrays.fill(match, -1);
+            try {
+                return cfind(g.tree.machine);
+            } finally {
+                System.arraycopy(saved, 0, match, 0, saved.length);
+            }
+        }
+        if (0 != (eflags & Flags.REG_LOOKING_AT)) {
+            /* the search machine doesn't know about that. */
+            return getDfa(g.tree.machine).shortest(dataStart, dataStart, dataEnd) != -1;
+        }
+        return getDfa(g.search).shortest(dataStart, dataStart, dataEnd) != -1;
+    }
+
+    /**
+     * scanUnion - find out which members of a union of patterns occur in the data.
+     * Arguments are as for {@link #exec(HsrePattern, CharSequence, int, int, int)}, plus:
+     * @param union the union.
+     * @param found set for each member, by its position in the union, that occurs.
+     * @return the number of members found.
+     */
+    int scanUnion(PatternUnion union, CharSequence data, int start, int end, int eflags, boolean[] found) throws RegexException {
+        setup(union.machine, data, start, end, eflags);
+        return getDfa(g.search).collect(union.accepting, union.memberOfState, found);
+    }
+
+    /*
+     * Every match contains one of the required factors, if there are any; if the data
+     * contains none of them, there's no need to run any machine.
+     */
+    private boolean mayMatch() {
+        return g.factors == null || g.factors.find(this, searchStart, dataEnd) != -1;
+    }
+
+    void setup(HsrePattern re, CharSequence data, int start, int end, int eflags) throws RegexException {
     /* sanity checks */
     /* setup */
 
@@ -49,74 +176,121 @@ class Runtime {
             throw new RegexException("Regex marked impossible");
         }
 
-        eflags = 0;
-        for (ExecFlags ef : execFlags) {
-            switch (ef) {
-            case NOTBOL:
-                eflags |= Flags.REG_NOTBOL;
-                break;
-            case NOTEOL:
-                eflags |= Flags.REG_NOTEOL;
-                break;
-            case LOOKING_AT:
-                eflags |= Flags.REG_LOOKING_AT;
-                break;
-            default:
-                throw new RuntimeException("impossible exec flag");
-            }
+        if (this.re != re) {
+            // the DFAs and the scratch space belong to one pattern.
+            dfas.clear();
+            this.re = re;
+            this.g = re.guts;
+            match = new int[2 * (g.nsub + 1)];
+            mem = new int[g.ntree];
+        }
+        this.eflags = eflags;
+        setData(data);
+        this.dataStart = start;
+        this.searchStart = start;
+        this.dataEnd = end;
+        Arrays.fill(mem, 0);
+        stepsLeft = budget == null || budget.getMaxSteps() == 0 ? Long.MAX_VALUE : budget.getMaxSteps();
+        refill();
+        if (budget != null) {
+            budget.check();
         }
+    }
 
-        this.re = re;
-        this.g = re.guts;
+    /**
+     * Set the data that {@link #charAt(int)} reads, without preparing for a search.
+     */
+    void setData(CharSequence data) {
         this.data = data;
-        this.dataLength = this.data.length();
-        this.match = Lists.newArrayList();
-        match.add(null); // make room for 1.
-        if (0 != (g.info & Flags.REG_UBACKREF)) {
-            while (match.size() < g.nsub + 1) {
-                match.add(null);
+        chars = null;
+        string = null;
+        if (data instanceof String) {
+            string = (String) data;
+        } else if (data instanceof CharBuffer && ((CharBuffer) data).hasArray()) {
+            CharBuffer buffer = (CharBuffer) data;
+            chars = buffer.array();
+            charsBase = buffer.arrayOffset() + buffer.position();
+        }
+    }
+
+    /**
+     * Count a step against the budget. This is called for each character, so it does
+     * no more than count; the budget is checked every so often.
+     */
+    void step() {
+        if (--countdown < 0) {
+            checkBudget();
+        }
+    }
+
+    private void checkBudget() {
+        stepsLeft -= interval;
+        if (budget != null) {
+            if (stepsLeft <= 0) {
+                throw new MatchBudgetExceededException(MatchBudgetExceededException.Reason.STEPS,
+                        String.format("Search exceeded its budget of %d steps", budget.getMaxSteps()));
             }
+            budget.check();
         }
-        mem = new int[g.ntree];
-       
-    /* do it */
-        assert g.tree != null;
+        refill();
+        countdown--; // the step that got here.
+    }
 
-        if (0 != (g.info & Flags.REG_UBACKREF)) {
-            return cfind(g.tree.machine);
-        } else {
-            return find(g.tree.machine);
+    private void refill() {
+        interval = (int) Math.min(budget == null ? Integer.MAX_VALUE : MatchBudget.CHECK_INTERVAL, stepsLeft);
+        countdown = interval;
+    }
+
+    /**
+     * The character at an offset in the data, counted as a step. The DFA loops call this for every character,
+     * and the literal prefix and factor scans for each character they examine;
+     * reading Strings and arrays directly keeps the call to {@link CharSequence#charAt(int)}
+     * from seeing many classes of data, which would stop the JIT from inlining it.
+     */
+    char charAt(int cp) {
+        step();
+        if (chars != null) {
+            return chars[charsBase + cp];
+        }
+        if (string != null) {
+            return string.charAt(cp);
         }
+        return data.charAt(cp);
+    }
+
+    /**
+     * Let go of the data, so that a runtime kept for reuse doesn't hold on to it.
+     */
+    void forgetData() {
+        data = null;
+        chars = null;
+        string = null;
     }
 
     /**
      * find - find a match for the main NFA (no-complications case)
      * This method uses a strategy that we may want to change. First, it runs the 'search machine',
      * which tells you if the expression can be found anywhere, and, if so, where is the furthest possible
-     * end. If succeeds, it does an iteration to find the exact bounds. In C, there was an option to
-     * only do the first step, to return a simple boolean with no bounds. We have no API for that.
-     * So, it would be good to benchmark to determine if the two-step process is faster or slower than the alternative.
+     * end. If succeeds, it does an iteration to find the exact bounds. As in C, there is an option to
+     * only do the first step, to return a simple boolean with no bounds; see {@link #test}.
      */
     boolean find(Cnfa cnfa) {
         int begin;
         int end = -1;
-        int cold;
         int open;       /* open and close of range of possible starts */
         int close;
-        boolean hitend;
         boolean shorter = 0 != (g.tree.flags & Subre.SHORTER);
 
         boolean lookingAt = 0 != (eflags & Flags.REG_LOOKING_AT);
 
         if (lookingAt) {
-            close = data.length();
-            cold = 0;
+            close = dataEnd;
+            open = searchStart;
         } else {
             /* First, a shot with the search RE. */
-            int[] coldp = new int[1];
-            Dfa s = new Dfa(this, g.search);
-            close = s.shortest(0, 0, data.length(), coldp, null);
-            cold = coldp[0];
+            Dfa s = getDfa(g.search);
+            close = s.shortest(searchStart, searchStart, dataEnd);
+            open = s.cold;
 
             if (close == -1) {      /* not found */
                 return false;
@@ -124,31 +298,35 @@ class Runtime {
         }
 
     /* find starting point and match */
-        open = cold;
-        cold = -1;
-        Dfa d = new Dfa(this, cnfa);
+        Dfa d = getDfa(cnfa);
         for (begin = open; begin <= close; begin++) {
             /*
              * if LOOKING_AT, we can't validly have a 'begin' after 'open'.
              */
-            if (begin > 0 && lookingAt) {
+            if (begin > dataStart && lookingAt) {
                 return false;
             }
 
-            boolean[] hitendp = new boolean[1];
             if (shorter) {
-                end = d.shortest(begin, begin, data.length(), null, hitendp);
+                end = d.shortest(begin, begin, dataEnd);
             } else {
-                end = d.longest(begin, data.length(), hitendp);
+                end = d.longest(begin, dataEnd);
             }
-            hitend = hitendp[0];
 
-            if (hitend && cold == -1) {
-                cold = begin;
-            }
             if (end != -1) { /* success */
                 break;      /* NOTE BREAK OUT */
             }
+
+            if (begin == open && !lookingAt && g.reverse != null) {
+                /*
+                 * Rather than trying one place after another, which is quadratic when there are
+                 * many near misses, ask the reversed machine where the leftmost match begins.
+                 */
+                int leftmost = leftmostBegin(open, close);
+                if (leftmost > open) {
+                    begin = leftmost - 1; /* the loop increments it */
+                }
+            }
         }
 
         if (end == -1) {
@@ -156,108 +334,130 @@ class Runtime {
         }
 
         /* and pin down details */
-        match.set(0, new RegMatch(begin, end));
-        int dtstart;
-        if (cold != -1) {
-            dtstart = cold;
-        } else {
-            dtstart = data.length();
-        }
-        details = new RegMatch(dtstart, data.length());
+        match[0] = begin;
+        match[1] = end;
 
         if (re.nsub > 0) { // no need to do the work.
-            return dissect(g.tree, begin, end);
-        } else {
-            return true;
+            if (deferCaptures) {
+                capturesPending = true;
+                pendingStart = dataStart;
+                pendingEnd = dataEnd;
+                pendingEflags = eflags;
+            } else {
+                dissectCaptures(begin, end);
+            }
         }
+        return true;
     }
 
-
     /**
-     * cfind - find a match for the main NFA (with complications)
+     * captures - fill in the subexpression matches, if the last find left them for later; see {@link #deferCaptures}.
+     * @param data the data, which must be the same as for the find.
      */
-    boolean cfind(Cnfa cnfa) {
-        int[] cold = new int[1];
+    void captures(CharSequence data) {
+        if (capturesPending) {
+            capturesPending = false;
+            setData(data);
+            dataStart = pendingStart;
+            dataEnd = pendingEnd;
+            eflags = pendingEflags;
+            dissectCaptures(match[0], match[1]);
+        }
+    }
 
-        Dfa s = new Dfa(this, g.search);
-        Dfa d = new Dfa(this, cnfa);
+    private void dissectCaptures(int begin, int end) {
+        if (g.onepass != null) {
+            if (g.onepass.run(this, begin, end)) {
+                return;
+            }
+            Arrays.fill(match, 2, match.length, -1); /* start over the slow way */
+        }
+        dissect(re.dissectionTree(), begin, end);
+    }
 
-        boolean ret = cfindloop(d, s, cold);
 
-        int dtstart;
-        if (cold[0] != -1) {
-            dtstart = cold[0];
-        } else {
-            dtstart = data.length();
+    /**
+     * leftmostBegin - find the leftmost place in [open, close] where a match begins.
+     * A forward pass of the search machine, which allows no new beginnings after close,
+     * finds the end of the last match to end. From there, a backward pass of the reversed
+     * machine finds the leftmost beginning of any match that ends there or earlier.
+     * Both passes are linear.
+     * @return the beginning, or -1 if none.
+     */
+    private int leftmostBegin(int open, int close) {
+        int reach = getDfa(g.search).reach(open, close);
+        if (reach == -1) {
+            return -1;
         }
+        return getDfa(g.reverse).leftmost(reach, open);
+    }
+
+    /**
+     * cfind - find a match for the main NFA (with complications)
+     */
+    boolean cfind(Cnfa cnfa) {
+        Dfa s = getDfa(g.search);
+        Dfa d = getDfa(cnfa);
 
-        details = new RegMatch(dtstart, data.length());
-        return ret;
+        return cfindloop(d, s);
     }
 
     /**
      * cfindloop - the heart of cfind
      */
-    boolean cfindloop(Dfa d, Dfa s, int[] coldp) {
+    boolean cfindloop(Dfa d, Dfa s) {
         int begin;
         int end;
-        int cold;
         int open;       /* open and close of range of possible starts */
         int close;
         int estart;
         int estop;
         boolean shorter = 0 != (g.tree.flags & Subre.SHORTER);
-        boolean hitend[] = new boolean[1];
 
         assert d != null && s != null;
-        close = 0;
+        if (memo == null) {
+            memo = new DissectMemo();
+        }
+        memo.clear();
+        long budget = re.options().getDissectBudget();
+        dissectSteps = budget == 0 ? Long.MAX_VALUE : budget;
+
+        close = searchStart;
         do {
-            int[] cold0 = new int[1];
-            close = s.shortest(close, close, data.length(), cold0, null);
-            cold = cold0[0];
+            close = s.shortest(close, close, dataEnd);
 
             if (close == -1) {
                 break;              /* NOTE BREAK */
             }
-            assert cold != -1;
-            open = cold;
-            cold = -1;
+            open = s.cold;
 
             for (begin = open; begin <= close; begin++) {
-                if (begin > 0 && 0 != (eflags & Flags.REG_LOOKING_AT)) {
+                if (begin > dataStart && 0 != (eflags & Flags.REG_LOOKING_AT)) {
                     return false;
                 }
                 estart = begin;
-                estop = data.length();
+                estop = dataEnd;
                 for (;;) {
                     if (shorter) {
-                        end = d.shortest(begin, estart, estop, null, hitend);
+                        end = d.shortest(begin, estart, estop);
                     } else {
-                        end = d.longest(begin, estop, hitend);
-                    }
-                    if (hitend[0] && cold == -1) {
-                        cold = begin;
+                        end = d.longest(begin, estop);
                     }
                     if (end == -1) {
                         break;      /* NOTE BREAK OUT */
                     }
 
-                    for (int x = 0; x < match.size(); x++) {
-                        match.set(x, null);
-                    }
-
-                    int maxsubno = getMaxSubno(g.tree, 0);
-                    mem = new int[maxsubno + 1];
-                    boolean matched = cdissect(g.tree, begin, end);
+                    Arrays.fill(match, -1);
+                    Arrays.fill(mem, 0);
+                    boolean matched = cdissect(re.dissectionTree(), begin, end);
                     if (matched) {
                         // indicate the full match bounds.
-                        match.set(0, new RegMatch(begin, end));
-                        coldp[0] = cold;
+                        match[0] = begin;
+                        match[1] = end;
                         return true;
                     }
                     if (shorter ? end == estop : end == begin) {
                         /* no point in trying again */
-                        coldp[0] = cold;
                         return false;
                     }
                     /* go around and try again */
@@ -268,9 +468,8 @@ class Runtime {
                     }
                 }
             }
-        } while (close < data.length());
+        } while (close < dataEnd);
 
-        coldp[0] = cold;
         return false;
     }
 
@@ -282,17 +481,15 @@ class Runtime {
 
         assert n > 0;
 
-        while (match.size() < (n + 1)) {
-            match.add(null);
-        }
-
-        match.set(n, new RegMatch(begin, end));
+        match[2 * n] = begin;
+        match[2 * n + 1] = end;
     }
 
     /**
      * dissect - determine subexpression matches (uncomplicated case)
      */
     boolean dissect(RuntimeSubexpression t, int begin, int end) {
+        step();
         switch (t.op) {
         case '=':       /* terminal node */
             assert t.left == null && t.right == null;
@@ -335,30 +532,30 @@ class Runtime {
         assert t.left != null && t.left.machine.states.length > 0;
         assert t.right != null && t.right.machine.states.length > 0;
 
-        d = new Dfa(this, t.left.machine);
-        d2 = new Dfa(this, t.right.machine);
+        d = getDfa(t.left.machine);
+        d2 = getDfa(t.right.machine);
 
     /* pick a tentative midpoint */
         if (shorter) {
-            mid = d.shortest(begin, begin, end, null, null);
+            mid = d.shortest(begin, begin, end);
         } else {
-            mid = d.longest(begin, end, null);
+            mid = d.longest(begin, end);
         }
         if (mid == -1) {
             throw new RuntimeException("Impossible mid.");
         }
 
     /* iterate until satisfaction or failure */
-        while (d2.longest(mid, end, null) != end) {
+        while (d2.longest(mid, end) != end) {
         /* that midpoint didn't work, find a new one */
             if (mid == stop) {
             /* all possibilities exhausted! */
                 throw new RuntimeException("no midpoint");
             }
             if (shorter) {
-                mid = d.shortest(begin, mid + 1, end, null, null);
+                mid = d.shortest(begin, mid + 1, end);
             } else {
-                mid = d.longest(begin, mid - 1, null);
+                mid = d.longest(begin, mid - 1);
             }
             if (mid == -1) {
                 throw new RuntimeException("Failed midpoint");
@@ -384,8 +581,8 @@ class Runtime {
 
         for (; t != null; t = t.right) {
             assert t.left != null && t.left.machine.states.length > 0;
-            d = new Dfa(this, t.left.machine);
-            if (d.longest(begin, end, null) == end) {
+            d = getDfa(t.left.machine);
+            if (d.longest(begin, end) == end) {
                 return dissect(t.left, begin, end);
             }
         }
@@ -397,11 +594,40 @@ class Runtime {
      * cdissect - determine subexpression matches (with complications)
      * The retry memory stores the offset of the trial midpoint from begin,
      * plus 1 so that 0 uniquely means "clean slate".
+     * Each call starts with a clean slate for t, so a failure depends only on the
+     * bounds and on the captures that t's backreferences read from outside; when there's
+     * at most one of those, the failure goes in the memo.
      */
     boolean cdissect(RuntimeSubexpression t, int begin, int end) {
 
         assert t != null;
 
+        step();
+        if (--dissectSteps < 0) {
+            throw new MatchBudgetExceededException(MatchBudgetExceededException.Reason.STEPS,
+                    String.format("Backreference matching exceeded its budget of %d steps", re.options().getDissectBudget()));
+        }
+        if (!t.backrefs || (t.op != '.' && t.op != '|') || Long.bitCount(t.foreignRefs) > 1) {
+            return cdissectNode(t, begin, end);
+        }
+        int refBegin = -1;
+        int refEnd = -1;
+        if (t.foreignRefs != 0) {
+            int n = Long.numberOfTrailingZeros(t.foreignRefs);
+            refBegin = match[2 * n];
+            refEnd = match[2 * n + 1];
+        }
+        if (memo.failed(t.retry, begin, end, refBegin, refEnd)) {
+            return false;
+        }
+        if (cdissectNode(t, begin, end)) {
+            return true;
+        }
+        memo.fail(t.retry, begin, end, refBegin, refEnd);
+        return false;
+    }
+
+    private boolean cdissectNode(RuntimeSubexpression t, int begin, int end) {
         switch (t.op) {
         case '=':       /* terminal node */
             assert t.left == null && t.right == null;
@@ -451,12 +677,12 @@ class Runtime {
             return crevdissect(t, begin, end);
         }
 
-        d = new Dfa(this, t.left.machine);
-        d2 = new Dfa(this, t.right.machine);
+        d = getDfa(t.left.machine);
+        d2 = getDfa(t.right.machine);
 
     /* pick a tentative midpoint */
         if (mem[t.retry] == 0) {
-            mid = d.longest(begin, end, null);
+            mid = d.longest(begin, end);
             if (mid == -1) {
                 return false;
             }
@@ -469,7 +695,7 @@ class Runtime {
         for (;;) {
         /* try this midpoint on for size */
             boolean cdmatch = cdissect(t.left, begin, mid);
-            if (cdmatch && d2.longest(mid, end, null) == end
+            if (cdmatch && d2.longest(mid, end) == end
                     && (cdissect(t.right, mid, end))) {
                 break;          /* NOTE BREAK OUT */
 
@@ -480,7 +706,7 @@ class Runtime {
             /* all possibilities exhausted */
                 return false;
             }
-            mid = d.longest(begin, mid - 1, null);
+            mid = d.longest(begin, mid - 1);
             if (mid == -1) {
             /* failed to find a new one */
                 return false;
@@ -496,9 +722,6 @@ class Runtime {
 
     void zapmem(RuntimeSubexpression t) {
         mem[t.retry] = 0;
-        while (match.size() < t.number + 1) {
-            match.add(null);
-        }
         if (t.left != null) {
             zapmem(t.left);
         }
@@ -524,12 +747,12 @@ class Runtime {
         assert 0 != (t.left.flags & Subre.SHORTER);
 
     /* concatenation -- need to split the substring between parts */
-        d = new Dfa(this, t.left.machine);
-        d2 = new Dfa(this, t.right.machine);
+        d = getDfa(t.left.machine);
+        d2 = getDfa(t.right.machine);
 
     /* pick a tentative midpoint */
         if (mem[t.retry] == 0) {
-            mid = d.shortest(begin, begin, end, null, null);
+            mid = d.shortest(begin, begin, end);
             if (mid == -1) {
                 return false;
             }
@@ -543,7 +766,7 @@ class Runtime {
         /* try this midpoint on for size */
             boolean cdmatch = cdissect(t.left, begin, mid);
             if (cdmatch
-                    && d2.longest(mid, end, null) == end
+                    && d2.longest(mid, end) == end
                     && (cdissect(t.right, mid, end))) {
                 break;          /* NOTE BREAK OUT */
             }
@@ -553,7 +776,7 @@ class Runtime {
             /* all possibilities exhausted */
                 return false;
             }
-            mid = d.shortest(begin, mid + 1, end, null, null);
+            mid = d.shortest(begin, mid + 1, end);
             if (mid == -1) {
             /* failed to find a new one */
                 return false;
@@ -584,12 +807,11 @@ class Runtime {
         assert t.op == 'b';
         assert n >= 0;
 
-        //TODO: could this get be out of range?
-        if (match.get(n) == null) {
+        if (match[2 * n] == -1) {
             return false;
         }
-        paren = match.get(n).start;
-        len = match.get(n).end - match.get(n).start;
+        paren = match[2 * n];
+        len = match[2 * n + 1] - paren;
 
     /* no room to maneuver -- retries are pointless */
         if (0 != mem[t.retry]) {
@@ -648,8 +870,8 @@ class Runtime {
         }
 
         if (mem[t.retry] == UNTRIED) {
-            d = new Dfa(this, t.left.machine);
-            if (d.longest(begin, end, null) != end) {
+            d = getDfa(t.left.machine);
+            if (d.longest(begin, end) != end) {
                 mem[t.retry] = TRIED;
                 return caltdissect(t.right, begin, end);
             }
@@ -664,15 +886,4 @@ class Runtime {
         mem[t.retry] = TRIED;
         return caltdissect(t.right, begin, end);
     }
-
-    private int getMaxSubno(RuntimeSubexpression tree, int i) {
-        i = Math.max(i, tree.retry);
-        if (tree.left != null) {
-            i = Math.max(i, getMaxSubno(tree.left, i));
-        }
-        if (tree.right != null) {
-            i = Math.max(i, getMaxSubno(tree.right, i));
-        }
-        return i;
-    }
 }
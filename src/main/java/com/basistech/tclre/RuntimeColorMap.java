@@ -16,12 +16,15 @@
 
 package com.basistech.tclre;
 
-import it.unimi.dsi.fastutil.chars.Char2ShortArrayMap;
 import it.unimi.dsi.fastutil.chars.Char2ShortMap;
+import it.unimi.dsi.fastutil.chars.Char2ShortOpenHashMap;
 
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.Serializable;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Immutable, sharable, color map.
@@ -51,6 +54,15 @@ class RuntimeColorMap implements Serializable {
         }
     }
 
+    /**
+     * Construct over the colors of all the characters; this takes ownership of the array.
+     * @param data the color of each character.
+     */
+    RuntimeColorMap(short[] data) {
+        assert data.length == Character.MAX_VALUE + 1;
+        this.data = data;
+    }
+
     /**
      * Retrieve the color for a character.
      * @param c
@@ -60,11 +72,54 @@ class RuntimeColorMap implements Serializable {
         return data[c];
     }
 
+    /**
+     * Write the binary form; see {@link HsrePattern#writeTo(DataOutput)}.
+     * This is the runs of characters with the same color; most characters are in a few long runs.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        int runs = 0;
+        for (int x = 0; x <= Character.MAX_VALUE; x = runEnd(x)) {
+            runs++;
+        }
+        out.writeInt(runs);
+        int x = 0;
+        while (x <= Character.MAX_VALUE) {
+            int end = runEnd(x);
+            out.writeChar(end - 1);
+            out.writeShort(data[x]);
+            x = end;
+        }
+    }
+
+    private int runEnd(int start) {
+        int x = start + 1;
+        while (x <= Character.MAX_VALUE && data[x] == data[start]) {
+            x++;
+        }
+        return x;
+    }
+
+    static RuntimeColorMap readFrom(ByteBuffer in) {
+        short[] data = new short[Character.MAX_VALUE + 1];
+        int runs = in.getInt();
+        int start = 0;
+        for (int x = 0; x < runs; x++) {
+            int last = in.getChar();
+            Arrays.fill(data, start, last + 1, in.getShort());
+            start = last + 1;
+        }
+        if (start != data.length) {
+            throw new IllegalArgumentException("Color runs end at " + start);
+        }
+        return new RuntimeColorMap(data);
+    }
+
     /*
      * Avoid reading and writing 2^16 shorts by turning it into a sparse data structure.
+     * A hash map, since a complemented class can color nearly every character.
      */
     private void writeObject(java.io.ObjectOutputStream out) throws IOException {
-        Char2ShortMap map = new Char2ShortArrayMap();
+        Char2ShortMap map = new Char2ShortOpenHashMap();
         map.defaultReturnValue((short)0);
         for (int x = 0; x <= Character.MAX_VALUE; x++) {
             if (data[x] != 0) {
@@ -84,8 +139,8 @@ class RuntimeColorMap implements Serializable {
             throw new RuntimeException(e);
         }
         Char2ShortMap map = (Char2ShortMap) in.readObject();
-        for (char c : map.keySet()) {
-            data[c] = map.get(c); // thank goodness that Java doesn't have actual immutable arrays.
+        for (Char2ShortMap.Entry entry : map.char2ShortEntrySet()) {
+            data[entry.getCharKey()] = entry.getShortValue(); // thank goodness that Java doesn't have actual immutable arrays.
         }
     }
 }
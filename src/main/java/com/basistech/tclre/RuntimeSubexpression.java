@@ -15,9 +15,12 @@
  */
 package com.basistech.tclre;
 
-import it.unimi.dsi.fastutil.objects.Object2IntMap;
-
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+import it.unimi.dsi.fastutil.objects.Reference2IntMap;
 
 /**
  * Information needed at runtime for a subexpression.
@@ -33,36 +36,123 @@ final class RuntimeSubexpression implements Serializable {
     final int retry;
     final int min;
     final int max;
+    /* Dependencies, for remembering failures to dissect; capture n is bit n, up to 63. */
+    final boolean backrefs; /* there's a backreference in here */
+    final long captures; /* captures that are always set when this matches */
+    final long foreignRefs; /* captures that backreferences in here may read from outside; all bits if unknown */
 
     RuntimeSubexpression() {
-        number = -1;
-        machine = null;
-        op = 0;
-        left = null;
-        right = null;
-        flags = 0;
-        retry = 0;
-        this.min = 0;
-        this.max = 0;
+        this(-1, null, (char) 0, null, null, 0, 0, 0, 0);
     }
 
     RuntimeSubexpression(Subre re) {
-        this.number = re.subno;
-        this.op = re.op;
-        this.machine = re.cnfa;
-        this.flags = re.flags;
-        if (re.left == null) {
-            this.left = null;
-        } else {
-            this.left = new RuntimeSubexpression(re.left);
+        this(re.subno, re.cnfa, re.op,
+                re.left == null ? null : new RuntimeSubexpression(re.left),
+                re.right == null ? null : new RuntimeSubexpression(re.right),
+                re.flags, re.retry, re.min, re.max);
+    }
+
+    RuntimeSubexpression(int number, Cnfa machine, char op, RuntimeSubexpression left, RuntimeSubexpression right,
+                         int flags, int retry, int min, int max) {
+        this.number = number;
+        this.machine = machine;
+        this.op = op;
+        this.left = left;
+        this.right = right;
+        this.flags = flags;
+        this.retry = retry;
+        this.min = min;
+        this.max = max;
+
+        boolean hasBackrefs = false;
+        long sets = 0;
+        long reads = 0;
+        switch (op) {
+        case 'b':
+            hasBackrefs = true;
+            reads = number < 64 ? 1L << number : -1L;
+            break;
+        case '(':
+            hasBackrefs = left.backrefs;
+            sets = left.captures | (number < 64 ? 1L << number : 0);
+            reads = left.foreignRefs;
+            break;
+        case '.':
+            hasBackrefs = left.backrefs || right.backrefs;
+            sets = left.captures | right.captures;
+            /* the left side runs first, so what it sets is what the right side sees */
+            reads = left.foreignRefs | (right.foreignRefs & ~left.captures);
+            break;
+        case '|':
+            /* the right is the next alternative, if any */
+            hasBackrefs = left.backrefs || (right != null && right.backrefs);
+            sets = right == null ? left.captures : left.captures & right.captures;
+            reads = left.foreignRefs | (right == null ? 0 : right.foreignRefs);
+            break;
+        default:
+            break;
         }
-        if (re.right == null) {
-            this.right = null;
-        } else {
-            this.right = new RuntimeSubexpression(re.right);
+        this.backrefs = hasBackrefs;
+        this.captures = sets;
+        this.foreignRefs = reads;
+    }
+
+    /**
+     * @return whether the parts of this tree have their machines; see {@link Compiler#subexpressions(HsrePattern)}.
+     * Either they all do, or none of them do.
+     */
+    boolean hasMachines() {
+        return left == null || left.machine != null;
+    }
+
+    /**
+     * A copy of this tree, with the machines of the parts taken from the same tree, parsed again.
+     * This keeps its own machine, if it has one.
+     */
+    RuntimeSubexpression withMachines(Subre re) {
+        if (re.op != op || re.subno != number || re.flags != flags || (re.left == null) != (left == null)
+                || (re.right == null) != (right == null)) {
+            throw new IllegalStateException("Pattern parsed differently the second time");
+        }
+        return new RuntimeSubexpression(number, machine != null ? machine : re.cnfa, op,
+                left == null ? null : left.withMachines(re.left),
+                right == null ? null : right.withMachines(re.right),
+                flags, retry, min, max);
+    }
+
+    /**
+     * Write the binary form; see {@link HsrePattern#writeTo(DataOutput)}.
+     * @param machines the index of each machine in the table that goes with the pattern.
+     */
+    void writeTo(DataOutput out, Reference2IntMap<Cnfa> machines) throws IOException {
+        out.writeInt(number);
+        out.writeInt(machine == null ? -1 : machines.getInt(machine));
+        out.writeChar(op);
+        out.writeInt(flags);
+        out.writeInt(retry);
+        out.writeInt(min);
+        out.writeInt(max);
+        out.writeBoolean(left != null);
+        if (left != null) {
+            left.writeTo(out, machines);
         }
-        this.retry = re.retry;
-        this.min = re.min;
-        this.max = re.max;
+        out.writeBoolean(right != null);
+        if (right != null) {
+            right.writeTo(out, machines);
+        }
+    }
+
+    static RuntimeSubexpression readFrom(ByteBuffer in, Cnfa[] machines) {
+        int number = in.getInt();
+        int machine = in.getInt();
+        char op = in.getChar();
+        int flags = in.getInt();
+        int retry = in.getInt();
+        int min = in.getInt();
+        int max = in.getInt();
+        RuntimeSubexpression left = in.get() != 0 ? readFrom(in, machines) : null;
+        RuntimeSubexpression right = in.get() != 0 ? readFrom(in, machines) : null;
+        return new RuntimeSubexpression(number, machine == -1 ? null : machines[machine], op, left, right,
+                flags, retry, min, max);
     }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+/**
+ * A view of part of a {@link CharSequence}; nothing is copied until {@link #toString()}.
+ */
+final class Span implements CharSequence {
+    private final CharSequence data;
+    private final int start;
+    private final int end;
+
+    Span(CharSequence data, int start, int end) {
+        this.data = data;
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    public int length() {
+        return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= end - start) {
+            throw new IndexOutOfBoundsException(Integer.toString(index));
+        }
+        return data.charAt(start + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int subStart, int subEnd) {
+        if (subStart < 0 || subEnd > end - start || subStart > subEnd) {
+            throw new IndexOutOfBoundsException(subStart + "," + subEnd);
+        }
+        return new Span(data, start + subStart, start + subEnd);
+    }
+
+    @Override
+    public String toString() {
+        return data.subSequence(start, end).toString();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import java.util.Iterator;
+import java.util.regex.MatchResult;
+
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * The fields between the matches of a pattern, found as they are asked for in one
+ * pass over the data. As with {@link RePattern#split(CharSequence, int)} with a limit of zero,
+ * trailing empty fields are dropped. Empty fields are counted, not kept, until a field
+ * with some text shows that they are not trailing, so this holds on to nothing but
+ * the matcher.
+ */
+final class SplitIterator extends AbstractIterator<CharSequence> {
+    private final CharSequence data;
+    private final Iterator<MatchResult> matches;
+    private int fieldStart;
+    private boolean matched;
+    private boolean finished;
+    private int pendingEmpty; /* empty fields not yet known to be followed by text. */
+    private int emptyToReturn;
+    private CharSequence held; /* the field with text that follows those. */
+
+    SplitIterator(HsrePattern pattern, CharSequence data) {
+        this.data = data;
+        this.matches = pattern.matcher(data).findAll().iterator();
+    }
+
+    @Override
+    protected CharSequence computeNext() {
+        while (true) {
+            if (emptyToReturn > 0) {
+                emptyToReturn--;
+                return new Span(data, fieldStart, fieldStart);
+            }
+            if (held != null) {
+                CharSequence field = held;
+                held = null;
+                return field;
+            }
+            if (finished) {
+                return endOfData();
+            }
+            CharSequence field;
+            if (matches.hasNext()) {
+                MatchResult match = matches.next();
+                if (match.end() == 0) {
+                    continue; // an empty match at the start doesn't make an empty first field.
+                }
+                matched = true;
+                field = new Span(data, fieldStart, match.start());
+                fieldStart = match.end();
+            } else {
+                finished = true;
+                field = new Span(data, fieldStart, data.length());
+                if (!matched) {
+                    return field; // the whole data, even if it is empty.
+                }
+                if (field.length() == 0) {
+                    continue; // trailing.
+                }
+            }
+            if (field.length() == 0) {
+                pendingEmpty++;
+            } else {
+                emptyToReturn = pendingEmpty;
+                pendingEmpty = 0;
+                held = field;
+            }
+        }
+    }
+}
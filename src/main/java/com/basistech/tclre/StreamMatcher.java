@@ -0,0 +1,301 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import java.io.Serializable;
+import java.util.EnumSet;
+import java.util.regex.MatchResult;
+
+import com.google.common.base.Objects;
+import com.google.common.primitives.Ints;
+
+/**
+ * A matcher for data that arrives in pieces. Call {@link #feed(CharSequence, MatchConsumer)} with
+ * each piece, and {@link #finish(MatchConsumer)} at the end. Each match is passed to the consumer
+ * as soon as no further data could change it, with offsets relative to the start of the stream.
+ * The matches are the ones that {@link ReMatcher#forEachMatch(MatchConsumer)} would find in
+ * all the data at once.
+ * <br/>
+ * This runs the search machine over each piece once, carrying its state from one piece to the next.
+ * It keeps only the data from the point at which the earliest match still in progress could have
+ * begun, and runs the other machines over that to pin down a match once the search machine has seen
+ * the end of it. So memory use is proportional to the longest match, or the longest
+ * partial match, rather than to the stream.
+ * <br/>
+ * The state of the stream, including the data it keeps, is serializable, so a stream can be resumed
+ * elsewhere. Offsets are ints, so a stream can't go on past 2G characters if there are matches after that.
+ * Create these with {@link RePattern#streamMatcher(ExecFlags...)}.
+ */
+public final class StreamMatcher implements MatchResult, Serializable {
+    static final long serialVersionUID = 1L;
+
+    private final HsrePattern pattern;
+    private final int eflags;
+    private final StringBuilder text;
+    private long base;          // the stream offset of the first character of text
+    private int from;           // where the next match may begin
+    private int cold;           // no match in progress began before here
+    private int scanned;        // how far the search machine has gone
+    private long[] carried;     // the states of the search machine at scanned; null to begin afresh there
+    private boolean ended;      // the search machine passed the end of a match since from
+    private boolean finished;
+    private transient int[] match; // the match being passed to a consumer, in text
+    private transient Runtime runtime;
+
+    StreamMatcher(HsrePattern pattern, EnumSet<ExecFlags> flags) {
+        if (flags.contains(ExecFlags.LOOKING_AT)) {
+            throw new IllegalArgumentException("LOOKING_AT is not supported for streams");
+        }
+        this.pattern = pattern;
+        int bits = 0;
+        if (flags.contains(ExecFlags.NOTBOL)) {
+            bits |= Flags.REG_NOTBOL;
+        }
+        if (flags.contains(ExecFlags.NOTEOL)) {
+            bits |= Flags.REG_NOTEOL;
+        }
+        eflags = bits;
+        text = new StringBuilder();
+    }
+
+    /**
+     * @return the pattern that produced this matcher.
+     */
+    public RePattern pattern() {
+        return pattern;
+    }
+
+    /**
+     * @return the number of characters fed so far.
+     */
+    public long position() {
+        return base + text.length();
+    }
+
+    /**
+     * Add data to the stream, and pass the matches that it completes to a consumer. The consumer
+     * is passed this object, which describes each match only until the consumer returns.
+     * If the consumer stops, the rest of the matches are passed on the next call.
+     * @param chunk the next piece of data.
+     * @param consumer the consumer.
+     * @return the number of matches passed to the consumer.
+     */
+    public int feed(CharSequence chunk, MatchConsumer consumer) {
+        if (finished) {
+            throw new IllegalStateException("The stream is finished");
+        }
+        text.append(chunk);
+        return advance(consumer, false);
+    }
+
+    /**
+     * Mark the end of the stream, and pass the remaining matches to a consumer.
+     * If the consumer stops, the rest of the matches are discarded.
+     * @param consumer the consumer.
+     * @return the number of matches passed to the consumer.
+     */
+    public int finish(MatchConsumer consumer) {
+        if (finished) {
+            throw new IllegalStateException("The stream is finished");
+        }
+        int count = advance(consumer, true);
+        finished = true;
+        base += text.length();
+        text.setLength(0);
+        text.trimToSize();
+        carried = null;
+        runtime = null;
+        return count;
+    }
+
+    private int advance(MatchConsumer consumer, boolean atEnd) {
+        int count = 0;
+        int pending = Integer.MAX_VALUE; // the start of a match that isn't settled yet
+        if (runtime == null) {
+            runtime = new Runtime();
+        }
+        try {
+            while (from <= text.length()) {
+                int end = text.length();
+                if (!atEnd) {
+                    scan(end);
+                    if (!ended) {
+                        break;
+                    }
+                }
+                runtime.laconEdge = Integer.MAX_VALUE;
+                if (!runtime.exec(pattern, text, 0, end, from, atEnd ? eflags : eflags | Flags.REG_NOTEOL)) {
+                    break;
+                }
+                if (!atEnd && !settled()) {
+                    pending = runtime.match[0];
+                    break;
+                }
+                match = runtime.match;
+                from = match[1] == match[0] ? match[1] + 1 : match[1];
+                cold = from;
+                scanned = from;
+                carried = null;
+                ended = false;
+                count++;
+                boolean more = consumer.accept(this);
+                match = null;
+                if (!more) {
+                    break;
+                }
+            }
+        } catch (RegexException e) {
+            throw new RegexRuntimeException(e);
+        }
+        if (!atEnd) {
+            trim(pending);
+        }
+        return count;
+    }
+
+    /*
+     * Carry the search machine forward over the new data.
+     */
+    private void scan(int end) throws RegexException {
+        if (scanned > end) {
+            return; // waiting to get past an empty match.
+        }
+        runtime.setup(pattern, text, 0, end, eflags | Flags.REG_NOTEOL);
+        runtime.laconEdge = Integer.MAX_VALUE;
+        Dfa search = runtime.getDfa(pattern.guts.search);
+        int css = carried == null ? search.begin(scanned) : search.restore(carried);
+        search.cold = cold;
+        css = search.scan(css, scanned, end);
+        ended |= search.sawpost;
+        cold = search.cold;
+        if (runtime.laconEdge == Integer.MAX_VALUE) {
+            carried = search.save(css, carried);
+            scanned = end;
+        } else {
+            /* what a lookahead constraint saw at the end may change; go back to the last safe point. */
+            carried = null;
+            scanned = cold;
+        }
+    }
+
+    /*
+     * Whether the match just found is the one that the whole stream will produce; so, whether
+     * anything that began at or before it might yet go on, and whether a lookahead constraint
+     * ran into the end of the data.
+     */
+    private boolean settled() {
+        if (runtime.laconEdge != Integer.MAX_VALUE) {
+            return false;
+        }
+        int begin = runtime.match[0];
+        boolean survives = cold <= begin && runtime.getDfa(pattern.guts.search).survives(cold, begin);
+        return !survives && runtime.laconEdge == Integer.MAX_VALUE;
+    }
+
+    /*
+     * Discard the data before any match can begin, except for one character
+     * for the anchors and constraints to look at.
+     */
+    private void trim(int pending) {
+        from = Math.max(from, Math.min(cold, pending));
+        int discard = from - 1;
+        if (discard <= 0) {
+            return;
+        }
+        text.delete(0, discard);
+        base += discard;
+        from -= discard;
+        cold -= discard;
+        scanned -= discard;
+    }
+
+    /*
+     * The offsets for a group, checking that there is a match at all.
+     */
+    private int matchOffset(int group, int which) {
+        if (match == null) {
+            throw new IllegalStateException("No match available");
+        }
+        if (group < 0 || group > pattern.nsub) {
+            throw new IndexOutOfBoundsException("No group " + group);
+        }
+        int offset = match[2 * group + which];
+        return offset == -1 ? -1 : Ints.checkedCast(base + offset);
+    }
+
+    @Override
+    public int start() {
+        return start(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @return the start, relative to the stream, or -1 if the group did not participate in the match.
+     */
+    @Override
+    public int start(int group) {
+        return matchOffset(group, 0);
+    }
+
+    @Override
+    public int end() {
+        return end(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @return the end, relative to the stream, or -1 if the group did not participate in the match.
+     */
+    @Override
+    public int end(int group) {
+        return matchOffset(group, 1);
+    }
+
+    @Override
+    public String group() {
+        return group(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @return the text, or null if the group did not participate in the match.
+     */
+    @Override
+    public String group(int group) {
+        int start = matchOffset(group, 0);
+        if (start == -1) {
+            return null;
+        }
+        return text.substring(match[2 * group], match[2 * group + 1]);
+    }
+
+    @Override
+    public int groupCount() {
+        return pattern.nsub;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("pattern", pattern)
+                .add("position", position())
+                .add("retained", text.length())
+                .add("finished", finished)
+                .toString();
+    }
+}
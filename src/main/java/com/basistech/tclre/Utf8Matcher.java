@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+
+/**
+ * A matcher over UTF-8 text in a {@link ByteBuffer}, such as a memory-mapped file, that reports
+ * offsets in bytes. Offsets are relative to the position of the buffer when it was passed in.
+ * Underneath, this is an ordinary {@link ReMatcher} over a {@link Utf8Sequence}, available
+ * from {@link #matcher()} for anything that wants characters instead.
+ * Create these with {@link RePattern#utf8Matcher(ByteBuffer, ExecFlags...)}.
+ * <br/>
+ * A buffer can't hold more than 2G bytes; map larger files in pieces.
+ */
+public final class Utf8Matcher {
+    private final ReMatcher matcher;
+    private Utf8Sequence data;
+
+    Utf8Matcher(RePattern pattern, ByteBuffer utf8, EnumSet<ExecFlags> flags) {
+        data = new Utf8Sequence(utf8);
+        matcher = pattern.matcher(data, flags);
+    }
+
+    /**
+     * @return the pattern that produced this matcher.
+     */
+    public RePattern pattern() {
+        return matcher.pattern();
+    }
+
+    /**
+     * @return the underlying matcher, whose offsets are in characters.
+     */
+    public ReMatcher matcher() {
+        return matcher;
+    }
+
+    /**
+     * @return the decoded view of the data.
+     */
+    public Utf8Sequence chars() {
+        return data;
+    }
+
+    /**
+     * Search for the pattern, starting at the end of the previous match.
+     * @return true if the pattern was found.
+     * @see ReMatcher#find()
+     */
+    public boolean find() {
+        return matcher.find();
+    }
+
+    /**
+     * Search for the pattern, starting at a byte offset.
+     * @param startOffset the byte offset.
+     * @return true if the pattern was found.
+     * @see ReMatcher#find(int)
+     */
+    public boolean find(int startOffset) {
+        return matcher.find(data.charOffset(startOffset));
+    }
+
+    /**
+     * @return true if the pattern occurs anywhere in the data.
+     * @see ReMatcher#hasMatch()
+     */
+    public boolean hasMatch() {
+        return matcher.hasMatch();
+    }
+
+    /**
+     * @return true if the pattern matches all of the data.
+     * @see ReMatcher#matches()
+     */
+    public boolean matches() {
+        return matcher.matches();
+    }
+
+    /**
+     * @return the byte offset of the start of the match.
+     */
+    public int start() {
+        return start(0);
+    }
+
+    /**
+     * @return the byte offset of the end of the match.
+     */
+    public int end() {
+        return end(0);
+    }
+
+    /**
+     * @param group the subexpression.
+     * @return the byte offset of the start of the subexpression, or -1 if it did not participate.
+     */
+    public int start(int group) {
+        return toBytes(matcher.start(group));
+    }
+
+    /**
+     * @param group the subexpression.
+     * @return the byte offset of the end of the subexpression, or -1 if it did not participate.
+     */
+    public int end(int group) {
+        return toBytes(matcher.end(group));
+    }
+
+    /**
+     * @return the text of the match.
+     */
+    public String group() {
+        return matcher.group();
+    }
+
+    /**
+     * @param group the subexpression.
+     * @return the text of the subexpression, or null if it did not participate.
+     */
+    public String group(int group) {
+        return matcher.group(group);
+    }
+
+    /**
+     * @return the number of subexpressions in the pattern.
+     */
+    public int groupCount() {
+        return matcher.groupCount();
+    }
+
+    /**
+     * @return the flags, which may be changed.
+     */
+    public EnumSet<ExecFlags> flags() {
+        return matcher.flags();
+    }
+
+    /**
+     * Change the data for this matcher.
+     * @param utf8 the new data, from its position to its limit.
+     * @return this matcher.
+     */
+    public Utf8Matcher reset(ByteBuffer utf8) {
+        data = new Utf8Sequence(utf8);
+        matcher.reset(data);
+        return this;
+    }
+
+    private int toBytes(int offset) {
+        return offset < 0 ? offset : data.byteOffset(offset);
+    }
+}
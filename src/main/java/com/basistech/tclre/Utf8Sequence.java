@@ -0,0 +1,351 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * A {@link CharSequence} view of UTF-8 text in a {@link ByteBuffer}, which may be a heap buffer,
+ * a direct buffer, or a {@link java.nio.MappedByteBuffer}. Characters are decoded as they are read,
+ * so matching over a file doesn't require first decoding it into a string.
+ * <br/>
+ * Construction makes one pass over the bytes to count the characters. If they are all ASCII,
+ * characters and bytes correspond one to one. Otherwise, it records the byte offset of every 256th
+ * character, and reads decode from the nearest of these, or, as matching mostly does,
+ * carry on from the previous read. Supplementary characters become surrogate pairs. Bytes that are not part
+ * of well-formed UTF-8 each become U+FFFD.
+ * <br/>
+ * This keeps a read position, and so is not safe for concurrent use.
+ * @see Utf8Matcher
+ */
+public final class Utf8Sequence implements CharSequence {
+    private static final int CHECKPOINT_SHIFT = 8;
+    private static final int CHECKPOINT_MASK = (1 << CHECKPOINT_SHIFT) - 1;
+    /* stepping back costs more than going forward from a checkpoint, but is cheaper for a few characters. */
+    private static final int MAX_STEP_BACK = 32;
+    private static final int BLOCK_SIZE = 8192;
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private final ByteBuffer bytes;
+    private final int base; // absolute index of the first byte
+    private final int byteLength;
+    private final int length;
+    private final boolean ascii;
+    private final int[] checkpoints; // byte offset of the code point containing character (n << CHECKPOINT_SHIFT)
+    private final BitSet checkpointLow; // whether that character is the second half of a surrogate pair
+
+    /* the read position: the next character, the offset of its code point, and which half, if it's a pair. */
+    private int cursor;
+    private int cursorByte;
+    private boolean cursorLow;
+    private int width; // result of decode, in lieu of an output parameter.
+
+    /**
+     * Construct over the bytes between the position and the limit of a buffer.
+     * The buffer's position and limit are not changed, and later changes to them don't matter;
+     * but the bytes themselves must not change.
+     * @param utf8 the buffer.
+     */
+    public Utf8Sequence(ByteBuffer utf8) {
+        bytes = utf8.duplicate();
+        base = utf8.position();
+        byteLength = utf8.remaining();
+
+        /* read in blocks; absolute reads, one byte at a time, are slow for direct buffers. */
+        byte[] block = new byte[BLOCK_SIZE];
+        ByteBuffer reader = utf8.duplicate();
+        boolean allAscii = true;
+        for (int offset = 0; offset < byteLength && allAscii; offset += BLOCK_SIZE) {
+            int n = Math.min(BLOCK_SIZE, byteLength - offset);
+            reader.get(block, 0, n);
+            for (int x = 0; x < n; x++) {
+                if (block[x] < 0) {
+                    allAscii = false;
+                    break;
+                }
+            }
+        }
+        ascii = allAscii;
+        if (ascii) {
+            length = byteLength;
+            checkpoints = null;
+            checkpointLow = null;
+            return;
+        }
+
+        IntArrayList offsets = new IntArrayList();
+        checkpointLow = new BitSet();
+        int chars = 0;
+        int offset = 0;
+        while (offset < byteLength) {
+            int n = Math.min(BLOCK_SIZE, byteLength - offset);
+            reader.position(base + offset);
+            reader.get(block, 0, n);
+            int x = 0;
+            while (x < n) {
+                if (block[x] >= 0) {
+                    if ((chars & CHECKPOINT_MASK) == 0) {
+                        offsets.add(offset + x);
+                    }
+                    chars++;
+                    x++;
+                    continue;
+                }
+                int cp = decode(offset + x);
+                int units = cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT ? 2 : 1;
+                for (int half = 0; half < units; half++) {
+                    if (((chars + half) & CHECKPOINT_MASK) == 0) {
+                        if (half == 1) {
+                            checkpointLow.set(offsets.size());
+                        }
+                        offsets.add(offset + x);
+                    }
+                }
+                chars += units;
+                x += width; // possibly past the end of the block.
+            }
+            offset += x;
+        }
+        length = chars;
+        checkpoints = offsets.toIntArray();
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(Integer.toString(index));
+        }
+        if (ascii) {
+            return (char) bytes.get(base + index);
+        }
+        if (index != cursor) {
+            seek(index);
+        }
+        if (!cursorLow) {
+            byte b = bytes.get(base + cursorByte);
+            if (b >= 0) {
+                cursor++;
+                cursorByte++;
+                return (char) b;
+            }
+        }
+        int cp = decode(cursorByte);
+        char c;
+        if (cp < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            c = (char) cp;
+            cursorByte += width;
+        } else if (cursorLow) {
+            c = Character.toChars(cp)[1];
+            cursorByte += width;
+            cursorLow = false;
+        } else {
+            c = Character.toChars(cp)[0];
+            cursorLow = true;
+        }
+        cursor++;
+        return c;
+    }
+
+    /**
+     * The byte offset corresponding to a character offset. An offset between the two halves
+     * of a surrogate pair maps to the end of its code point.
+     * @param index the character offset, from 0 to {@link #length()}.
+     * @return the byte offset, relative to the first byte of this sequence.
+     */
+    public int byteOffset(int index) {
+        if (index < 0 || index > length) {
+            throw new IndexOutOfBoundsException(Integer.toString(index));
+        }
+        if (ascii || index == length) {
+            return index == length ? byteLength : index;
+        }
+        seek(index);
+        if (cursorLow) {
+            decode(cursorByte);
+            return cursorByte + width;
+        }
+        return cursorByte;
+    }
+
+    /**
+     * The character offset corresponding to a byte offset. A byte offset inside a code point
+     * maps to the start of the character after it.
+     * @param byteOffset the byte offset, from 0 to the number of bytes.
+     * @return the character offset.
+     */
+    public int charOffset(int byteOffset) {
+        if (byteOffset < 0 || byteOffset > byteLength) {
+            throw new IndexOutOfBoundsException(Integer.toString(byteOffset));
+        }
+        if (ascii) {
+            return byteOffset;
+        }
+        /* the last checkpoint at or before the offset */
+        int lo = 0;
+        int hi = checkpoints.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (checkpoints[mid] <= byteOffset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (checkpointLow.get(lo) && checkpoints[lo] == byteOffset) {
+            lo--; // the offset is the start of the pair, before the checkpoint.
+        }
+        int index = lo << CHECKPOINT_SHIFT;
+        int offset = checkpoints[lo];
+        if (checkpointLow.get(lo)) {
+            decode(offset);
+            offset += width;
+            index++;
+        }
+        while (offset < byteOffset) {
+            int cp = decode(offset);
+            index += cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT ? 2 : 1;
+            offset += width;
+        }
+        return index;
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException(start + "," + end);
+        }
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int x = start; x < end; x++) {
+            sb.append(charAt(x));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length).toString();
+    }
+
+    /*
+     * Move the read position to a character.
+     */
+    private void seek(int index) {
+        if (index < cursor && cursor - index <= MAX_STEP_BACK) {
+            /* the reverse machines read backwards, so step back rather than start from a checkpoint. */
+            while (cursor > index) {
+                stepBack();
+            }
+            return;
+        }
+        int checkpoint = index >>> CHECKPOINT_SHIFT;
+        if (index < cursor || (checkpoint << CHECKPOINT_SHIFT) > cursor) {
+            cursor = checkpoint << CHECKPOINT_SHIFT;
+            cursorByte = checkpoints[checkpoint];
+            cursorLow = checkpointLow.get(checkpoint);
+        }
+        while (cursor < index) {
+            if (!cursorLow && bytes.get(base + cursorByte) >= 0) {
+                cursorByte++;
+                cursor++;
+                continue;
+            }
+            int cp = decode(cursorByte);
+            if (cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT && !cursorLow) {
+                cursorLow = true;
+            } else {
+                cursorByte += width;
+                cursorLow = false;
+            }
+            cursor++;
+        }
+    }
+
+    /*
+     * Move the read position back one character. Every byte that isn't a continuation byte
+     * starts a character, so the previous character starts at the nearest such byte, if it
+     * decodes to exactly the bytes in between, and is otherwise a lone byte.
+     */
+    private void stepBack() {
+        cursor--;
+        if (cursorLow) {
+            cursorLow = false;
+            return;
+        }
+        int lead = cursorByte - 1;
+        while (lead > 0 && cursorByte - lead < 4 && (bytes.get(base + lead) & 0xc0) == 0x80) {
+            lead--;
+        }
+        int cp = decode(lead);
+        if (width == cursorByte - lead) {
+            cursorByte = lead;
+            cursorLow = cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT;
+        } else {
+            cursorByte--;
+        }
+    }
+
+    /*
+     * Decode the code point at a byte offset, setting width to the number of bytes.
+     * Ill-formed sequences decode one byte at a time, as U+FFFD.
+     */
+    private int decode(int offset) {
+        int b0 = bytes.get(base + offset) & 0xff;
+        width = 1;
+        if (b0 < 0x80) {
+            return b0;
+        }
+        int n;
+        int cp;
+        if (b0 >= 0xc2 && b0 <= 0xdf) {
+            n = 2;
+            cp = b0 & 0x1f;
+        } else if (b0 >= 0xe0 && b0 <= 0xef) {
+            n = 3;
+            cp = b0 & 0x0f;
+        } else if (b0 >= 0xf0 && b0 <= 0xf4) {
+            n = 4;
+            cp = b0 & 0x07;
+        } else {
+            return REPLACEMENT;
+        }
+        if (offset + n > byteLength) {
+            return REPLACEMENT;
+        }
+        for (int k = 1; k < n; k++) {
+            int b = bytes.get(base + offset + k) & 0xff;
+            if ((b & 0xc0) != 0x80) {
+                return REPLACEMENT;
+            }
+            cp = (cp << 6) | (b & 0x3f);
+        }
+        if ((n == 3 && cp < 0x800) || (n == 4 && (cp < Character.MIN_SUPPLEMENTARY_CODE_POINT || cp > Character.MAX_CODE_POINT))
+                || (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE)) {
+            return REPLACEMENT;
+        }
+        width = n;
+        return cp;
+    }
+}
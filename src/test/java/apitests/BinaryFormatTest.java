@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+
+package apitests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.List;
+
+import com.basistech.tclre.HsrePattern;
+import com.basistech.tclre.PatternFlags;
+import com.basistech.tclre.PatternOptions;
+import com.basistech.tclre.ReMatcher;
+import com.basistech.tclre.RePattern;
+import com.basistech.tclre.RegexException;
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of the binary form of compiled patterns.
+ */
+public class BinaryFormatTest extends Assert {
+    private static final String[] PATTERNS = {
+        "abc", "(a|b)*c", "([a-z]+)@([a-z]+)\\.com", "(\\w+)\\s+\\1", "foo(?=bar)", "x(?!y)",
+        "^\\d{3}-\\d{4}$", "[^\\u4e00-\\u9fff]+", "\\mthe\\M", "(?i)hello"
+    };
+
+    private static byte[] write(List<RePattern> patterns) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (RePattern pattern : patterns) {
+            pattern.writeTo(out);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static List<RePattern> compileAll() throws Exception {
+        List<RePattern> patterns = Lists.newArrayList();
+        for (String p : PATTERNS) {
+            patterns.add(HsrePattern.compile(p, PatternFlags.ADVANCED));
+        }
+        return patterns;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        List<RePattern> patterns = compileAll();
+        patterns.add(HsrePattern.compile("a.c", PatternFlags.BASIC, PatternFlags.ICASE));
+        ByteBuffer buffer = ByteBuffer.wrap(write(patterns));
+        String data = "abc aac foo@bar.com the the 555-1234 foobar xz HELLO A.C 中文";
+        for (RePattern pattern : patterns) {
+            RePattern read = HsrePattern.readFrom(buffer);
+            assertEquals(pattern.pattern(), read.pattern());
+            assertEquals(pattern.flags(), read.flags());
+            ReMatcher expected = pattern.matcher(data);
+            ReMatcher actual = read.matcher(data);
+            while (expected.find()) {
+                assertTrue(actual.find());
+                for (int g = 0; g <= expected.groupCount(); g++) {
+                    assertEquals(expected.start(g), actual.start(g));
+                    assertEquals(expected.end(g), actual.end(g));
+                }
+            }
+            assertFalse(actual.find());
+        }
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void options() throws Exception {
+        PatternOptions options = PatternOptions.builder().dfaCacheBudget(12345).dissectBudget(99).build();
+        RePattern pattern = HsrePattern.compile("a", EnumSet.of(PatternFlags.ADVANCED), options);
+        HsrePattern read = (HsrePattern) HsrePattern.readFrom(ByteBuffer.wrap(write(Lists.newArrayList(pattern))));
+        assertEquals(options, read.options());
+    }
+
+    @Test
+    public void smaller() throws Exception {
+        List<RePattern> patterns = compileAll();
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(serialized);
+        for (RePattern pattern : patterns) {
+            out.writeObject(pattern);
+        }
+        out.close();
+        int binary = write(patterns).length;
+        assertTrue(binary + " vs " + serialized.size(), 3 * binary < serialized.size());
+    }
+
+    @Test
+    public void rejects() throws Exception {
+        byte[] bytes = write(compileAll().subList(0, 1));
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        byte[] otherVersion = bytes.clone();
+        otherVersion[7]++;
+        byte[][] bad = {truncated, otherVersion, "not a pattern".getBytes("utf-8")};
+        for (byte[] b : bad) {
+            try {
+                HsrePattern.readFrom(ByteBuffer.wrap(b));
+                fail();
+            } catch (RegexException e) {
+                // expected
+            }
+        }
+    }
+}
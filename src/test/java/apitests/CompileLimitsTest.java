@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+
+package apitests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import com.basistech.tclre.HsrePattern;
+import com.basistech.tclre.PatternFlags;
+import com.basistech.tclre.PatternOptions;
+import com.basistech.tclre.PatternTooComplexException;
+import com.basistech.tclre.RePattern;
+import com.basistech.tclre.RegexException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of limiting the work of compiling a pattern.
+ */
+public class CompileLimitsTest extends Assert {
+
+    private static PatternTooComplexException.Limit overrun(String pattern, PatternOptions options) throws RegexException {
+        try {
+            HsrePattern.compile(pattern, EnumSet.of(PatternFlags.ADVANCED), options);
+            fail("stayed within the limits");
+            return null;
+        } catch (PatternTooComplexException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("REG_ETOOBIG"));
+            return e.getLimit();
+        }
+    }
+
+    @Test
+    public void nestedRepetition() throws Exception {
+        // millions of states, if we let it.
+        long start = System.nanoTime();
+        assertEquals(PatternTooComplexException.Limit.STATES,
+                overrun("((a{255}){255}){255}", PatternOptions.builder().maxNfaStates(5000).build()));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+    }
+
+    @Test
+    public void eachLimit() throws Exception {
+        assertEquals(PatternTooComplexException.Limit.ARCS,
+                overrun("[a-z]{100}", PatternOptions.builder().maxNfaArcs(50).build()));
+        assertEquals(PatternTooComplexException.Limit.COLORS,
+                overrun("[ab][cd][ef][gh]", PatternOptions.builder().maxColors(3).build()));
+        assertEquals(PatternTooComplexException.Limit.TREE_NODES,
+                overrun("(a)(b)(c)(d)", PatternOptions.builder().maxTreeNodes(3).build()));
+        assertEquals(PatternTooComplexException.Limit.TIME,
+                overrun("(a{50}b){50}", PatternOptions.builder().compileTimeout(1, TimeUnit.NANOSECONDS).build()));
+    }
+
+    @Test
+    public void withinLimits() throws Exception {
+        PatternOptions options = PatternOptions.builder().maxNfaStates(1000).maxNfaArcs(5000).maxColors(50)
+                .maxTreeNodes(100).compileTimeout(10, TimeUnit.SECONDS).build();
+        RePattern limited = HsrePattern.compile("(\\w+)@(\\w+)\\.(com|org){1,3}", EnumSet.of(PatternFlags.ADVANCED), options);
+        RePattern unlimited = HsrePattern.compile("(\\w+)@(\\w+)\\.(com|org){1,3}", PatternFlags.ADVANCED);
+        String data = "mail bob@example.com now";
+        assertTrue(limited.matcher(data).find());
+        assertEquals(unlimited.matcher(data).replaceAll("<$2>"), limited.matcher(data).replaceAll("<$2>"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        limited.writeTo(new DataOutputStream(bytes));
+        assertEquals(options, ((HsrePattern) HsrePattern.readFrom(ByteBuffer.wrap(bytes.toByteArray()))).options());
+    }
+}
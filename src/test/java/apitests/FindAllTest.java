@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package apitests;
+
+import java.util.List;
+import java.util.regex.MatchResult;
+
+import com.basistech.tclre.HsrePattern;
+import com.basistech.tclre.MatchConsumer;
+import com.basistech.tclre.PatternFlags;
+import com.basistech.tclre.ReMatcher;
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of iterating over all the matches.
+ */
+public class FindAllTest extends Assert {
+
+    private static List<String> spans(ReMatcher matcher) {
+        List<String> spans = Lists.newArrayList();
+        for (MatchResult match : matcher.findAll()) {
+            spans.add(match.start() + "," + match.end());
+        }
+        return spans;
+    }
+
+    @Test
+    public void tokens() throws Exception {
+        ReMatcher matcher = HsrePattern.compile("(\\w+)=(\\d+)", PatternFlags.ADVANCED).matcher("a=1, bb=22 ccc=x d=4");
+        final List<String> found = Lists.newArrayList();
+        int count = matcher.forEachMatch(new MatchConsumer() {
+            @Override
+            public boolean accept(MatchResult match) {
+                found.add(match.group(1) + ":" + match.group(2));
+                return true;
+            }
+        });
+        assertEquals(3, count);
+        assertEquals(Lists.newArrayList("a:1", "bb:22", "d:4"), found);
+        try {
+            matcher.group();
+            fail("match left over");
+        } catch (IllegalStateException e) {
+            // the iteration went to the end.
+        }
+
+        assertEquals(Lists.newArrayList("0,3", "5,10", "17,20"), spans(matcher));
+    }
+
+    @Test
+    public void stop() throws Exception {
+        ReMatcher matcher = HsrePattern.compile("a", PatternFlags.ADVANCED).matcher("aaaa");
+        int count = matcher.forEachMatch(new MatchConsumer() {
+            @Override
+            public boolean accept(MatchResult match) {
+                return match.start() < 1;
+            }
+        });
+        assertEquals(2, count);
+        assertEquals(1, matcher.start());
+        assertTrue(matcher.find());
+        assertEquals(2, matcher.start());
+    }
+
+    @Test
+    public void context() throws Exception {
+        // the region is the data; ^ matches only at its start.
+        assertEquals(Lists.newArrayList("0,1"), spans(HsrePattern.compile("^a", PatternFlags.ADVANCED).matcher("aaa")));
+        assertEquals(Lists.newArrayList("0,1", "4,5"),
+                spans(HsrePattern.compile("\\ma", PatternFlags.ADVANCED).matcher("aaa a")));
+        ReMatcher matcher = HsrePattern.compile("^a", PatternFlags.ADVANCED).matcher("xaaa");
+        matcher.region(1, 4);
+        assertEquals(Lists.newArrayList("1,2"), spans(matcher));
+    }
+
+    @Test
+    public void emptyMatches() throws Exception {
+        assertEquals(Lists.newArrayList("0,0", "1,3", "3,3", "4,4"),
+                spans(HsrePattern.compile("a*", PatternFlags.ADVANCED).matcher("baab")));
+        assertEquals(Lists.newArrayList("0,0", "1,1"),
+                spans(HsrePattern.compile("(?=a)", PatternFlags.ADVANCED).matcher("aa")));
+    }
+
+    @Test
+    public void backrefs() throws Exception {
+        assertEquals(Lists.newArrayList("0,4", "5,7"),
+                spans(HsrePattern.compile("(a+)\\1", PatternFlags.ADVANCED).matcher("aaaa aab")));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package apitests;
+
+import com.basistech.tclre.ExecFlags;
+import com.basistech.tclre.HsrePattern;
+import com.basistech.tclre.PatternFlags;
+import com.basistech.tclre.ReMatcher;
+import com.basistech.tclre.RePattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of the boolean-only match APIs.
+ */
+public class HasMatchTest extends Assert {
+
+    @Test
+    public void patternTest() throws Exception {
+        RePattern pattern = HsrePattern.compile("b+c", PatternFlags.ADVANCED);
+        assertTrue(pattern.test("aabbbcdd"));
+        assertFalse(pattern.test("aabbbdd"));
+        assertFalse(pattern.test(""));
+        // and again, with the cached runtime.
+        assertTrue(pattern.test("bc"));
+    }
+
+    @Test
+    public void agreesWithFind() throws Exception {
+        String[] patterns = {"^ab", "ab$", "a(b|c)*d", "\\mword\\M", "x(?=y)", "(a+)\\1b" };
+        String[] inputs = {"ab", "cab", "abc", "acbcbd", "a word here", "swordfish", "xy", "xz", "aab", "aaaab", "aaab" };
+        for (String p : patterns) {
+            RePattern pattern = HsrePattern.compile(p, PatternFlags.ADVANCED);
+            for (String input : inputs) {
+                boolean expected = pattern.matcher(input).find();
+                assertEquals(p + " " + input, expected, pattern.test(input));
+                assertEquals(p + " " + input, expected, pattern.matcher(input).hasMatch());
+            }
+        }
+    }
+
+    @Test
+    public void matchStateUntouched() throws Exception {
+        RePattern pattern = HsrePattern.compile("(a)(b)?", PatternFlags.ADVANCED);
+        ReMatcher matcher = pattern.matcher("xab.ab");
+        assertTrue(matcher.find());
+        assertTrue(matcher.hasMatch());
+        assertEquals(1, matcher.start());
+        assertEquals(3, matcher.end());
+        assertEquals("b", matcher.group(2));
+        // the next find carries on after the first match.
+        assertTrue(matcher.find());
+        assertEquals(4, matcher.start());
+    }
+
+    @Test
+    public void backrefMatchStateUntouched() throws Exception {
+        RePattern pattern = HsrePattern.compile("(a+)\\1", PatternFlags.ADVANCED);
+        ReMatcher matcher = pattern.matcher("xaaaa");
+        assertTrue(matcher.find());
+        assertTrue(matcher.hasMatch());
+        assertEquals(1, matcher.start());
+        assertEquals(5, matcher.end());
+        assertEquals("aa", matcher.group(1));
+    }
+
+    @Test
+    public void regionAndFlags() throws Exception {
+        RePattern pattern = HsrePattern.compile("^ab");
+        ReMatcher matcher = pattern.matcher("xxab");
+        assertFalse(matcher.hasMatch());
+        matcher.region(2, 4);
+        assertTrue(matcher.hasMatch());
+        matcher.flags().add(ExecFlags.NOTBOL);
+        assertFalse(matcher.hasMatch());
+
+        pattern = HsrePattern.compile("ab");
+        matcher = pattern.matcher("xxab", ExecFlags.LOOKING_AT);
+        assertFalse(matcher.hasMatch());
+        matcher.region(2, 4);
+        assertTrue(matcher.hasMatch());
+        matcher.region(2, 3);
+        assertFalse(matcher.hasMatch());
+    }
+}
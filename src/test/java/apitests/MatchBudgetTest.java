@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+
+package apitests;
+
+import java.util.concurrent.TimeUnit;
+
+import com.basistech.tclre.HsrePattern;
+import com.basistech.tclre.MatchBudget;
+import com.basistech.tclre.MatchBudgetExceededException;
+import com.basistech.tclre.PatternFlags;
+import com.basistech.tclre.ReMatcher;
+import com.google.common.base.Strings;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of limiting the work of a search.
+ */
+public class MatchBudgetTest extends Assert {
+
+    private static MatchBudgetExceededException.Reason overrun(ReMatcher matcher) {
+        try {
+            matcher.find();
+            fail("stayed within the budget");
+            return null;
+        } catch (MatchBudgetExceededException e) {
+            return e.getReason();
+        }
+    }
+
+    @Test
+    public void steps() throws Exception {
+        ReMatcher matcher = HsrePattern.compile("a+\\d", PatternFlags.ADVANCED).matcher(Strings.repeat("a", 10000));
+        matcher.budget(MatchBudget.builder().maxSteps(5000).build());
+        assertEquals(MatchBudgetExceededException.Reason.STEPS, overrun(matcher));
+        // the limit is for each search.
+        matcher.reset(Strings.repeat("a", 1000) + "1");
+        assertTrue(matcher.find());
+        assertFalse(matcher.find());
+        matcher.budget(null).reset(Strings.repeat("a", 10000));
+        assertFalse(matcher.find());
+    }
+
+    @Test
+    public void skipScans() throws Exception {
+        // the search skips through this data looking for the literal prefix, or for the required factor.
+        String data = Strings.repeat("x", 1 << 20);
+        MatchBudget budget = MatchBudget.builder().maxSteps(10000).build();
+        for (String pattern : new String[] {"abcdefgh[0-9]+", "[a-c]zzq", "\\d+\\.log"}) {
+            ReMatcher matcher = HsrePattern.compile(pattern, PatternFlags.ADVANCED).matcher(data).budget(budget);
+            assertEquals(pattern, MatchBudgetExceededException.Reason.STEPS, overrun(matcher));
+        }
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        MatchBudget budget = MatchBudget.builder().build();
+        ReMatcher matcher = HsrePattern.compile("b", PatternFlags.ADVANCED).matcher("abc").budget(budget);
+        assertTrue(matcher.find());
+        budget.cancel();
+        assertEquals(MatchBudgetExceededException.Reason.CANCELLED, overrun(matcher.reset()));
+    }
+
+    @Test
+    public void deadline() throws Exception {
+        ReMatcher matcher = HsrePattern.compile("a+\\d", PatternFlags.ADVANCED).matcher("aaa1");
+        matcher.budget(MatchBudget.builder().deadline(System.nanoTime() - 1).build());
+        assertEquals(MatchBudgetExceededException.Reason.DEADLINE, overrun(matcher));
+
+        matcher.reset(Strings.repeat("a", 4 << 20));
+        matcher.budget(MatchBudget.builder().timeout(1, TimeUnit.MILLISECONDS).build());
+        assertEquals(MatchBudgetExceededException.Reason.DEADLINE, overrun(matcher));
+    }
+}
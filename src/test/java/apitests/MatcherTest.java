@@ -170,4 +170,52 @@ matchExact(null, buffer, offset, 0) <== 0 length
         matcher.reset(new InterruptibleCharSequence("管辖，公司".toCharArray(), 0, 5)).region(0, 5).matches();
     }
 
+    @Test
+    public void charArray() throws Exception {
+        RePattern pattern = HsrePattern.compile("^(b+)c|x", PatternFlags.ADVANCED);
+        char[] buf = "abbcx abbc".toCharArray();
+        ReMatcher matcher = pattern.matcher(buf, 1, 4);
+        assertTrue(matcher.find());
+        assertEquals(0, matcher.start());
+        assertEquals("bb", matcher.group(1));
+        assertTrue(matcher.find());
+        assertEquals(3, matcher.start());
+        assertFalse(matcher.find());
+        // the same matcher, on other kinds of data.
+        assertTrue(matcher.reset("bcd").find());
+        assertTrue(matcher.reset(new StringBuilder("bbcd")).find());
+        assertEquals(3, matcher.end());
+    }
+
+    @Test
+    public void groups() throws Exception {
+        RePattern pattern = HsrePattern.compile("(a)|(b)(c)?", PatternFlags.ADVANCED);
+        ReMatcher matcher = pattern.matcher("xb");
+        assertEquals(3, matcher.groupCount());
+        assertTrue(matcher.find());
+        assertEquals(3, matcher.groupCount());
+        assertEquals("b", matcher.group());
+        assertEquals(-1, matcher.start(1));
+        assertEquals(-1, matcher.end(1));
+        assertNull(matcher.group(1));
+        assertEquals(1, matcher.start(2));
+        assertEquals("b", matcher.group(2));
+        assertEquals(-1, matcher.start(3));
+        assertEquals(-1, matcher.end(3));
+        assertNull(matcher.group(3));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void noSuchGroup() throws Exception {
+        ReMatcher matcher = HsrePattern.compile("(a)", PatternFlags.ADVANCED).matcher("a");
+        assertTrue(matcher.find());
+        matcher.group(2);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void noMatch() throws Exception {
+        ReMatcher matcher = HsrePattern.compile("(a)", PatternFlags.ADVANCED).matcher("b");
+        assertFalse(matcher.find());
+        matcher.start(1);
+    }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+
+package apitests;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.basistech.tclre.HsrePattern;
+import com.basistech.tclre.PatternCache;
+import com.basistech.tclre.PatternFlags;
+import com.basistech.tclre.PatternOptions;
+import com.basistech.tclre.RePattern;
+import com.basistech.tclre.RegexException;
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of the cache of compiled patterns.
+ */
+public class PatternCacheTest extends Assert {
+
+    @Test
+    public void hits() throws Exception {
+        PatternCache cache = PatternCache.builder().build();
+        EnumSet<PatternFlags> flags = EnumSet.of(PatternFlags.ADVANCED);
+        RePattern pattern = HsrePattern.compile("a+b", flags, cache);
+        assertTrue(pattern.matcher("xaab").find());
+        // the caller's flags may change afterwards.
+        flags.add(PatternFlags.ICASE);
+        assertNotSame(pattern, cache.compile("a+b", flags));
+        assertSame(pattern, cache.compile("a+b", EnumSet.of(PatternFlags.ADVANCED)));
+        assertNotSame(pattern, cache.compile("a+b", EnumSet.of(PatternFlags.ADVANCED),
+                PatternOptions.builder().dfaCacheBudget(4096).build()));
+        assertEquals(1, cache.hitCount());
+        assertEquals(3, cache.missCount());
+        assertEquals(3, cache.loadCount());
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void eviction() throws Exception {
+        PatternCache cache = PatternCache.builder().maximumSize(2).build();
+        EnumSet<PatternFlags> flags = EnumSet.of(PatternFlags.ADVANCED);
+        for (int x = 0; x < 5; x++) {
+            cache.compile("a{" + x + "}", flags);
+        }
+        assertTrue(cache.size() <= 2);
+        assertEquals(3, cache.evictionCount());
+
+        // each pattern has a color map of 128k.
+        cache = PatternCache.builder().maximumWeight(1000 * 1000).build();
+        for (int x = 0; x < 20; x++) {
+            cache.compile("b{" + x + "}", flags);
+        }
+        assertTrue(cache.size() < 8);
+        assertTrue(cache.evictionCount() > 0);
+    }
+
+    @Test
+    public void errors() throws Exception {
+        PatternCache cache = PatternCache.builder().build();
+        for (int x = 0; x < 2; x++) {
+            try {
+                cache.compile("(a", EnumSet.of(PatternFlags.ADVANCED));
+                fail("no exception");
+            } catch (RegexException e) {
+                // expected, both times.
+            }
+        }
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.loadCount());
+    }
+
+    @Test
+    public void singleFlight() throws Exception {
+        final PatternCache cache = PatternCache.builder().build();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<RePattern>> futures = Lists.newArrayList();
+            for (int x = 0; x < 8; x++) {
+                futures.add(executor.submit(new Callable<RePattern>() {
+                    @Override
+                    public RePattern call() throws Exception {
+                        start.await();
+                        return cache.compile("(\\w+)@(\\w+)\\.com", EnumSet.of(PatternFlags.ADVANCED));
+                    }
+                }));
+            }
+            start.countDown();
+            RePattern first = futures.get(0).get();
+            for (Future<RePattern> future : futures) {
+                assertSame(first, future.get());
+            }
+            assertEquals(1, cache.loadCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void uncheckedFailure() throws Exception {
+        PatternCache cache = PatternCache.builder().build();
+        // the compiler's own exception, not wrapped.
+        cache.compile("a", EnumSet.of(PatternFlags.QUOTE, PatternFlags.ADVANCED));
+    }
+}
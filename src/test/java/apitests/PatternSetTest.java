@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+
+package apitests;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.List;
+
+import com.basistech.tclre.PatternFlags;
+import com.basistech.tclre.RePatternSet;
+import com.basistech.tclre.ReMatcher;
+import com.basistech.tclre.RegexException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of sets of patterns.
+ */
+public class PatternSetTest extends Assert {
+
+    private static BitSet bits(int... positions) {
+        BitSet bits = new BitSet();
+        for (int p : positions) {
+            bits.set(p);
+        }
+        return bits;
+    }
+
+    @Test
+    public void matches() throws Exception {
+        List<String> patterns = Arrays.asList("error\\s+\\d+", "\\muser=\\w+", "^GET ", "(?i)timeout", "\\d{3}$", "a^b");
+        RePatternSet set = RePatternSet.compile(patterns, EnumSet.of(PatternFlags.ADVANCED));
+        assertEquals(6, set.size());
+        assertEquals(bits(0, 1, 2), set.matches("GET /x user=bob error 42 done"));
+        assertEquals(bits(3, 4), set.matches("POST TimeOut after 500"));
+        assertEquals(bits(), set.matches("xuser=bob ERROR 1"));
+        assertEquals(bits(), set.matches(""));
+
+        ReMatcher matcher = set.matcher(0, "GET /x user=bob error 42 done");
+        assertTrue(matcher.find());
+        assertEquals(16, matcher.start());
+        assertEquals(24, matcher.end());
+    }
+
+    @Test
+    public void separatePatterns() throws Exception {
+        // a backreference and a lookahead constraint can't go in the combined automaton.
+        List<String> patterns = Arrays.asList("(\\w)\\1x", "foo(?=bar)", "foo");
+        RePatternSet set = RePatternSet.compile(patterns, EnumSet.of(PatternFlags.ADVANCED));
+        assertEquals(bits(2), set.matches("foobaz"));
+        assertEquals(bits(1, 2), set.matches("foobar"));
+        assertEquals(bits(0, 2), set.matches("fooxd"));
+    }
+
+    @Test
+    public void agreesWithPatterns() throws Exception {
+        List<String> patterns = Arrays.asList("a+b", "[[:upper:]]x", "\\ycat\\y", "\\s$", "^\\w+:", "q.*z", "[^a-c]{3}", "(?i)été");
+        RePatternSet set = RePatternSet.compile(patterns, EnumSet.of(PatternFlags.ADVANCED));
+        String[] inputs = {"aab", "Ax cat", "concatenate ", "key: value", "qz", "q...z", "abcabc", "dde", "ÉTÉ", ""};
+        for (String input : inputs) {
+            BitSet matches = set.matches(input);
+            for (int x = 0; x < patterns.size(); x++) {
+                assertEquals(patterns.get(x) + " " + input, set.pattern(x).matcher(input).find(), matches.get(x));
+            }
+        }
+    }
+
+    @Test
+    public void invalidPattern() throws Exception {
+        try {
+            RePatternSet.compile(Arrays.asList("ok", "(unbalanced"), EnumSet.of(PatternFlags.ADVANCED));
+            fail("no exception");
+        } catch (RegexException e) {
+            assertTrue(e.getMessage().startsWith("Pattern 1:"));
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+
+package apitests;
+
+import java.io.StringWriter;
+import java.util.regex.MatchResult;
+
+import com.basistech.tclre.HsrePattern;
+import com.basistech.tclre.MatchReplacer;
+import com.basistech.tclre.PatternFlags;
+import com.basistech.tclre.ReMatcher;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of replacement.
+ */
+public class ReplaceTest extends Assert {
+
+    private static ReMatcher matcher(String pattern, String data) throws Exception {
+        return HsrePattern.compile(pattern, PatternFlags.ADVANCED).matcher(data);
+    }
+
+    @Test
+    public void templates() throws Exception {
+        assertEquals("1=b, 22=a", matcher("(\\w+)=(\\d+)", "b=1, a=22").replaceAll("$2=$1"));
+        assertEquals("<$x\\>", matcher("x", "x").replaceAll("<\\$$0\\\\>"));
+        // only as many digits as make a group.
+        assertEquals("a0-", matcher("(a)", "a-").replaceAll("$10"));
+        // a group that didn't participate is empty.
+        assertEquals("[]b", matcher("(x)?b", "b").replaceAll("[$1]$0"));
+        assertEquals("-a-b-c-", matcher("x*", "abc").replaceAll("-"));
+        assertEquals("A_b_a", matcher("a", "a_b_a").replaceFirst("A"));
+        assertEquals("nothing", matcher("x", "nothing").replaceAll("y"));
+    }
+
+    @Test
+    public void badTemplates() throws Exception {
+        String[] templates = {"$", "a\\", "$x", "$2"};
+        for (String template : templates) {
+            try {
+                matcher("(a)", "a").replaceAll(template);
+                fail(template);
+            } catch (IllegalArgumentException e) {
+                // expected
+            } catch (IndexOutOfBoundsException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void region() throws Exception {
+        ReMatcher matcher = matcher("a", "aaaa");
+        matcher.region(1, 3);
+        assertEquals("abba", matcher.replaceAll("b"));
+    }
+
+    @Test
+    public void replacer() throws Exception {
+        ReMatcher matcher = matcher("\\d+", "3 apples and 12 pears");
+        assertEquals("6 apples and 24 pears", matcher.replaceAll(new MatchReplacer() {
+            @Override
+            public CharSequence replacement(MatchResult match) {
+                return Integer.toString(2 * Integer.parseInt(match.group()));
+            }
+        }));
+    }
+
+    @Test
+    public void append() throws Exception {
+        ReMatcher matcher = matcher("(\\w)(\\w*)", "one two three");
+        StringBuilder sb = new StringBuilder(">");
+        while (matcher.find()) {
+            matcher.appendReplacement(sb, "$2$1ay");
+        }
+        assertEquals(">neoay wotay hreetay", matcher.appendTail(sb).toString());
+
+        matcher.reset();
+        StringWriter writer = new StringWriter();
+        assertTrue(matcher.find());
+        matcher.appendReplacement(writer, "1");
+        matcher.appendTail(writer);
+        assertEquals("1 two three", writer.toString());
+
+        matcher.reset();
+        try {
+            matcher.appendReplacement(sb, "x");
+            fail("appended without a match");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
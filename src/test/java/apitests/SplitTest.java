@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+
+package apitests;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import com.basistech.tclre.HsrePattern;
+import com.basistech.tclre.PatternFlags;
+import com.basistech.tclre.RePattern;
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of splitting.
+ */
+public class SplitTest extends Assert {
+
+    private static List<String> lazily(RePattern pattern, String data) {
+        List<String> fields = Lists.newArrayList();
+        for (CharSequence field : pattern.splitLazily(data)) {
+            fields.add(field.toString());
+        }
+        return fields;
+    }
+
+    @Test
+    public void likeJava() throws Exception {
+        String[] patterns = {",", " *, *", "x*", "a|bc", "^a", "c$"};
+        Random random = new Random(17);
+        for (String p : patterns) {
+            RePattern pattern = HsrePattern.compile(p, PatternFlags.ADVANCED);
+            Pattern javaPattern = Pattern.compile(p);
+            for (int trial = 0; trial < 100; trial++) {
+                StringBuilder data = new StringBuilder();
+                int length = random.nextInt(12);
+                for (int x = 0; x < length; x++) {
+                    data.append("abc, x".charAt(random.nextInt(6)));
+                }
+                String input = data.toString();
+                for (int limit = -1; limit < 4; limit++) {
+                    assertEquals(p + " '" + input + "' " + limit,
+                            Arrays.asList(javaPattern.split(input, limit)), Arrays.asList(pattern.split(input, limit)));
+                }
+                assertEquals(p + " '" + input + "'", Arrays.asList(javaPattern.split(input)), lazily(pattern, input));
+            }
+        }
+    }
+
+    @Test
+    public void views() throws Exception {
+        RePattern pattern = HsrePattern.compile("\\s+", PatternFlags.ADVANCED);
+        StringBuilder data = new StringBuilder("alpha  beta gamma ");
+        CharSequence beta = null;
+        for (CharSequence field : pattern.splitLazily(data)) {
+            if (field.charAt(0) == 'b') {
+                beta = field;
+            }
+        }
+        assertEquals("eta", beta.subSequence(1, 4).toString());
+        // a view, not a copy.
+        data.setCharAt(7, 'B');
+        assertEquals("Beta", beta.toString());
+    }
+
+    @Test
+    public void manyFields() throws Exception {
+        RePattern pattern = HsrePattern.compile(";", PatternFlags.ADVANCED);
+        StringBuilder data = new StringBuilder();
+        for (int x = 0; x < 100000; x++) {
+            data.append(x % 10 == 0 ? "" : "f").append(';');
+        }
+        data.append(";;;");
+        int count = 0;
+        int empty = 0;
+        for (CharSequence field : pattern.splitLazily(data)) {
+            count++;
+            if (field.length() == 0) {
+                empty++;
+            }
+        }
+        assertEquals(100000, count);
+        assertEquals(10000, empty);
+    }
+}
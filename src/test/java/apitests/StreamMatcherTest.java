@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package apitests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.MatchResult;
+
+import com.basistech.tclre.HsrePattern;
+import com.basistech.tclre.MatchConsumer;
+import com.basistech.tclre.PatternFlags;
+import com.basistech.tclre.RePattern;
+import com.basistech.tclre.StreamMatcher;
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of matching data that arrives in pieces.
+ */
+public class StreamMatcherTest extends Assert {
+
+    private static class Collector implements MatchConsumer {
+        final List<String> found = Lists.newArrayList();
+
+        @Override
+        public boolean accept(MatchResult match) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(match.start()).append(',').append(match.end());
+            for (int g = 1; g <= match.groupCount(); g++) {
+                sb.append(' ').append(match.group(g));
+            }
+            found.add(sb.toString());
+            return true;
+        }
+    }
+
+    private static List<String> whole(RePattern pattern, String data) {
+        Collector collector = new Collector();
+        pattern.matcher(data).forEachMatch(collector);
+        return collector.found;
+    }
+
+    @Test
+    public void acrossChunks() throws Exception {
+        StreamMatcher matcher = HsrePattern.compile("(\\w+)=(\\d+)", PatternFlags.ADVANCED).streamMatcher();
+        Collector collector = new Collector();
+        assertEquals(1, matcher.feed("a=1, bb", collector));
+        assertEquals(0, matcher.feed("=2", collector));
+        // the match might go on.
+        assertEquals(Lists.newArrayList("0,3 a 1"), collector.found);
+        assertEquals(1, matcher.feed("2 ccc=x d=4", collector));
+        assertEquals(1, matcher.finish(collector));
+        assertEquals(Lists.newArrayList("0,3 a 1", "5,10 bb 22", "17,20 d 4"), collector.found);
+        assertEquals(20, matcher.position());
+    }
+
+    @Test
+    public void anchors() throws Exception {
+        RePattern pattern = HsrePattern.compile("^a|b$|\\mc\\M", PatternFlags.ADVANCED);
+        StreamMatcher matcher = pattern.streamMatcher();
+        Collector collector = new Collector();
+        matcher.feed("a a c", collector);
+        matcher.feed("c c b", collector);
+        // the b isn't at the end yet.
+        assertEquals(Lists.newArrayList("0,1", "7,8"), collector.found);
+        matcher.finish(collector);
+        assertEquals(whole(pattern, "a a cc c b"), collector.found);
+    }
+
+    @Test
+    public void stopAndResume() throws Exception {
+        StreamMatcher matcher = HsrePattern.compile("a", PatternFlags.ADVANCED).streamMatcher();
+        MatchConsumer first = new MatchConsumer() {
+            @Override
+            public boolean accept(MatchResult match) {
+                return false;
+            }
+        };
+        assertEquals(1, matcher.feed("aaa", first));
+        Collector collector = new Collector();
+        assertEquals(1, matcher.feed("", collector));
+        assertEquals(Lists.newArrayList("1,2"), collector.found);
+        // the last one could still be followed by something that matters.
+        assertEquals(1, matcher.finish(collector));
+        assertEquals(Lists.newArrayList("1,2", "2,3"), collector.found);
+        try {
+            matcher.feed("a", collector);
+            fail("fed a finished stream");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void serializeMidMatch() throws Exception {
+        StreamMatcher matcher = HsrePattern.compile("x(a+)y", PatternFlags.ADVANCED).streamMatcher();
+        Collector collector = new Collector();
+        matcher.feed("..xaa", collector);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(matcher);
+        out.close();
+        StreamMatcher resumed = (StreamMatcher) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        resumed.feed("aay.", collector);
+        resumed.finish(collector);
+        assertEquals(Lists.newArrayList("2,8 aaaa"), collector.found);
+    }
+
+    @Test
+    public void keepsLittle() throws Exception {
+        StreamMatcher matcher = HsrePattern.compile("ab+c", PatternFlags.ADVANCED).streamMatcher();
+        Collector collector = new Collector();
+        StringBuilder chunk = new StringBuilder();
+        for (int x = 0; x < 1000; x++) {
+            chunk.append("xyzzy abbc ");
+        }
+        for (int x = 0; x < 100; x++) {
+            matcher.feed(chunk, collector);
+        }
+        assertEquals(100000, collector.found.size());
+        assertEquals("1099995,1099999", collector.found.get(99999));
+        // little more than the last partial match.
+        assertTrue(matcher.toString(), matcher.toString().contains("retained=1,"));
+    }
+
+    @Test
+    public void agreesWithWhole() throws Exception {
+        String[] patterns = {"a+b*", "(a|ab)(c|bcd)(d*)", "\\mab", "b(?=c)", "(a+)\\1", "x*", "c$", "^b" };
+        Random random = new Random(42);
+        for (String p : patterns) {
+            RePattern pattern = HsrePattern.compile(p, PatternFlags.ADVANCED);
+            for (int trial = 0; trial < 50; trial++) {
+                StringBuilder data = new StringBuilder();
+                int length = random.nextInt(40);
+                for (int x = 0; x < length; x++) {
+                    data.append("abcdx ".charAt(random.nextInt(6)));
+                }
+                StreamMatcher matcher = pattern.streamMatcher();
+                Collector collector = new Collector();
+                for (int pos = 0; pos < data.length();) {
+                    int step = Math.min(data.length() - pos, random.nextInt(5));
+                    matcher.feed(data.subSequence(pos, pos + step), collector);
+                    pos += step;
+                }
+                matcher.finish(collector);
+                assertEquals(p + " " + data, whole(pattern, data.toString()), collector.found);
+            }
+        }
+    }
+}
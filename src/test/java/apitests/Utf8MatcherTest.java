@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package apitests;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import com.basistech.tclre.HsrePattern;
+import com.basistech.tclre.PatternFlags;
+import com.basistech.tclre.RePattern;
+import com.basistech.tclre.Utf8Matcher;
+import com.basistech.tclre.Utf8Sequence;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of matching over UTF-8 bytes.
+ */
+public class Utf8MatcherTest extends Assert {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void ascii() throws Exception {
+        RePattern pattern = HsrePattern.compile("(b+)c", PatternFlags.ADVANCED);
+        Utf8Matcher matcher = pattern.utf8Matcher(ByteBuffer.wrap("aabbbcdd".getBytes(UTF8)));
+        assertTrue(matcher.find());
+        assertEquals(2, matcher.start());
+        assertEquals(6, matcher.end());
+        assertEquals(2, matcher.start(1));
+        assertEquals(5, matcher.end(1));
+        assertEquals("bbbc", matcher.group());
+        assertFalse(matcher.find());
+    }
+
+    @Test
+    public void byteOffsets() throws Exception {
+        // 2-, 3- and 4-byte characters before the match.
+        String text = "é€😀 café €";
+        RePattern pattern = HsrePattern.compile("caf(.)", PatternFlags.ADVANCED);
+        Utf8Matcher matcher = pattern.utf8Matcher(ByteBuffer.wrap(text.getBytes(UTF8)));
+        assertTrue(matcher.find());
+        assertEquals(2 + 3 + 4 + 1, matcher.start());
+        assertEquals(2 + 3 + 4 + 1 + 5, matcher.end());
+        assertEquals("é", matcher.group(1));
+        assertEquals(2 + 3 + 4 + 1 + 3, matcher.start(1));
+        assertEquals(text.indexOf("caf"), matcher.matcher().start());
+    }
+
+    @Test
+    public void supplementary() throws Exception {
+        String text = "x😀y";
+        RePattern pattern = HsrePattern.compile("y", PatternFlags.ADVANCED);
+        Utf8Matcher matcher = pattern.utf8Matcher(ByteBuffer.wrap(text.getBytes(UTF8)));
+        assertTrue(matcher.find());
+        assertEquals(5, matcher.start());
+        assertEquals(text, matcher.chars().toString());
+    }
+
+    @Test
+    public void directBufferWithPosition() throws Exception {
+        byte[] bytes = "skipé abcé".getBytes(UTF8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.position(4);
+        RePattern pattern = HsrePattern.compile("^é (abc)", PatternFlags.ADVANCED);
+        Utf8Matcher matcher = pattern.utf8Matcher(buffer);
+        assertTrue(matcher.find());
+        assertEquals(0, matcher.start());
+        assertEquals(3, matcher.start(1));
+        assertEquals(6, matcher.end(1));
+        assertEquals(4, buffer.position());
+    }
+
+    @Test
+    public void malformed() throws Exception {
+        byte[] bytes = {'a', (byte) 0xc3, 'b', (byte) 0xff, (byte) 0xe2, (byte) 0x82, 'c'};
+        Utf8Sequence chars = new Utf8Sequence(ByteBuffer.wrap(bytes));
+        assertEquals("a�b���c", chars.toString());
+        RePattern pattern = HsrePattern.compile("c", PatternFlags.ADVANCED);
+        Utf8Matcher matcher = pattern.utf8Matcher(ByteBuffer.wrap(bytes));
+        assertTrue(matcher.find());
+        assertEquals(6, matcher.start());
+    }
+
+    @Test
+    public void longText() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int x = 0; x < 2000; x++) {
+            sb.append(x % 7 == 0 ? "😀" : x % 3 == 0 ? "é" : "a");
+            if (x % 250 == 0) {
+                sb.append("<").append(x).append(">");
+            }
+        }
+        String text = sb.toString();
+        byte[] bytes = text.getBytes(UTF8);
+        Utf8Sequence chars = new Utf8Sequence(ByteBuffer.wrap(bytes));
+        assertEquals(text.length(), chars.length());
+        // random access in both directions.
+        for (int x = text.length() - 1; x >= 0; x -= 37) {
+            assertEquals(text.charAt(x), chars.charAt(x));
+        }
+        assertEquals(text, chars.toString());
+
+        RePattern pattern = HsrePattern.compile("<([0-9]+)>", PatternFlags.ADVANCED);
+        Utf8Matcher matcher = pattern.utf8Matcher(ByteBuffer.wrap(bytes));
+        int count = 0;
+        while (matcher.find()) {
+            String prefix = text.substring(0, text.indexOf("<" + matcher.group(1) + ">"));
+            assertEquals(prefix.getBytes(UTF8).length, matcher.start());
+            assertEquals(matcher.start(), chars.byteOffset(chars.charOffset(matcher.start())));
+            count++;
+        }
+        assertEquals(8, count);
+        // start partway through.
+        int offset = text.substring(0, text.indexOf("<1000>")).getBytes(UTF8).length;
+        assertTrue(matcher.find(offset - 1));
+        assertEquals(offset, matcher.start());
+        assertEquals("1000", matcher.group(1));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.basistech.tclre;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+
+/**
+ * Once warmed up, matching with a reused matcher should not allocate.
+ * This relies on the HotSpot extension to {@link java.lang.management.ThreadMXBean}
+ * and is skipped on other VMs.
+ */
+public class AllocationTest extends Utils {
+    private static final String[] LINES = {
+        "2014-06-05 12:00:01 INFO user=benson action=login",
+        "2014-06-05 12:00:02 WARN user=dan action=logout elapsed=12",
+        "nothing to see here",
+        "2014-06-05 12:00:03 INFO user=mike action=login user=again",
+    };
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long work(ReMatcher matcher, ReMatcher anchored, int iterations) {
+        long sum = 0;
+        for (int x = 0; x < iterations; x++) {
+            for (String line : LINES) {
+                matcher.reset(line);
+                while (matcher.find()) {
+                    sum += matcher.start(1) + matcher.end(2);
+                }
+                anchored.reset(line);
+                if (anchored.lookingAt()) {
+                    sum += anchored.end();
+                }
+                if (anchored.matches()) {
+                    sum++;
+                }
+            }
+        }
+        return sum;
+    }
+
+    @Test
+    public void steadyStateFindDoesNotAllocate() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled());
+
+        ReMatcher matcher = HsrePattern.compile("user=(\\w+) action=(\\w+)", PatternFlags.ADVANCED).matcher("");
+        ReMatcher anchored = HsrePattern.compile("\\d+-\\d+-\\d+ [0-9:]+ (INFO|WARN)", PatternFlags.ADVANCED).matcher("");
+        work(matcher, anchored, 100);
+
+        long overhead = allocatedBytes();
+        overhead = allocatedBytes() - overhead;
+        long before = allocatedBytes();
+        work(matcher, anchored, 10000);
+        long allocated = allocatedBytes() - before - overhead;
+        // 40,000 lines; anything proportional to the work would be far larger than this.
+        assertThat(allocated, lessThan(4096L));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import java.util.EnumSet;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Backreference dissection: remembered failures and the budget.
+ */
+public class BackrefDissectTest extends Utils {
+
+    @Test
+    public void dependencies() throws Exception {
+        HsrePattern pattern = (HsrePattern) HsrePattern.compile("(a+)(b+)\\2c", PatternFlags.ADVANCED);
+        RuntimeSubexpression tree = pattern.guts.tree;
+        assertThat(tree.backrefs, is(true));
+        assertThat(tree.foreignRefs, equalTo(0L));
+        assertThat(tree.captures, equalTo((1L << 1) | (1L << 2)));
+
+        // one side of the alternation doesn't set \1, so it may come from outside.
+        pattern = (HsrePattern) HsrePattern.compile("(?:(a)|b)\\1", PatternFlags.ADVANCED);
+        assertThat(pattern.guts.tree.foreignRefs, equalTo(1L << 1));
+    }
+
+    @Test
+    public void repeatedFailures() throws Exception {
+        // without the memo, this retries the same tail for every start and midpoint.
+        String text = Strings.repeat("a", 300) + Strings.repeat("b", 601) + "c";
+        ReMatcher matcher = HsrePattern.compile("(a+)(b+)\\2c", PatternFlags.ADVANCED).matcher(text);
+        assertThat(matcher.find(), is(false));
+
+        matcher = HsrePattern.compile("(a+)(b+)\\2c", PatternFlags.ADVANCED).matcher("xaaabbbbbbc");
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.start(), equalTo(1));
+        assertThat(matcher.group(1), equalTo("aaa"));
+        assertThat(matcher.group(2), equalTo("bbb"));
+    }
+
+    @Test
+    public void budget() throws Exception {
+        String text = Strings.repeat("a", 50) + Strings.repeat("b", 101) + "c";
+        RePattern limited = HsrePattern.compile("(a+)(b+)\\2c", EnumSet.of(PatternFlags.ADVANCED),
+                PatternOptions.builder().dissectBudget(100).build());
+        try {
+            limited.matcher(text).find();
+            fail("no budget exception");
+        } catch (MatchBudgetExceededException e) {
+            assertThat(e.getReason(), equalTo(MatchBudgetExceededException.Reason.STEPS));
+            assertThat(e.getMessage(), containsString("budget of 100"));
+        }
+        // the budget is for each search.
+        ReMatcher matcher = limited.matcher("aabbbbc");
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.find(), is(false));
+    }
+}
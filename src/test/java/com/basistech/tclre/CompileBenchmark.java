@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import java.util.EnumSet;
+import java.util.Random;
+
+/**
+ * Compile throughput on large generated patterns. This is a program, not a test; run it with the test classpath:
+ * <pre>
+ * java -cp target/classes:target/test-classes:... com.basistech.tclre.CompileBenchmark [repetitions]
+ * </pre>
+ * For each pattern, it reports the best time of the repetitions, and the patterns per second that implies.
+ * The patterns come from a fixed seed, so runs on different versions of the code compile the same ones.
+ */
+public final class CompileBenchmark {
+
+    private CompileBenchmark() {
+        //
+    }
+
+    /*
+     * An alternation of random lowercase words, between word boundaries; the start state has an arc for each word.
+     */
+    static String alternation(int count, long seed) {
+        Random random = new Random(seed);
+        StringBuilder exp = new StringBuilder("\\m(");
+        for (int x = 0; x < count; x++) {
+            if (x > 0) {
+                exp.append('|');
+            }
+            int length = 4 + random.nextInt(8);
+            for (int y = 0; y < length; y++) {
+                exp.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return exp.append(")\\M").toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int repetitions = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        String[] patterns = {
+            alternation(250, 1),
+            alternation(500, 1),
+            alternation(1000, 1),
+            alternation(2000, 1),
+            "[a-z]{1,40}@[a-z0-9]{2,30}\\.(com|org|net){1,3}",
+            "(\\w+\\s*,\\s*){1,20}\\d{1,8}",
+            "((ab|cd)e?f*){2,30}",
+        };
+        String[] names = {
+            "250-word alternation",
+            "500-word alternation",
+            "1000-word alternation",
+            "2000-word alternation",
+            patterns[4],
+            patterns[5],
+            patterns[6],
+        };
+        EnumSet<PatternFlags> flags = EnumSet.of(PatternFlags.ADVANCED);
+        for (int x = 0; x < patterns.length; x++) {
+            long best = Long.MAX_VALUE;
+            for (int r = 0; r < repetitions; r++) {
+                long start = System.nanoTime();
+                HsrePattern.compile(patterns[x], flags);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.println(String.format("%-50s %10.2f ms %10.1f/s", names[x], best / 1e6, 1e9 / best));
+        }
+    }
+}
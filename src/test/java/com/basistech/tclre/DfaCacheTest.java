@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.basistech.tclre;
+
+import java.util.EnumSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * The DFA state sets outlive a single call to find.
+ */
+public class DfaCacheTest extends Utils {
+
+    @Test
+    public void statesSurviveExec() throws Exception {
+        HsrePattern pattern = (HsrePattern) HsrePattern.compile("([a-z]+)@([a-z]+)\\.com", PatternFlags.ADVANCED);
+        Runtime runtime = new Runtime();
+        String data = "mail bob@example.com now";
+        assertThat(runtime.exec(pattern, data, 0, data.length(), 0), is(true));
+        Dfa search = runtime.getDfa(pattern.guts.search);
+        int searchStates = search.nsets;
+        int mainStates = runtime.getDfa(pattern.guts.tree.machine).nsets;
+
+        assertThat(runtime.exec(pattern, data, 0, data.length(), 0), is(true));
+        assertThat(runtime.getDfa(pattern.guts.search), sameInstance(search));
+        assertThat(search.nsets, equalTo(searchStates));
+        assertThat(runtime.getDfa(pattern.guts.tree.machine).nsets, equalTo(mainStates));
+        assertThat(runtime.match[2], equalTo(5));
+        assertThat(runtime.match[5], equalTo(16));
+    }
+
+    @Test
+    public void cachedStatesAcrossInputs() throws Exception {
+        RePattern pattern = HsrePattern.compile("\\m(ab|b)c+\\M", PatternFlags.ADVANCED);
+        ReMatcher matcher = pattern.matcher("xabcc bc");
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.start(), equalTo(6));
+        assertThat(matcher.end(), equalTo(8));
+        matcher.reset("abc xbc");
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.start(), equalTo(0));
+        assertThat(matcher.end(), equalTo(3));
+        assertThat(matcher.find(), is(false));
+        matcher.reset("zzz");
+        assertThat(matcher.find(), is(false));
+        matcher.reset("bccc");
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.group(1), equalTo("b"));
+    }
+
+    @Test
+    public void cachedStatesAcrossFlags() throws Exception {
+        ReMatcher matcher = HsrePattern.compile("^a+$", PatternFlags.ADVANCED).matcher("aaa");
+        assertThat(matcher.find(), is(true));
+        matcher.flags(ExecFlags.NOTBOL);
+        matcher.reset();
+        assertThat(matcher.find(), is(false));
+        matcher.flags().clear();
+        matcher.reset();
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.end(), equalTo(3));
+    }
+
+    @Test
+    public void manyStates() throws Exception {
+        // hundreds of NFA states, so the state sets span many words.
+        StringBuilder alternation = new StringBuilder();
+        StringBuilder text = new StringBuilder();
+        for (int x = 0; x < 300; x++) {
+            if (x > 0) {
+                alternation.append('|');
+            }
+            alternation.append("_").append(Integer.toString(x * 7919, 36)).append('!');
+            text.append(" _").append(Integer.toString(x * 7919 + 1, 36)).append('!');
+        }
+        text.append(" _").append(Integer.toString(299 * 7919, 36)).append("!.");
+        HsrePattern pattern = (HsrePattern) HsrePattern.compile(alternation.toString(), PatternFlags.ADVANCED);
+        ReMatcher matcher = pattern.matcher(text);
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.end(), equalTo(text.length() - 1));
+        assertThat(matcher.find(), is(false));
+
+        Runtime runtime = new Runtime();
+        assertThat(runtime.exec(pattern, text, 0, text.length(), 0), is(true));
+        int searchStates = runtime.getDfa(pattern.guts.search).nsets;
+        assertThat(runtime.exec(pattern, text, 0, text.length(), 0), is(true));
+        assertThat(runtime.getDfa(pattern.guts.search).nsets, equalTo(searchStates));
+    }
+
+    @Test
+    public void budgetFlushes() throws Exception {
+        // the subset construction for this one is exponential.
+        String exp = "(a|b)*a(a|b){12}c";
+        StringBuilder text = new StringBuilder();
+        Random random = new Random(42);
+        for (int x = 0; x < 20000; x++) {
+            text.append(random.nextBoolean() ? 'a' : 'b');
+            if (random.nextInt(500) == 0) {
+                text.append('c');
+            }
+        }
+        RePattern unlimited = HsrePattern.compile(exp, EnumSet.of(PatternFlags.ADVANCED));
+        RePattern limited = HsrePattern.compile(exp, EnumSet.of(PatternFlags.ADVANCED),
+                PatternOptions.builder().dfaCacheBudget(4096).build());
+        ReMatcher um = unlimited.matcher(text);
+        ReMatcher lm = limited.matcher(text);
+        int count = 0;
+        while (um.find()) {
+            assertThat(lm.find(), is(true));
+            assertThat(lm.start(), equalTo(um.start()));
+            assertThat(lm.end(), equalTo(um.end()));
+            assertThat(lm.start(1), equalTo(um.start(1)));
+            count++;
+        }
+        assertThat(lm.find(), is(false));
+        assertThat(count > 10, is(true));
+        assertThat(limited.dfaCacheFlushes() > 0, is(true));
+        assertThat(unlimited.dfaCacheFlushes(), equalTo(0L));
+    }
+
+    @Test
+    public void eagerTables() throws Exception {
+        String exp = "(\\w+)@(\\w+)\\.(com|org)";
+        HsrePattern lazy = (HsrePattern) HsrePattern.compile(exp, PatternFlags.ADVANCED);
+        HsrePattern eager = (HsrePattern) HsrePattern.compile(exp, EnumSet.of(PatternFlags.ADVANCED),
+                PatternOptions.builder().eagerDfaStates(1000).build());
+        assertThat(lazy.guts.eagerTable(lazy.guts.search) == null, is(true));
+        DfaTable table = eager.guts.eagerTable(eager.guts.search);
+        assertThat(table == null, is(false));
+
+        String[] data = {"mail bob@example.com now", "x@y.org, z@w.net", "nothing here", "@.com a@b.comx"};
+        for (String d : data) {
+            ReMatcher lm = lazy.matcher(d);
+            ReMatcher em = eager.matcher(d);
+            while (lm.find()) {
+                assertThat(em.find(), is(true));
+                assertThat(em.start(), equalTo(lm.start()));
+                assertThat(em.end(), equalTo(lm.end()));
+                assertThat(em.group(2), equalTo(lm.group(2)));
+            }
+            assertThat(em.find(), is(false));
+        }
+        // the matches above didn't add states to the shared table.
+        Runtime runtime = new Runtime();
+        assertThat(runtime.exec(eager, data[0], 0, data[0].length(), 0), is(true));
+        assertThat(runtime.getDfa(eager.guts.search).nsets, equalTo(table.nsets));
+        assertThat(eager.dfaCacheFlushes(), equalTo(0L));
+
+        // too many states to build ahead.
+        HsrePattern big = (HsrePattern) HsrePattern.compile("(a|b)*a(a|b){12}c", EnumSet.of(PatternFlags.ADVANCED),
+                PatternOptions.builder().eagerDfaStates(100).build());
+        assertThat(big.guts.eagerTable(big.guts.search) == null, is(true));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import java.io.ObjectInputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * The machines for the parts of a pattern are built when a match is first dissected.
+ */
+public class LazySubexpressionTest extends Utils {
+
+    @Test
+    public void builtWhenAsked() throws Exception {
+        HsrePattern pattern = (HsrePattern) HsrePattern.compile("(a|ab)(c|bcd)(d*)", PatternFlags.ADVANCED);
+        assertThat(pattern.guts.tree.hasMachines(), is(false));
+        ReMatcher matcher = pattern.matcher("xxabcd");
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.group(), equalTo("abcd"));
+        assertThat(matcher.group(1), equalTo("ab"));
+        assertThat(matcher.group(2), equalTo("c"));
+        assertThat(matcher.group(3), equalTo("d"));
+        RuntimeSubexpression tree = pattern.dissectionTree();
+        assertThat(tree.hasMachines(), is(true));
+        assertThat(tree.machine, sameInstance(pattern.guts.tree.machine));
+        assertThat(pattern.dissectionTree(), sameInstance(tree));
+    }
+
+    @Test
+    public void weight() throws Exception {
+        HsrePattern pattern = (HsrePattern) HsrePattern.compile("(a|ab)(c|bcd)(d*)", PatternFlags.ADVANCED);
+        long whole = pattern.guts.footprint();
+        // what a cache bounded by weight charges for it.
+        assertThat(pattern.guts.footprint(pattern.dissectionTree()) > whole, is(true));
+        assertThat(pattern.guts.footprint(), equalTo(whole));
+    }
+
+    @Test
+    public void backrefsBuildEverything() throws Exception {
+        HsrePattern pattern = (HsrePattern) HsrePattern.compile("(a+)b\\1", PatternFlags.ADVANCED);
+        assertThat(pattern.guts.tree.hasMachines(), is(true));
+        assertThat(pattern.dissectionTree(), sameInstance(pattern.guts.tree));
+    }
+
+    @Test
+    public void serializedWithAllMachines() throws Exception {
+        // a pattern serialized before the subexpression machines were built lazily.
+        ObjectInputStream in = new ObjectInputStream(getClass().getResourceAsStream("/pattern-with-all-machines.ser"));
+        HsrePattern pattern;
+        try {
+            pattern = (HsrePattern) in.readObject();
+        } finally {
+            in.close();
+        }
+        assertThat(pattern.guts.tree.hasMachines(), is(true));
+        assertThat(pattern.dissectionTree(), sameInstance(pattern.guts.tree));
+        ReMatcher matcher = pattern.matcher("xxabcd");
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.group(1), equalTo("ab"));
+        assertThat(matcher.group(2), equalTo("c"));
+    }
+
+    @Test
+    public void boundsOfTheFind() throws Exception {
+        // find(1) treats 1 as the beginning of the data; hasMatch looks at the whole region.
+        ReMatcher matcher = HsrePattern.compile("(^a)?(a?b)", PatternFlags.ADVANCED).matcher("aab");
+        assertThat(matcher.find(1), is(true));
+        assertThat(matcher.hasMatch(), is(true));
+        assertThat(matcher.group(1), equalTo("a"));
+        assertThat(matcher.group(2), equalTo("b"));
+        matcher.reset();
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.group(1), equalTo("a"));
+        assertThat(matcher.group(2), equalTo("ab"));
+        matcher.reset("b");
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.group(1), nullValue());
+    }
+
+    @Test
+    public void concurrentFirstUse() throws Exception {
+        final HsrePattern pattern = (HsrePattern) HsrePattern.compile("(\\w+)\\s*=\\s*(\"[^\"]*\"|\\S+)", PatternFlags.ADVANCED);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = Lists.newArrayList();
+            for (int x = 0; x < 32; x++) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        ReMatcher matcher = pattern.matcher("a = \"b c\" d=e");
+                        StringBuilder sb = new StringBuilder();
+                        while (matcher.find()) {
+                            sb.append(matcher.group(1)).append(':').append(matcher.group(2)).append(' ');
+                        }
+                        return sb.toString();
+                    }
+                }));
+            }
+            for (Future<String> result : results) {
+                assertThat(result.get(), equalTo("a:\"b c\" d:e "));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * The literal prefix that lets the search skip ahead.
+ */
+public class LiteralPrefixTest extends Utils {
+
+    private static LiteralPrefix prefix(String pattern) throws Exception {
+        return ((HsrePattern) HsrePattern.compile(pattern, PatternFlags.ADVANCED)).guts.prefix;
+    }
+
+    /* a runtime that reads the data, as during a search. */
+    private static Runtime over(String data) {
+        Runtime runtime = new Runtime();
+        runtime.setData(data);
+        return runtime;
+    }
+
+    @Test
+    public void extraction() throws Exception {
+        assertThat(prefix("ERROR\\s+\\d+").length(), equalTo(5));
+        assertThat(prefix("user=(\\w+)").length(), equalTo(5));
+        assertThat(prefix("(?i)error").length(), equalTo(5));
+        assertThat(prefix("ab|cd").length(), equalTo(2));
+        // a position can hold any of several characters.
+        assertThat(prefix("ab?c").length(), equalTo(2));
+        assertThat(prefix(".*x"), nullValue());
+        assertThat(prefix("a*b").length(), equalTo(1));
+        assertThat(prefix("(?=a)a"), nullValue());
+    }
+
+    @Test
+    public void search() throws Exception {
+        LiteralPrefix prefix = prefix("(?i)abc");
+        Runtime data = over("xxabxxxaBcx");
+        assertThat(prefix.find(data, 0, 11), equalTo(7));
+        assertThat(prefix.find(data, 8, 11), equalTo(-1));
+        assertThat(prefix.find(data, 0, 9), equalTo(-1));
+
+        // positions are independent, so this is a filter, not a match.
+        prefix = prefix("ab|cd");
+        assertThat(prefix.find(over("xxcbad"), 0, 6), equalTo(2));
+        assertThat(prefix.find(over("xxaacc"), 0, 6), equalTo(-1));
+    }
+
+    @Test
+    public void skipping() throws Exception {
+        RePattern pattern = HsrePattern.compile("(?i)error\\s+(\\d+)", PatternFlags.ADVANCED);
+        ReMatcher matcher = pattern.matcher("no errors here; Error 1 and ERRORerror 22 and error");
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.group(1), equalTo("1"));
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.start(), equalTo(33));
+        assertThat(matcher.group(1), equalTo("22"));
+        assertThat(matcher.find(), is(false));
+        assertThat(pattern.test("error error"), is(false));
+    }
+
+    @Test
+    public void lookbehindContext() throws Exception {
+        // the skip must still see the character before the match.
+        RePattern pattern = HsrePattern.compile("\\mab", PatternFlags.ADVANCED);
+        ReMatcher matcher = pattern.matcher("xab ab");
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.start(), equalTo(4));
+    }
+}
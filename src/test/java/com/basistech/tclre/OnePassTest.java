@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Subexpressions found in one scan.
+ */
+public class OnePassTest extends Utils {
+
+    private static HsrePattern compile(String exp) throws RegexException {
+        return (HsrePattern) HsrePattern.compile(exp, PatternFlags.ADVANCED);
+    }
+
+    @Test
+    public void qualifies() throws Exception {
+        assertThat(compile("(\\d+)-(\\d+)").guts.onepass, is(notNullValue()));
+        assertThat(compile("^(\\w+)=(.*)$").guts.onepass, is(notNullValue()));
+        assertThat(compile("(a)(b)?").guts.onepass, is(notNullValue()));
+        // no subexpressions, nothing to do.
+        assertThat(compile("a+b").guts.onepass, is(nullValue()));
+        // where the first a* stops isn't up to the next character.
+        assertThat(compile("x(a*)(a*)y").guts.onepass, is(nullValue()));
+        assertThat(compile("(a+)\\1").guts.onepass, is(nullValue()));
+        assertThat(compile("\\m(\\w+)\\M").guts.onepass, is(nullValue()));
+    }
+
+    @Test
+    public void subexpressions() throws Exception {
+        ReMatcher matcher = compile("^(\\S+) (\\S+) \\[([^]]*)\\] \"([A-Z]+) ([^ ]*)")
+                .matcher("127.0.0.1 frank [10/Oct/2000:13:55:36 -0700] \"GET /apache_pb.gif HTTP/1.0\"");
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.group(1), equalTo("127.0.0.1"));
+        assertThat(matcher.group(2), equalTo("frank"));
+        assertThat(matcher.group(3), equalTo("10/Oct/2000:13:55:36 -0700"));
+        assertThat(matcher.group(4), equalTo("GET"));
+        assertThat(matcher.group(5), equalTo("/apache_pb.gif"));
+
+        matcher = compile("(a)(b)?").matcher("xab.a");
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.group(2), equalTo("b"));
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.start(1), equalTo(4));
+        assertThat(matcher.start(2), equalTo(-1));
+        assertThat(matcher.end(2), equalTo(-1));
+    }
+
+    private static void skipped(String exp, String data, int group) throws Exception {
+        HsrePattern pattern = compile(exp);
+        assertThat(exp, pattern.guts.onepass, is(notNullValue()));
+        ReMatcher matcher = pattern.matcher(data);
+        assertThat(exp, matcher.find(), is(true));
+        assertThat(exp, matcher.start(group), equalTo(-1));
+        assertThat(exp, matcher.end(group), equalTo(-1));
+        assertThat(exp, matcher.group(group), is(nullValue()));
+    }
+
+    @Test
+    public void skippedSubexpressions() throws Exception {
+        // the way around an optional subexpression goes to the same state as the way out of it.
+        skipped("x(a)?y", "xy", 1);
+        skipped("(a)(b)?", ".a", 2);
+        skipped("(a)|(b)(c)?", "xb", 3);
+        skipped("x(ab)?(c)?", "xab", 2);
+        ReMatcher matcher = compile("x(ab)?(c)?").matcher("xab");
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.group(1), equalTo("ab"));
+    }
+
+    @Test
+    public void anchors() throws Exception {
+        HsrePattern pattern = compile("^(b+)(c*)$");
+        assertThat(pattern.guts.onepass, is(notNullValue()));
+        ReMatcher matcher = pattern.matcher("bbb");
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.end(1), equalTo(3));
+        assertThat(matcher.start(2), equalTo(3));
+        assertThat(matcher.end(2), equalTo(3));
+        assertThat(pattern.matcher("bbb", ExecFlags.NOTBOL).find(), is(false));
+        assertThat(pattern.matcher("bbb", ExecFlags.NOTEOL).find(), is(false));
+
+        pattern = compile("(b+)(c*)$");
+        matcher = pattern.matcher("bbc bbcc");
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.start(1), equalTo(4));
+        assertThat(matcher.start(2), equalTo(6));
+        assertThat(matcher.end(2), equalTo(8));
+    }
+}
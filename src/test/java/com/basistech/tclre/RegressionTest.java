@@ -17,7 +17,10 @@
 package com.basistech.tclre;
 
 import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
 
+import com.google.common.collect.Lists;
 import org.junit.Test;
 
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -103,4 +106,29 @@ public class RegressionTest extends Utils {
         assertTrue(matcher.lookingAt());
 
     }
+
+    @Test
+    public void largeAlternation() throws Exception {
+        // thousands of arcs out of one state; adding and removing them used to take quadratic time.
+        Random random = new Random(1);
+        List<String> words = Lists.newArrayList();
+        StringBuilder exp = new StringBuilder("\\m(");
+        for (int x = 0; x < 2000; x++) {
+            StringBuilder word = new StringBuilder();
+            int length = 4 + random.nextInt(8);
+            for (int y = 0; y < length; y++) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            words.add(word.toString());
+            exp.append(x == 0 ? "" : "|").append(word);
+        }
+        exp.append(")\\M");
+        RePattern pattern = HsrePattern.compile(exp.toString(), PatternFlags.ADVANCED);
+        for (int x = 0; x < words.size(); x += 97) {
+            ReMatcher matcher = pattern.matcher("zz " + words.get(x) + " zz");
+            assertTrue(words.get(x), matcher.find());
+            assertEquals(words.get(x), matcher.group(1));
+        }
+        assertThat(pattern.matcher("zz " + words.get(0) + "zz").find(), is(false));
+    }
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * The literal factors that every match must contain.
+ */
+public class RequiredFactorsTest extends Utils {
+
+    private static RequiredFactors factors(String pattern) throws Exception {
+        return ((HsrePattern) HsrePattern.compile(pattern, PatternFlags.ADVANCED)).guts.factors;
+    }
+
+    /* a runtime that reads the data, as during a search. */
+    private static Runtime over(String data) {
+        Runtime runtime = new Runtime();
+        runtime.setData(data);
+        return runtime;
+    }
+
+    @Test
+    public void extraction() throws Exception {
+        RequiredFactors factors = factors("\\d+\\.log");
+        assertThat(factors.size(), equalTo(1));
+        assertThat(factors.minLength(), equalTo(4));
+
+        // the longest wins.
+        factors = factors("[a-z]+@[a-z]+\\.com");
+        assertThat(factors.minLength(), equalTo(4));
+
+        factors = factors("\\w+(ing|ers)\\M");
+        assertThat(factors.size(), equalTo(2));
+        assertThat(factors.minLength(), equalTo(3));
+
+        // not when a loop or something that isn't literal gets in the way.
+        assertThat(factors("\\d+(ab)+\\d"), nullValue());
+        assertThat(factors("\\d+(?=abc)"), nullValue());
+        // nor when they are short.
+        assertThat(factors("\\d+ab"), nullValue());
+        // nor when the prefix does as well.
+        assertThat(factors("abcd\\d+"), nullValue());
+    }
+
+    @Test
+    public void search() throws Exception {
+        RequiredFactors factors = factors("\\w+(?:ing|ers)\\M");
+        assertThat(factors.find(over("flying"), 0, 6), equalTo(3));
+        assertThat(factors.find(over("xx lovers"), 0, 9), equalTo(6));
+        assertThat(factors.find(over("xx lovers"), 0, 8), equalTo(-1));
+        assertThat(factors.find(over("ing ers"), 1, 7), equalTo(4));
+        assertThat(factors.find(over("in er"), 0, 5), equalTo(-1));
+    }
+
+    @Test
+    public void rejection() throws Exception {
+        RePattern pattern = HsrePattern.compile("(?i)\\d+\\.LOG\\M", PatternFlags.ADVANCED);
+        assertThat(pattern.test("nothing to see here"), is(false));
+        assertThat(pattern.test("wrote 12.log"), is(true));
+        ReMatcher matcher = pattern.matcher("a.log b.logs 7.Log");
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.start(), equalTo(13));
+        matcher.region(0, 12);
+        assertThat(matcher.find(), is(false));
+    }
+}
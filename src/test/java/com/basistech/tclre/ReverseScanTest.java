@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Basis Technology Corp.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.basistech.tclre;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Locating the start of a match with the reversed machine.
+ */
+public class ReverseScanTest extends Utils {
+
+    @Test
+    public void reversedMachine() throws Exception {
+        HsrePattern pattern = (HsrePattern) HsrePattern.compile("a(b|cd)*e", PatternFlags.ADVANCED);
+        assertThat(pattern.guts.reverse, notNullValue());
+        Runtime runtime = new Runtime();
+        String data = "xxabcdbe ae";
+        runtime.exec(pattern, data, 0, data.length(), 0);
+        Dfa reverse = runtime.getDfa(pattern.guts.reverse);
+        assertThat(reverse.leftmost(data.length(), 0), equalTo(2));
+        assertThat(reverse.leftmost(data.length(), 3), equalTo(9));
+        assertThat(reverse.leftmost(7, 0), equalTo(-1));
+    }
+
+    @Test
+    public void noReverseWithLookahead() throws Exception {
+        HsrePattern pattern = (HsrePattern) HsrePattern.compile("a(?=b)", PatternFlags.ADVANCED);
+        assertThat(pattern.guts.reverse, nullValue());
+    }
+
+    @Test
+    public void nearMisses() throws Exception {
+        // every x starts a near-miss for the first alternative; the match is the q.
+        RePattern pattern = HsrePattern.compile("[a-z]+[0-9]|q", PatternFlags.ADVANCED);
+        StringBuilder data = new StringBuilder();
+        for (int x = 0; x < 5000; x++) {
+            data.append('x');
+        }
+        data.append("q y7");
+        ReMatcher matcher = pattern.matcher(data);
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.start(), equalTo(5000));
+        assertThat(matcher.end(), equalTo(5001));
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.start(), equalTo(5002));
+        assertThat(matcher.end(), equalTo(5004));
+    }
+
+    @Test
+    public void leftmostStartEndsLater() throws Exception {
+        // the search finds the end of 'c' first, but the leftmost match is 'abcd'.
+        RePattern pattern = HsrePattern.compile("zabcd|c", PatternFlags.ADVANCED);
+        ReMatcher matcher = pattern.matcher("yzabcd");
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.start(), equalTo(1));
+        assertThat(matcher.end(), equalTo(6));
+    }
+
+    @Test
+    public void anchorsAndBoundaries() throws Exception {
+        RePattern pattern = HsrePattern.compile("\\m[a-z]+[0-9]\\M|^q|q$", PatternFlags.ADVANCED);
+        ReMatcher matcher = pattern.matcher("abc def ghi q");
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.start(), equalTo(12));
+        matcher = pattern.matcher("abc def ghi q", ExecFlags.NOTEOL);
+        assertThat(matcher.find(), is(false));
+        matcher = pattern.matcher("abc def ghi3 q");
+        assertThat(matcher.find(), is(true));
+        assertThat(matcher.start(), equalTo(8));
+    }
+}
@@ -18,10 +18,12 @@ package com.basistech.tclre;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
 import java.util.EnumSet;
 import java.util.regex.Pattern;
 
@@ -112,7 +114,21 @@ public class Utils {
                     mismatchDescription.appendText(sw.toString());
                     return false;
                 }
-                return innerMatcher(rehydratedPattern, input, mismatchDescription, "serialized and deserialized");
+                if (!innerMatcher(rehydratedPattern, input, mismatchDescription, "serialized and deserialized")) {
+                    return false;
+                }
+                try {
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(baos);
+                    pattern.writeTo(out);
+                    out.close();
+                    rehydratedPattern = HsrePattern.readFrom(ByteBuffer.wrap(baos.toByteArray()));
+                } catch (Exception e) {
+                    mismatchDescription.appendText("Exception writing or reading the binary form");
+                    mismatchDescription.appendValue(e);
+                    return false;
+                }
+                return innerMatcher(rehydratedPattern, input, mismatchDescription, "written and read");
             } else {
                 return false;
             }